@@ -0,0 +1,53 @@
+package com.github.lordcrekit;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The AsyncUploaderStrategy decides how files are uploaded, without a thread waiting on each upload. Strategies built
+ * on asynchronous channels can then keep many uploads outstanding at once.
+ * <p>
+ * {@link #upload(Path, URI)} is called from the service's own thread, so it must start the upload and return rather
+ * than wait for it. The service does not limit how many uploads are outstanding to the worker count; use
+ * {@link UploaderServiceSettings#setDestinationConcurrency(int)} or
+ * {@link UploaderServiceSettings#setQueueLimit(int, UploaderServiceSettings.Overflow)} for that.
+ *
+ * @author William A. Norman <a href="norman.william.dev@gmail.com"/>
+ * @see UploaderStrategy
+ */
+public interface AsyncUploaderStrategy {
+
+  /**
+   * @param file
+   *     The file to upload.
+   * @param destination
+   *     The destination to upload to.
+   * @return Completes with the timestamp on the file when it was uploaded, or negative if the file failed to upload.
+   * Completing exceptionally also counts as failing.
+   */
+  CompletableFuture<Long> upload(Path file, URI destination);
+
+  /**
+   * @param strategy
+   *     A synchronous strategy.
+   * @param executor
+   *     What to run its uploads on.
+   * @return The strategy, run on the executor.
+   */
+  static AsyncUploaderStrategy of(final UploaderStrategy strategy, final Executor executor) {
+    return (Path file, URI destination) -> {
+      final CompletableFuture<Long> upload = new CompletableFuture<>();
+      executor.execute(() -> {
+        try {
+          upload.complete(strategy.upload(file, destination));
+        } catch (IOException | RuntimeException e) {
+          upload.completeExceptionally(e);
+        }
+      });
+      return upload;
+    };
+  }
+}
@@ -0,0 +1,31 @@
+package com.github.lordcrekit;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * An UploaderStrategy that can also upload several files in one go, like packing them into one archive or pipelining
+ * them over a single session.
+ * <p>
+ * A service with a batch strategy gathers the files it decides to upload for each destination, and hands them over
+ * together once there are enough of them or they have waited long enough. Destinations are told apart by the scheme
+ * and authority of their URIs.
+ *
+ * @author William A. Norman <a href="norman.william.dev@gmail.com"/>
+ * @see UploaderServiceSettings#setBatching(int, long, long)
+ */
+public interface BatchUploaderStrategy extends UploaderStrategy {
+
+  /**
+   * @param files
+   *     The files to upload, each with the destination to upload it to. Every destination has the same scheme and
+   *     authority, and no file is given twice.
+   * @return The timestamp on each file when it was uploaded, or negative if it failed to upload. Files left out also
+   * count as failed.
+   * @throws IOException
+   *     If none of the files could be uploaded.
+   */
+  Map<Path, Long> uploadAll(Map<Path, URI> files) throws IOException;
+}
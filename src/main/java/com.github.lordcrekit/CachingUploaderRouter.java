@@ -0,0 +1,204 @@
+package com.github.lordcrekit;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Remembers the destinations another {@link UploaderRouter} picks for each directory, so a router that evaluates rule
+ * tables is only asked once for a directory rather than once for every file queued in it.
+ * <p>
+ * The first file routed under a key, its parent directory by default, is routed by the wrapped router. A destination
+ * whose path ends with the file's path below the key is remembered as a prefix, and other files under the key get the
+ * prefix with their own path below the key appended. Any other destination is remembered as it is, for routers that
+ * upload a whole directory to the same place. So the wrapped router's choices may only depend on the key, and on the
+ * file's path below the key appended to the destination's path.
+ * <p>
+ * Call {@link #invalidate()} when the routing rules change. Thread safe; the wrapped router is called outside of any
+ * lock, and must be thread safe itself if queueing happens on several threads.
+ *
+ * @author William A. Norman <a href="norman.william.dev@gmail.com"/>
+ */
+public final class CachingUploaderRouter implements UploaderRouter {
+
+  /**
+   * A destination, remembered either as a prefix to append a file's path below the key to, or as it is.
+   */
+  private static final class Route {
+    final URI destination;
+    final boolean prefix;
+
+    Route(final URI destination, final boolean prefix) {
+      this.destination = destination;
+      this.prefix = prefix;
+    }
+  }
+
+  private final UploaderRouter router;
+  private final Function<Path, Path> key;
+  private final Map<Path, List<Route>> routes;
+
+  /**
+   * Bumped by every invalidation, so a route worked out while the rules changed is not remembered.
+   */
+  private long generation = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Remember routes by parent directory.
+   *
+   * @param router
+   *     The router to remember the routes of.
+   * @param capacity
+   *     The most directories to remember. Must be positive.
+   */
+  public CachingUploaderRouter(final UploaderRouter router, final int capacity) {
+    this(router, capacity, (Path file) -> file.getParent());
+  }
+
+  /**
+   * @param router
+   *     The router to remember the routes of.
+   * @param capacity
+   *     The most keys to remember. Must be positive.
+   * @param key
+   *     The prefix of a file's path its routes depend on, like its parent directory, or the first few components for a
+   *     router that routes whole trees alike. Returning <code>null</code> routes the file without remembering it.
+   */
+  public CachingUploaderRouter(final UploaderRouter router, final int capacity, final Function<Path, Path> key) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    this.router = router;
+    this.key = key;
+    this.routes = new LinkedHashMap<Path, List<Route>>(Math.min(capacity, 1024), 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Path, List<Route>> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  @Override
+  public List<URI> route(final Path path) {
+    final Path file = path.normalize();
+    final Path k = this.key.apply(file);
+    if (k == null || !file.startsWith(k) || file.equals(k))
+      return this.router.route(path);
+    final String below = k.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+
+    final List<Route> remembered;
+    final long generation;
+    synchronized (this.routes) {
+      remembered = this.routes.get(k);
+      generation = this.generation;
+    }
+    if (remembered != null) {
+      this.hits.incrementAndGet();
+      final List<URI> destinations = new ArrayList<>(remembered.size());
+      for (Route r : remembered)
+        destinations.add(r.prefix ? append(r.destination, below) : r.destination);
+      return destinations;
+    }
+
+    this.misses.incrementAndGet();
+    final List<URI> destinations = this.router.route(path);
+    final List<Route> learned = new ArrayList<>(destinations.size());
+    for (URI uri : destinations) {
+      final URI prefix = prefix(uri, below);
+      learned.add(prefix != null ? new Route(prefix, true) : new Route(uri, false));
+    }
+    synchronized (this.routes) {
+      if (this.generation == generation)
+        this.routes.put(k, Collections.unmodifiableList(learned));
+    }
+    return destinations;
+  }
+
+  /**
+   * Forget every route, for when the routing rules have changed.
+   */
+  public void invalidate() {
+    synchronized (this.routes) {
+      this.generation++;
+      this.routes.clear();
+    }
+  }
+
+  /**
+   * Forget the routes of every key under a directory, for when only the rules for that tree have changed.
+   *
+   * @param directory
+   *     The directory.
+   */
+  public void invalidate(final Path directory) {
+    final Path dir = directory.normalize();
+    synchronized (this.routes) {
+      this.generation++;
+      for (Iterator<Path> it = this.routes.keySet().iterator(); it.hasNext(); )
+        if (it.next().startsWith(dir))
+          it.remove();
+    }
+  }
+
+  /**
+   * @return How many files were routed from a remembered route.
+   */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /**
+   * @return How many files had to be routed by the wrapped router.
+   */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /**
+   * @return The fraction of files routed from a remembered route, or <code>0</code> if none have been routed.
+   */
+  public double getHitRate() {
+    final long hits = this.hits.get();
+    final long total = hits + this.misses.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Destination prefixes">
+
+  /**
+   * @return The destination without the file's path below the key at the end of its path, or <code>null</code> if its
+   * path does not end with it.
+   */
+  private static URI prefix(final URI destination, final String below) {
+    final String path = destination.getPath();
+    if (destination.isOpaque() || path == null || !path.endsWith("/" + below))
+      return null;
+    try {
+      return new URI(destination.getScheme(), destination.getAuthority(),
+          path.substring(0, path.length() - below.length()), destination.getQuery(), destination.getFragment());
+    } catch (URISyntaxException e) {
+      return null;
+    }
+  }
+
+  private static URI append(final URI prefix, final String below) {
+    try {
+      return new URI(prefix.getScheme(), prefix.getAuthority(),
+          prefix.getPath() + below, prefix.getQuery(), prefix.getFragment());
+    } catch (URISyntaxException e) {
+      // The prefix was a valid URI, and a path can hold any characters once quoted.
+      throw new IllegalStateException(e);
+    }
+  }
+  // </editor-fold>
+}
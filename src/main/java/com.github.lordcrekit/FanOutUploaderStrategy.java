@@ -0,0 +1,34 @@
+package com.github.lordcrekit;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * An UploaderStrategy that can upload a file from contents already read, so a file routed to several destinations is
+ * read from disk once rather than once for each.
+ * <p>
+ * A service with a fan-out strategy reads each file it decides to upload once, into memory, or by mapping it if it is
+ * large, and uploads it to every destination it is waiting for at the same time, each on a worker of its own if there
+ * are enough. A file counts as one upload towards the worker count, however many destinations it goes to. Each
+ * destination succeeds or fails on its own. Files too large to map in one buffer are uploaded with
+ * {@link UploaderStrategy#upload(Path, URI)} instead.
+ *
+ * @author William A. Norman <a href="norman.william.dev@gmail.com"/>
+ */
+public interface FanOutUploaderStrategy extends UploaderStrategy {
+
+  /**
+   * @param file
+   *     The file being uploaded.
+   * @param contents
+   *     Its contents, from position zero to the limit, as they were read. The buffer is read only and shared with the
+   *     other destinations' uploads, though its position and limit are this upload's own, and it may map the file, so
+   *     it must not be kept once this returns.
+   * @param destination
+   *     The destination to upload to.
+   * @return The timestamp on the file when it was uploaded, or negative if the file failed to upload.
+   */
+  long upload(Path file, ByteBuffer contents, URI destination) throws IOException;
+}
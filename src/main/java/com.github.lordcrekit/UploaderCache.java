@@ -6,7 +6,18 @@ import org.zeromq.ZMQ;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
 /**
@@ -18,51 +29,193 @@ import java.util.regex.Pattern;
  */
 public class UploaderCache implements Closeable {
 
+  /**
+   * How many entries {@link #getEntries(Path, boolean, boolean)} reads at once.
+   */
+  static final int EXPORT_PAGE_SIZE = 1024;
+
   private final ZContext context;
 
   private final String threadAddress;
   private final UploaderCacheThread threadService;
   private final Thread thread;
 
+  /**
+   * The REQ socket each calling thread talks to the cache thread through.
+   */
+  private final UploaderSockets sockets;
+
+  /**
+   * How requests are encoded.
+   */
+  private final UploaderCacheSettings.Protocol protocol;
+
+  private final Path cacheFile;
+
+  /**
+   * Sends the requests of the <code>async</code> methods, or <code>null</code> until one is first used.
+   */
+  private UploaderCacheClient client;
+
   /**
    *
    * @param context
    * @param cacheFile
    */
   public UploaderCache(final ZContext context, final Path cacheFile) {
+    this(context, cacheFile, new UploaderCacheSettings());
+  }
+
+  /**
+   * @param context
+   * @param cacheFile
+   * @param settings
+   *     How the cache is stored.
+   */
+  public UploaderCache(final ZContext context, final Path cacheFile, final UploaderCacheSettings settings) {
     this.context = context;
+    this.cacheFile = cacheFile;
 
     this.threadAddress = UploaderService.makeAddress(UploaderCacheThread.class.getSimpleName());
-    this.threadService = new UploaderCacheThread(context, threadAddress, cacheFile);
+    this.threadService = new UploaderCacheThread(context, threadAddress, cacheFile, settings);
     this.thread = new Thread(this.threadService, UploaderCache.class.getSimpleName());
     this.thread.start();
+
+    this.sockets = new UploaderSockets(context, this.threadAddress, ZMQ.REQ);
+    this.protocol = settings.WireProtocol;
+  }
+
+  /**
+   * Tell the cache that a pattern should be frozen, without waiting for it. The cache searches the root for the files
+   * the pattern matches in the background, and keeps answering other requests meanwhile.
+   *
+   * @param root
+   *     The directory to search for files the pattern matches.
+   * @param pattern
+   *     The pattern to freeze.
+   * @param timestamp
+   *     The time to freeze it at.
+   * @return Completes once the freeze is applied.
+   * @see #freeze(Path, Pattern, long)
+   */
+  public CompletableFuture<Void> freezeAsync(final Path root, final Pattern pattern, final long timestamp) {
+    final UploaderMessage msg = new UploaderMessage(UploaderCacheThread.FREEZE_COMMAND, this.protocol)
+        .put('r', root.toString())
+        .put('p', pattern.toString())
+        .put('t', timestamp);
+    return client().change(msg.encode());
+  }
+
+  /**
+   * Tell the cache that a pattern should be ignored, without waiting for it.
+   *
+   * @param pattern
+   *     The pattern to ignore.
+   * @return Completes once the pattern is ignored.
+   * @see #ignore(Pattern)
+   */
+  public CompletableFuture<Void> ignoreAsync(final Pattern pattern) {
+    final UploaderMessage msg = new UploaderMessage(UploaderCacheThread.IGNORE_COMMAND, this.protocol)
+        .put('p', pattern.toString());
+    return client().change(msg.encode());
+  }
+
+  /**
+   * Update the cache with the most recent upload date of a file, without waiting for it. Any number of updates can be
+   * in flight at once, and the cache applies them in the order they were made.
+   *
+   * @param file
+   *     The file.
+   * @param timestamp
+   *     Its upload date.
+   * @return Completes once the update is acknowledged.
+   * @see #update(Path, long)
+   */
+  public CompletableFuture<Void> updateAsync(final Path file, final long timestamp) {
+    return client().change(updateMessage(file, null, timestamp).encode());
+  }
+
+  /**
+   * @param file
+   *     The file.
+   * @param destination
+   *     The destination it was uploaded to.
+   * @param timestamp
+   *     Its upload date.
+   * @return Completes once the update is acknowledged.
+   * @see #update(Path, URI, long)
+   */
+  public CompletableFuture<Void> updateAsync(final Path file, final URI destination, final long timestamp) {
+    return client().change(updateMessage(file, destination, timestamp).encode());
+  }
+
+  /**
+   * @param timestamps
+   *     The upload date of each file.
+   * @return Completes once the updates are acknowledged.
+   * @see #updateAll(Map)
+   */
+  public CompletableFuture<Void> updateAllAsync(final Map<Path, Long> timestamps) {
+    return client().change(updateAllMessage(timestamps).encode());
+  }
+
+  /**
+   * @param timestamps
+   *     The upload date of each file, for each destination it was uploaded to.
+   * @return Completes once the updates are acknowledged.
+   * @see #updateDestinations(Map)
+   */
+  public CompletableFuture<Void> updateDestinationsAsync(final Map<URI, Map<Path, Long>> timestamps) {
+    return client().change(updateDestinationsMessage(timestamps).encode());
+  }
+
+  /**
+   * File information is read directly, so this is already complete. It is here so callers can treat every request the
+   * same way.
+   *
+   * @param p
+   *     The file.
+   * @return The file's information.
+   * @see #getFileInformation(Path)
+   */
+  public CompletableFuture<UploaderCacheFileInfo> getFileInformationAsync(final Path p) {
+    return CompletableFuture.completedFuture(getFileInformation(p));
+  }
+
+  /**
+   * @param paths
+   *     The files.
+   * @return The information of each file, already complete.
+   * @see #getFileInformation(Collection)
+   */
+  public CompletableFuture<Map<Path, UploaderCacheFileInfo>> getFileInformationAsync(final Collection<Path> paths) {
+    return CompletableFuture.completedFuture(getFileInformation(paths));
+  }
+
+  private synchronized UploaderCacheClient client() {
+    if (this.client == null)
+      this.client = new UploaderCacheClient(this.context, this.threadAddress);
+    return this.client;
   }
 
   /**
-   * Tell the cache that a pattern should be frozen.
+   * Tell the cache that a pattern should be frozen. Blocks until the root has been searched.
    *
    * @param pattern
    *     The pattern to freeze.
    * @param timestamp
    *     The time to freeze it at. This can be set to the future, if you know you're going to want to freeze at a
    *     certain time.
+   * @throws UncheckedIOException
+   *     If the root could not be searched, or the freeze could not be persisted.
    */
   public void freeze(final Path root, final Pattern pattern, final long timestamp) {
-    final ZMQ.Socket sock = this.context.createSocket(ZMQ.REQ);
-    try {
-      sock.connect(this.threadAddress);
-      final JSONObject msg = new JSONObject();
-      msg.put("c", UploaderCacheThread.FREEZE_COMMAND);
-      msg.put("r", root.toString());
-      msg.put("p", pattern.toString());
-      msg.put("t", timestamp);
-
-      sock.send(msg.toString());
-      final byte[] code = sock.recv();
-      assert code == UploaderCacheThread.SUCCESS_RESPONSE;
-    } finally {
-      this.context.destroySocket(sock);
-    }
+    final UploaderMessage msg = new UploaderMessage(UploaderCacheThread.FREEZE_COMMAND, this.protocol)
+        .put('r', root.toString())
+        .put('p', pattern.toString())
+        .put('t', timestamp);
+
+    checkChanged(this.sockets.request(msg.encode()));
   }
 
   /**
@@ -70,103 +223,254 @@ public class UploaderCache implements Closeable {
    *
    * @param pattern
    *     The pattern to ignore. Any files(resolved) that this pattern matches will not be uploaded.
+   * @throws UncheckedIOException
+   *     If the change could not be persisted.
    */
   public void ignore(final Pattern pattern) {
-    final ZMQ.Socket sock = this.context.createSocket(ZMQ.REQ);
-    try {
-      sock.connect(this.threadAddress);
-      final JSONObject msg = new JSONObject();
-      msg.put("c", UploaderCacheThread.IGNORE_COMMAND);
-      msg.put("p", pattern.toString());
+    final UploaderMessage msg = new UploaderMessage(UploaderCacheThread.IGNORE_COMMAND, this.protocol)
+        .put('p', pattern.toString());
 
-      sock.send(msg.toString());
-      final byte[] code = sock.recv();
-      assert code == UploaderCacheThread.SUCCESS_RESPONSE;
-    } finally {
-      this.context.destroySocket(sock);
-    }
+    checkChanged(this.sockets.request(msg.encode()));
   }
 
   /**
-   * Update the cache with the most recent upload date of a file.
+   * Update the cache with the most recent upload date of a file. If the file has dates for some destinations, each of
+   * them is updated too, since it is not known which one the file went to.
    *
    * @param file
    * @param timestamp
+   * @throws UncheckedIOException
+   *     If the change could not be persisted.
    */
   public void update(final Path file, final long timestamp) {
-    final ZMQ.Socket sock = this.context.createSocket(ZMQ.REQ);
-    try {
-      sock.connect(this.threadAddress);
-      final JSONObject msg = new JSONObject();
-      msg.put("c", UploaderCacheThread.UPDATE_COMMAND);
-      msg.put("f", file.normalize().toString());
-      msg.put("t", timestamp);
-
-      sock.send(msg.toString());
-      final byte[] code = sock.recv();
-      assert code == UploaderCacheThread.SUCCESS_RESPONSE;
-    } finally {
-      this.context.destroySocket(sock);
-    }
+    checkChanged(this.sockets.request(updateMessage(file, null, timestamp).encode()));
+  }
+
+  /**
+   * Update the cache with the most recent upload date of a file to one destination. This is also the file's most recent
+   * upload date, and once a file has a date for any destination, destinations it has none for count as never uploaded
+   * to.
+   *
+   * @param file
+   *     The file.
+   * @param destination
+   *     The destination it was uploaded to.
+   * @param timestamp
+   *     Its upload date.
+   * @throws UncheckedIOException
+   *     If the change could not be persisted.
+   */
+  public void update(final Path file, final URI destination, final long timestamp) {
+    checkChanged(this.sockets.request(updateMessage(file, destination, timestamp).encode()));
+  }
+
+  /**
+   * @param reply
+   *     The cache thread's reply to a change.
+   * @throws UncheckedIOException
+   *     If the cache failed to make the change.
+   */
+  private static void checkChanged(final byte[] reply) {
+    if (!Arrays.equals(reply, UploaderCacheThread.SUCCESS_RESPONSE))
+      throw new UncheckedIOException(new IOException("The cache failed to apply a change"));
+  }
+
+  private UploaderMessage updateMessage(final Path file, final URI destination, final long timestamp) {
+    return new UploaderMessage(UploaderCacheThread.UPDATE_COMMAND, this.protocol)
+        .put('f', file.normalize().toString())
+        .put('t', timestamp)
+        .put('d', destination == null ? "" : destination.normalize().toString());
   }
 
   /**
+   * The cache thread always runs in this JVM, so this reads its information directly rather than sending it a request.
+   * Any number of threads can read at once.
+   *
    * @param p
    * @return
    */
   public UploaderCacheFileInfo getFileInformation(final Path p) {
-    final ZMQ.Socket sock = this.context.createSocket(ZMQ.REQ);
-    try {
-      sock.connect(this.threadAddress);
-      final JSONObject msg = new JSONObject();
-      msg.put("c", UploaderCacheThread.GET_FILE_STATUS);
-      msg.put("f", p.normalize().toString());
+    return this.threadService.readFileInfo(p.normalize());
+  }
 
-      sock.send(msg.toString());
-      final byte[] statusMsg_bytes = sock.recv();
+  /**
+   * Update the cache with the most recent upload dates of many files at once. This is a single request, and the
+   * changes are persisted together.
+   *
+   * @param timestamps
+   *     The upload date of each file.
+   * @throws UncheckedIOException
+   *     If the changes could not be persisted.
+   */
+  public void updateAll(final Map<Path, Long> timestamps) {
+    checkChanged(this.sockets.request(updateAllMessage(timestamps).encode()));
+  }
 
-      final JSONObject statusMsg = new JSONObject(new String(statusMsg_bytes));
-      return new UploaderCacheFileInfo(statusMsg);
+  private UploaderMessage updateAllMessage(final Map<Path, Long> timestamps) {
+    final List<String> files = new ArrayList<>(timestamps.size());
+    final long[] times = new long[timestamps.size()];
+    for (Map.Entry<Path, Long> e : timestamps.entrySet()) {
+      times[files.size()] = e.getValue();
+      files.add(e.getKey().normalize().toString());
+    }
 
-    } finally {
-      this.context.destroySocket(sock);
+    return new UploaderMessage(UploaderCacheThread.UPDATE_ALL_COMMAND, this.protocol)
+        .put('F', files)
+        .put('T', times);
+  }
+
+  /**
+   * Update the cache with the most recent upload dates of many files to many destinations at once. This is a single
+   * request, and the changes are persisted together.
+   *
+   * @param timestamps
+   *     The upload date of each file, for each destination it was uploaded to.
+   * @throws UncheckedIOException
+   *     If the changes could not be persisted.
+   * @see #update(Path, URI, long)
+   */
+  public void updateDestinations(final Map<URI, Map<Path, Long>> timestamps) {
+    checkChanged(this.sockets.request(updateDestinationsMessage(timestamps).encode()));
+  }
+
+  private UploaderMessage updateDestinationsMessage(final Map<URI, Map<Path, Long>> timestamps) {
+    final List<String> files = new ArrayList<>();
+    final List<String> destinations = new ArrayList<>();
+    final List<Long> times = new ArrayList<>();
+    for (Map.Entry<URI, Map<Path, Long>> d : timestamps.entrySet()) {
+      final String destination = d.getKey().normalize().toString();
+      for (Map.Entry<Path, Long> e : d.getValue().entrySet()) {
+        files.add(e.getKey().normalize().toString());
+        destinations.add(destination);
+        times.add(e.getValue());
+      }
     }
+
+    final long[] timeArray = new long[times.size()];
+    for (int i = 0; i < timeArray.length; i++)
+      timeArray[i] = times.get(i);
+    return new UploaderMessage(UploaderCacheThread.UPDATE_ALL_COMMAND, this.protocol)
+        .put('F', files)
+        .put('T', timeArray)
+        .put('D', destinations);
   }
 
   /**
-   * Get all the information currently stored in the entire UploaderCache.
+   * Get the information of many files at once, as of the same moment.
+   *
+   * @param paths
+   *     The files.
+   * @return The information of each file, in the order the paths were given.
+   */
+  public Map<Path, UploaderCacheFileInfo> getFileInformation(final Collection<Path> paths) {
+    final List<Path> normalized = new ArrayList<>(paths.size());
+    for (Path p : paths)
+      normalized.add(p.normalize());
+
+    final Iterator<UploaderCacheFileInfo> it = this.threadService.readFileInfo(normalized).iterator();
+    final Map<Path, UploaderCacheFileInfo> result = new LinkedHashMap<>(paths.size() * 2);
+    for (Path p : paths)
+      result.put(p, it.next());
+    return result;
+  }
+
+  /**
+   * Read every stored timestamp, a page at a time. Unlike {@link #getCacheInformation()} this never copies the whole
+   * cache, so it is what should be used to dump a large one.
+   *
+   * @return Every entry in the cache.
+   * @see #getEntries(Path, boolean, boolean)
+   */
+  public Iterable<UploaderCacheEntry> getEntries() {
+    return getEntries(null, true, true);
+  }
+
+  /**
+   * Read the stored timestamps of a subtree, a page at a time. Each path appears once, with both its timestamps. The
+   * cache can keep changing while this is iterated.
+   *
+   * @param root
+   *     The subtree to read, or <code>null</code> for the whole cache.
+   * @param uploaded
+   *     If upload timestamps should be read. Otherwise they are <code>-1</code>, and paths that only have one are left
+   *     out.
+   * @param frozen
+   *     If timestamps when frozen should be read. Otherwise they are <code>-1</code>, and paths that only have one are
+   *     left out.
+   * @return The entries, sorted component by component with each directory before what is under it.
+   */
+  public Iterable<UploaderCacheEntry> getEntries(final Path root, final boolean uploaded, final boolean frozen) {
+    final Path normalized = root == null ? null : root.normalize();
+    return () -> new UploaderCacheCursor(
+        (Path after, Integer limit) -> this.threadService.readEntries(normalized, after, uploaded, frozen, limit),
+        EXPORT_PAGE_SIZE);
+  }
+
+  /**
+   * Get all the information currently stored in the entire UploaderCache. This copies the whole cache, twice; use
+   * {@link #getEntries()} for large caches.
    *
    * @return
    */
   public UploaderCacheInformation getCacheInformation() {
+    final UploaderMessage msg = new UploaderMessage(UploaderCacheThread.GET_CACHE_STATUS, this.protocol);
 
-    final ZMQ.Socket sock = this.context.createSocket(ZMQ.REQ);
-    try {
-      sock.connect(this.threadAddress);
+    final byte[] res = this.sockets.request(msg.encode());
+    final JSONObject resObj = new JSONObject(new String(res, StandardCharsets.UTF_8));
+    return new UploaderCacheInformation(resObj);
+  }
 
-      final JSONObject msg = new JSONObject();
-      msg.put("c", UploaderCacheThread.GET_CACHE_STATUS);
-      sock.send(msg.toString());
+  /**
+   * @return How many file information requests were answered with a remembered ignore and freeze decision.
+   * @see UploaderCacheSettings#setDecisionCacheSize(int)
+   */
+  public long getDecisionCacheHits() {
+    return this.threadService.Decisions == null ? 0 : this.threadService.Decisions.Hits.get();
+  }
 
-      final byte[] res = sock.recv();
-      final JSONObject resObj = new JSONObject(new String(res));
-      return new UploaderCacheInformation(resObj);
+  /**
+   * @return How many file information requests had to match the path against the patterns.
+   * @see UploaderCacheSettings#setDecisionCacheSize(int)
+   */
+  public long getDecisionCacheMisses() {
+    return this.threadService.Decisions == null ? 0 : this.threadService.Decisions.Misses.get();
+  }
 
-    } finally {
-      this.context.destroySocket(sock);
-    }
+  /**
+   * @return How requests to this cache, and to services using it, are encoded.
+   */
+  UploaderCacheSettings.Protocol getProtocol() {
+    return this.protocol;
+  }
+
+  /**
+   * @return The file the cache is stored in.
+   */
+  Path getFile() {
+    return this.cacheFile;
+  }
+
+  /**
+   * @return The address of the cache thread.
+   */
+  String getAddress() {
+    return this.threadAddress;
   }
 
   @Override
   public void close() throws IOException {
+    // The client goes first: once the cache thread is gone, it would block forwarding whatever requests it still has.
+    synchronized (this) {
+      if (this.client != null)
+        this.client.close();
+    }
 
     final ZMQ.Socket sock = this.context.createSocket(ZMQ.REQ);
     try {
       sock.connect(this.threadAddress);
 
-      final JSONObject msg = new JSONObject();
-      msg.put("c", UploaderCacheThread.TERMINATE_COMMAND);
-      sock.send(msg.toString());
+      final UploaderMessage msg = new UploaderMessage(UploaderCacheThread.TERMINATE_COMMAND, this.protocol);
+      sock.send(msg.encode());
 
       this.threadService.CloseNow.set(true);
     } finally {
@@ -178,5 +482,6 @@ public class UploaderCache implements Closeable {
     } catch (InterruptedException e) {
       assert false;
     }
+    this.sockets.close();
   }
 }
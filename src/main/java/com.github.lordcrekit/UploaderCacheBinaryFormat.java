@@ -0,0 +1,261 @@
+package com.github.lordcrekit;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The binary cache file format. It is read through memory mapped windows straight into an
+ * {@link UploaderCacheInformation}, without building an intermediate document.
+ * <p>
+ * Every number is big-endian, and every string is an <code>int</code> byte length followed by that many bytes of
+ * UTF-8.
+ * <pre>
+ * int      magic ("JFSC")
+ * int      version
+ * int      number of ignored patterns, followed by each pattern
+ * int      number of frozen patterns, followed by each pattern and its long timestamp
+ * int      number of paths (n)
+ * byte[n]  which times each path has: 1 if it was uploaded, plus 2 if it was frozen
+ * long[n]  the time each path was uploaded, or 0
+ * long[n]  the timestamp each path had when it was frozen, or 0
+ * n paths
+ * int      number of destinations, followed by each one's URI, its number of paths (m), the int[m] indexes of the
+ *          paths above, and the long[m] times each was uploaded to it
+ * </pre>
+ * Versions 1 and 2 have no flags, and mark a missing time with -1 instead; version 1 files also end after the paths.
+ * Both are still read.
+ *
+ * @see UploaderCacheSettings.Format#BINARY
+ */
+final class UploaderCacheBinaryFormat {
+
+  static final int MAGIC = 0x4A465343;
+
+  /**
+   * The flags of a path that has an upload time, and one that has a frozen timestamp.
+   */
+  private static final byte UPLOADED = 1;
+  private static final byte FROZEN = 2;
+  static final int VERSION = 3;
+
+  /**
+   * The largest part of the file that is mapped at once.
+   */
+  private static final int WINDOW = 64 * 1024 * 1024;
+
+  private UploaderCacheBinaryFormat() {
+  }
+
+  /**
+   * @param file
+   *     A cache file.
+   * @return If the file is in this format.
+   * @throws IOException
+   *     If the file can not be read.
+   */
+  static boolean isBinary(final Path file) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final ByteBuffer magic = ByteBuffer.allocate(4);
+      while (magic.hasRemaining() && channel.read(magic) >= 0) ;
+      return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+    }
+  }
+
+  static UploaderCacheInformation read(final Path file) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final MappedReader in = new MappedReader(channel);
+      if (in.getInt() != MAGIC)
+        throw new IOException(file + " is not a binary cache file");
+      final int version = in.getInt();
+      if (version < 1 || version > VERSION)
+        throw new IOException(file + " has unsupported binary cache version " + version);
+
+      final UploaderCacheInformation info = new UploaderCacheInformation();
+
+      final int ignoredCount = in.getInt();
+      for (int i = 0; i < ignoredCount; i++)
+        info.IgnoredPatterns.add(Pattern.compile(in.getString()));
+
+      final int frozenCount = in.getInt();
+      for (int i = 0; i < frozenCount; i++) {
+        final Pattern p = Pattern.compile(in.getString());
+        info.FrozenPatterns.put(p, in.getLong());
+      }
+
+      final int pathCount = in.getInt();
+      final byte[] flags = new byte[pathCount];
+      for (int i = 0; i < pathCount; i++)
+        flags[i] = version >= 3 ? in.get() : UPLOADED | FROZEN;
+      final long[] uploaded = new long[pathCount];
+      for (int i = 0; i < pathCount; i++)
+        uploaded[i] = in.getLong();
+      final long[] frozen = new long[pathCount];
+      for (int i = 0; i < pathCount; i++)
+        frozen[i] = in.getLong();
+
+      final Path[] paths = new Path[pathCount];
+      for (int i = 0; i < pathCount; i++) {
+        final Path p = paths[i] = Paths.get(in.getString());
+        if ((flags[i] & UPLOADED) != 0 && (version >= 3 || uploaded[i] >= 0))
+          info.Timestamps.putLong(p, uploaded[i]);
+        if ((flags[i] & FROZEN) != 0 && (version >= 3 || frozen[i] >= 0))
+          info.TimestampsWhenFrozen.putLong(p, frozen[i]);
+      }
+
+      if (version >= 2) {
+        final int destinationCount = in.getInt();
+        for (int d = 0; d < destinationCount; d++) {
+          final int destination = info.DestinationTimestamps.intern(URI.create(in.getString()));
+          final int count = in.getInt();
+          final int[] indexes = new int[count];
+          for (int i = 0; i < count; i++)
+            indexes[i] = in.getInt();
+          for (int i = 0; i < count; i++)
+            info.DestinationTimestamps.putLong(paths[indexes[i]], destination, in.getLong());
+        }
+      }
+      return info;
+    }
+  }
+
+  static void write(final UploaderCacheInformation info, final FileChannel channel) throws IOException {
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+
+    out.writeInt(info.IgnoredPatterns.size());
+    for (Pattern p : info.IgnoredPatterns)
+      writeString(out, p.pattern());
+
+    out.writeInt(info.FrozenPatterns.size());
+    for (Map.Entry<Pattern, Long> e : info.FrozenPatterns.entrySet()) {
+      writeString(out, e.getKey().pattern());
+      out.writeLong(e.getValue());
+    }
+
+    // Every uploaded path, then every frozen path that was never uploaded, then every path only uploaded to a
+    // destination, so the destinations can refer to them by index.
+    final List<Path> paths = new ArrayList<>(info.Timestamps.keySet());
+    for (Path p : info.TimestampsWhenFrozen.keySet())
+      if (!info.Timestamps.containsKey(p))
+        paths.add(p);
+    final Map<Path, Integer> indexes = new HashMap<>(paths.size() * 2);
+    for (Path p : paths)
+      indexes.put(p, indexes.size());
+    for (int d = 0; d < info.DestinationTimestamps.size(); d++)
+      for (Path p : info.DestinationTimestamps.timestamps(d).keySet())
+        if (indexes.putIfAbsent(p, paths.size()) == null)
+          paths.add(p);
+
+    // Any long can be a timestamp, so whether a path has one is kept apart from its value.
+    out.writeInt(paths.size());
+    for (Path p : paths)
+      out.writeByte((info.Timestamps.containsKey(p) ? UPLOADED : 0)
+          | (info.TimestampsWhenFrozen.containsKey(p) ? FROZEN : 0));
+    for (Path p : paths)
+      out.writeLong(info.Timestamps.getLong(p, 0));
+    for (Path p : paths)
+      out.writeLong(info.TimestampsWhenFrozen.getLong(p, 0));
+    for (Path p : paths)
+      writeString(out, p.toString());
+
+    out.writeInt(info.DestinationTimestamps.size());
+    for (int d = 0; d < info.DestinationTimestamps.size(); d++) {
+      final UploaderCachePathTrie times = info.DestinationTimestamps.timestamps(d);
+      writeString(out, info.DestinationTimestamps.get(d).toString());
+      out.writeInt(times.size());
+      for (Path p : times.keySet())
+        out.writeInt(indexes.get(p));
+      for (Map.Entry<Path, Long> e : times.entrySet())
+        out.writeLong(e.getValue());
+    }
+
+    out.flush();
+  }
+
+  private static void writeString(final DataOutputStream out, final String s) throws IOException {
+    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a file sequentially through memory mapped windows, so files larger than a single mapping can be read.
+   */
+  private static final class MappedReader {
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    /**
+     * Reused for decoding strings.
+     */
+    private byte[] scratch = new byte[256];
+
+    MappedReader(final FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      this.windowStart = 0;
+      this.window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW, this.size));
+    }
+
+    /**
+     * Make sure the next bytes are mapped.
+     */
+    private void ensure(final int bytes) throws IOException {
+      if (this.window.remaining() >= bytes)
+        return;
+
+      final long position = this.windowStart + this.window.position();
+      if (position + bytes > this.size)
+        throw new IOException("Binary cache file is truncated");
+      this.windowStart = position;
+      this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, position,
+          Math.min(Math.max(WINDOW, bytes), this.size - position));
+    }
+
+    byte get() throws IOException {
+      ensure(1);
+      return this.window.get();
+    }
+
+    int getInt() throws IOException {
+      ensure(4);
+      return this.window.getInt();
+    }
+
+    long getLong() throws IOException {
+      ensure(8);
+      return this.window.getLong();
+    }
+
+    String getString() throws IOException {
+      final int length = getInt();
+      if (length < 0)
+        throw new IOException("Binary cache file is corrupt");
+      ensure(length);
+      if (this.scratch.length < length)
+        this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+      this.window.get(this.scratch, 0, length);
+      return new String(this.scratch, 0, length, StandardCharsets.UTF_8);
+    }
+  }
+}
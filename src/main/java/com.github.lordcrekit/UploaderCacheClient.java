@@ -0,0 +1,213 @@
+package com.github.lordcrekit;
+
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Sends requests to an {@link UploaderCacheThread} without waiting for their replies, so any number can be in flight at
+ * once.
+ * <p>
+ * A single thread owns a DEALER socket connected to the cache thread. Callers hand it their requests through their own
+ * PUSH sockets; it sends each one with a request id frame in front of the usual empty delimiter, which the cache
+ * thread's ROUTER hands back with the reply. The id finds the future to complete.
+ * <p>
+ * Futures are completed on that thread, so actions that depend on them should not block; use the <code>async</code>
+ * variants of {@link CompletableFuture} for anything slow.
+ *
+ * @see UploaderCache#updateAsync(java.nio.file.Path, long)
+ */
+final class UploaderCacheClient implements Closeable {
+
+  /**
+   * Sent in place of a request id to stop the thread.
+   */
+  private static final byte[] STOP = new byte[0];
+
+  private final ZContext context;
+  private final String cacheAddress;
+
+  /**
+   * Where callers hand over their requests.
+   */
+  private final String requestAddress;
+  private final UploaderSockets requestSockets;
+
+  private final AtomicLong nextId = new AtomicLong();
+  private final Map<Long, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+  /**
+   * Set under the write lock of {@link #sendLock}, so no request is being sent once it is seen.
+   */
+  private volatile boolean closed = false;
+  private final ReadWriteLock sendLock = new ReentrantReadWriteLock();
+  private final Thread thread;
+
+  /**
+   * @param context
+   *     The context to create sockets in.
+   * @param cacheAddress
+   *     The cache thread's address.
+   */
+  UploaderCacheClient(final ZContext context, final String cacheAddress) {
+    this.context = context;
+    this.cacheAddress = cacheAddress;
+    this.requestAddress = UploaderService.makeAddress(UploaderCacheClient.class.getSimpleName());
+    this.requestSockets = new UploaderSockets(context, this.requestAddress, ZMQ.PUSH);
+
+    // The PULL socket has to be bound before anyone connects to it.
+    final ZMQ.Socket requests = context.createSocket(ZMQ.PULL);
+    requests.bind(this.requestAddress);
+    this.thread = new Thread(() -> run(requests), UploaderCacheClient.class.getSimpleName());
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Send a request.
+   *
+   * @param request
+   *     The encoded request.
+   * @return The reply.
+   */
+  CompletableFuture<byte[]> request(final byte[] request) {
+    final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+
+    // Held while sending, so close() can neither close the socket under us nor miss the future we add.
+    this.sendLock.readLock().lock();
+    try {
+      if (this.closed) {
+        reply.completeExceptionally(new IllegalStateException("Cache client is closed"));
+        return reply;
+      }
+
+      final long id = this.nextId.incrementAndGet();
+      this.pending.put(id, reply);
+      this.requestSockets.send(0, ByteBuffer.allocate(8).putLong(id).array(), request);
+      return reply;
+    } finally {
+      this.sendLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Send a request that changes the cache.
+   *
+   * @param request
+   *     The encoded request.
+   * @return Completes once the change is acknowledged, or exceptionally if the cache failed to make it.
+   */
+  CompletableFuture<Void> change(final byte[] request) {
+    return request(request).thenApply((byte[] reply) -> {
+      if (reply.length != 1 || reply[0] != UploaderCacheThread.SUCCESS_RESPONSE[0])
+        throw new CompletionException(new IOException("The cache failed to apply a change"));
+      return null;
+    });
+  }
+
+  private void run(final ZMQ.Socket requests) {
+    final ZMQ.Socket dealer = this.context.createSocket(ZMQ.DEALER);
+    final ZMQ.Poller poller = this.context.createPoller(2);
+    try {
+      dealer.connect(this.cacheAddress);
+      poller.register(requests, ZMQ.Poller.POLLIN);
+      poller.register(dealer, ZMQ.Poller.POLLIN);
+
+      loop:
+      while (true) {
+        // The poller only reports sockets that became readable since it last looked, and sending on the dealer can
+        // take the wake up meant for a reply, so both sockets are checked directly before waiting.
+        poller.poll(UploaderCacheThread.readable(requests) || UploaderCacheThread.readable(dealer) ? 0 : -1);
+
+        // Replies first, so futures complete as early as possible.
+        if (UploaderCacheThread.readable(dealer))
+          receiveReplies(dealer);
+
+        if (UploaderCacheThread.readable(requests)) {
+          byte[] id;
+          while ((id = requests.recv(ZMQ.DONTWAIT)) != null) {
+            if (id.length == 0)
+              break loop;
+            final byte[] request = requests.recv();
+            dealer.sendMore(id);
+            dealer.sendMore(new byte[0]);
+            dealer.send(request);
+          }
+        }
+      }
+
+      // Collect whatever the cache had already answered.
+      receiveReplies(dealer);
+    } finally {
+      failPending("Cache client closed before the cache replied");
+
+      Logger.getLogger(UploaderCacheClient.class.getName()).log(
+          UploaderService.SOCKET_LOGGING_LEVEL, "Closing cache client sockets.");
+      this.context.destroySocket(dealer);
+      this.context.destroySocket(requests);
+    }
+  }
+
+  /**
+   * Complete the futures of every reply waiting on the socket.
+   */
+  private void receiveReplies(final ZMQ.Socket dealer) {
+    byte[] id;
+    while ((id = dealer.recv(ZMQ.DONTWAIT)) != null) {
+      dealer.recv(); // The empty delimiter.
+      final byte[] reply = dealer.recv();
+      final CompletableFuture<byte[]> f = this.pending.remove(ByteBuffer.wrap(id).getLong());
+      if (f != null)
+        f.complete(reply);
+    }
+  }
+
+  /**
+   * Fail every request still waiting for a reply.
+   */
+  private void failPending(final String reason) {
+    for (Long id : this.pending.keySet()) {
+      final CompletableFuture<byte[]> f = this.pending.remove(id);
+      if (f != null)
+        f.completeExceptionally(new IllegalStateException(reason));
+    }
+  }
+
+  /**
+   * Stop sending requests. Requests the cache has already answered are completed, and any others, including requests
+   * made while closing, fail.
+   */
+  @Override
+  public void close() throws IOException {
+    this.sendLock.writeLock().lock();
+    try {
+      if (this.closed)
+        return;
+      this.closed = true;
+    } finally {
+      this.sendLock.writeLock().unlock();
+    }
+
+    this.requestSockets.send(0, STOP);
+    try {
+      this.thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted closing the cache client", e);
+    }
+    // The thread may have stopped before it read requests sent just ahead of the stop.
+    failPending("Cache client closed before the request was sent");
+    this.requestSockets.close();
+  }
+}
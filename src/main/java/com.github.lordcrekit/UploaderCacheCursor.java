@@ -0,0 +1,59 @@
+package com.github.lordcrekit;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+/**
+ * Iterates an export of the cache a page at a time, so only one page is held in memory however large the cache is.
+ * <p>
+ * Each page is asked for by the last path of the previous one rather than by position, so the cache can change while
+ * it is being read. Every path that is stored for the whole iteration is returned exactly once; paths added or removed
+ * meanwhile may or may not be.
+ *
+ * @see UploaderCache#getEntries(Path, boolean, boolean)
+ */
+final class UploaderCacheCursor implements Iterator<UploaderCacheEntry> {
+
+  private final BiFunction<Path, Integer, List<UploaderCacheEntry>> pages;
+  private final int pageSize;
+
+  private List<UploaderCacheEntry> page;
+  private int index = 0;
+
+  /**
+   * @param pages
+   *     Reads the page of at most the given number of entries after the given path, or from the beginning if the path
+   *     is <code>null</code>.
+   * @param pageSize
+   *     How many entries to ask for at once. The cache thread never replies with more than
+   *     {@link UploaderCacheThread#MAX_PAGE_SIZE}, so more is not asked for; a full page would look like the last.
+   */
+  UploaderCacheCursor(final BiFunction<Path, Integer, List<UploaderCacheEntry>> pages, final int pageSize) {
+    this.pages = pages;
+    this.pageSize = Math.min(Math.max(pageSize, 1), UploaderCacheThread.MAX_PAGE_SIZE);
+    this.page = pages.apply(null, this.pageSize);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (this.index < this.page.size())
+      return true;
+    if (this.page.size() < this.pageSize)
+      return false;
+
+    // A full page might not have been the last.
+    this.page = this.pages.apply(this.page.get(this.page.size() - 1).File, this.pageSize);
+    this.index = 0;
+    return !this.page.isEmpty();
+  }
+
+  @Override
+  public UploaderCacheEntry next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    return this.page.get(this.index++);
+  }
+}
@@ -0,0 +1,89 @@
+package com.github.lordcrekit;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least recently used cache of whether paths are ignored or frozen.
+ * <p>
+ * Those decisions only depend on the ignored and frozen patterns, so each decision remembers the
+ * {@link UploaderCacheInformation#patternGeneration()} it was made at, and is thrown away when a FREEZE or IGNORE has
+ * changed the patterns since.
+ * <p>
+ * Thread safe. Decisions are made outside of any lock, so concurrent readers only contend on the map itself.
+ */
+final class UploaderCacheDecisionCache {
+
+  private static final class Decision {
+    final long generation;
+    final boolean ignored;
+    final long timeFrozen;
+
+    Decision(final long generation, final boolean ignored, final long timeFrozen) {
+      this.generation = generation;
+      this.ignored = ignored;
+      this.timeFrozen = timeFrozen;
+    }
+  }
+
+  private final Map<Path, Decision> decisions;
+
+  final AtomicLong Hits = new AtomicLong();
+  final AtomicLong Misses = new AtomicLong();
+
+  /**
+   * @param capacity
+   *     The most decisions to remember.
+   */
+  UploaderCacheDecisionCache(final int capacity) {
+    this.decisions = new LinkedHashMap<Path, Decision>(Math.min(capacity, 1024), 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Path, Decision> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Get the decision for a path, making it if it is not cached or out of date.
+   *
+   * @param cache
+   *     The information to decide with.
+   * @param path
+   *     The path.
+   * @return The decision.
+   */
+  private Decision decide(final UploaderCacheInformation cache, final Path path) {
+    final long generation = cache.patternGeneration();
+    Decision d;
+    synchronized (this.decisions) {
+      d = this.decisions.get(path);
+    }
+    if (d != null && d.generation == generation) {
+      this.Hits.incrementAndGet();
+      return d;
+    }
+
+    this.Misses.incrementAndGet();
+    d = new Decision(generation, cache.isIgnored(path), cache.isFrozen(path));
+    synchronized (this.decisions) {
+      this.decisions.put(path, d);
+    }
+    return d;
+  }
+
+  /**
+   * @return The file information of a path, using cached decisions where possible.
+   */
+  UploaderCacheFileInfo getFileInfo(final UploaderCacheInformation cache, final Path path) {
+    final Decision d = decide(cache, path);
+    return new UploaderCacheFileInfo(
+        d.ignored,
+        d.timeFrozen,
+        cache.TimestampsWhenFrozen.getLong(path, -1),
+        cache.Timestamps.getLong(path, -1),
+        cache.DestinationTimestamps.uploaded(path));
+  }
+}
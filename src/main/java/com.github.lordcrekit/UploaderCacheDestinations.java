@@ -0,0 +1,142 @@
+package com.github.lordcrekit;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The time each file was last uploaded to each destination.
+ * <p>
+ * Each destination is stored once, and known by its index in the order destinations were first seen, so cache files
+ * refer to destinations by index rather than repeating their URIs. Each destination's timestamps are an
+ * {@link UploaderCachePathTrie} of their own, and each file's destinations are indexed by the file, so looking a file
+ * up does not search every destination.
+ * <p>
+ * Not thread safe.
+ *
+ * @see UploaderCacheInformation#DestinationTimestamps
+ */
+final class UploaderCacheDestinations {
+
+  private final List<URI> destinations = new ArrayList<>();
+  private final Map<URI, Integer> indexes = new HashMap<>();
+  private final List<UploaderCachePathTrie> timestamps = new ArrayList<>();
+
+  /**
+   * The indexes of the destinations each file has a time for, in the order it was first uploaded to them.
+   */
+  private final Map<Path, int[]> byFile = new HashMap<>();
+
+  /**
+   * @param destination
+   *     A destination.
+   * @return Its index, adding it if it has not been seen before.
+   */
+  int intern(final URI destination) {
+    final URI d = destination.normalize();
+    final Integer index = this.indexes.get(d);
+    if (index != null)
+      return index;
+
+    this.destinations.add(d);
+    this.timestamps.add(new UploaderCachePathTrie());
+    this.indexes.put(d, this.destinations.size() - 1);
+    return this.destinations.size() - 1;
+  }
+
+  /**
+   * @return The number of destinations.
+   */
+  int size() {
+    return this.destinations.size();
+  }
+
+  /**
+   * @return The destination with an index.
+   */
+  URI get(final int index) {
+    return this.destinations.get(index);
+  }
+
+  /**
+   * @return The time each file was last uploaded to the destination with an index.
+   */
+  UploaderCachePathTrie timestamps(final int index) {
+    return this.timestamps.get(index);
+  }
+
+  void putLong(final Path file, final URI destination, final long timestamp) {
+    putLong(file, intern(destination), timestamp);
+  }
+
+  /**
+   * @param index
+   *     The index of the destination, from {@link #intern(URI)}.
+   */
+  void putLong(final Path file, final int index, final long timestamp) {
+    this.timestamps.get(index).putLong(file, timestamp);
+
+    final int[] indexes = this.byFile.get(file);
+    if (indexes == null) {
+      this.byFile.put(file, new int[]{index});
+    } else {
+      for (int i : indexes)
+        if (i == index)
+          return;
+      final int[] more = Arrays.copyOf(indexes, indexes.length + 1);
+      more[indexes.length] = index;
+      this.byFile.put(file, more);
+    }
+  }
+
+  /**
+   * Set the time of a file for every destination it already has one for, so an update that does not say where the
+   * file was uploaded to is not hidden by older times for each destination.
+   */
+  void putAll(final Path file, final long timestamp) {
+    final int[] indexes = this.byFile.get(file);
+    if (indexes != null)
+      for (int i : indexes)
+        this.timestamps.get(i).putLong(file, timestamp);
+  }
+
+  /**
+   * @return When the file was last uploaded to the destination, or <code>absent</code> if it never was.
+   */
+  long getLong(final Path file, final URI destination, final long absent) {
+    final Integer index = this.indexes.get(destination.normalize());
+    return index == null ? absent : this.timestamps.get(index).getLong(file, absent);
+  }
+
+  /**
+   * @return Every destination the file has been uploaded to, with when it last was.
+   */
+  Map<URI, Long> uploaded(final Path file) {
+    final int[] indexes = this.byFile.get(file);
+    if (indexes == null)
+      return Collections.<URI, Long>emptyMap();
+
+    final Map<URI, Long> uploaded = new LinkedHashMap<>(indexes.length * 2);
+    for (int i : indexes)
+      uploaded.put(this.destinations.get(i), this.timestamps.get(i).getLong(file, -1));
+    return uploaded;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    return o instanceof UploaderCacheDestinations
+        && this.destinations.equals(((UploaderCacheDestinations) o).destinations)
+        && this.timestamps.equals(((UploaderCacheDestinations) o).timestamps);
+  }
+
+  @Override
+  public int hashCode() {
+    return this.destinations.hashCode();
+  }
+}
@@ -0,0 +1,132 @@
+package com.github.lordcrekit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The stored timestamps of one path, as read by an export of the cache.
+ *
+ * @see UploaderCache#getEntries(Path, boolean, boolean)
+ */
+final class UploaderCacheEntry {
+
+  final Path File;
+
+  /**
+   * The last Timestamp of the file when it was last uploaded, or <code>-1</code> if it was never uploaded or the
+   * export left it out.
+   */
+  final long TimeUploaded;
+
+  /**
+   * The timestamp on the file when it was frozen, or <code>-1</code> if it was never frozen or the export left it out.
+   */
+  final long TimestampWhenFrozen;
+
+  UploaderCacheEntry(final Path file, final long timeUploaded, final long timestampWhenFrozen) {
+    this.File = file;
+    this.TimeUploaded = timeUploaded;
+    this.TimestampWhenFrozen = timestampWhenFrozen;
+  }
+
+  /**
+   * @param entries
+   *     A page of entries.
+   * @param binary
+   *     If the binary protocol should be used, rather than JSON.
+   * @return The encoded page.
+   */
+  static byte[] encodePage(final List<UploaderCacheEntry> entries, final boolean binary) {
+    if (!binary) {
+      final JSONArray array = new JSONArray();
+      for (UploaderCacheEntry e : entries) {
+        final JSONObject obj = new JSONObject();
+        obj.put("f", e.File.toString());
+        obj.put("t", e.TimeUploaded);
+        obj.put("ft", e.TimestampWhenFrozen);
+        array.put(obj);
+      }
+      return array.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    final byte[][] paths = new byte[entries.size()][];
+    int size = 5;
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = entries.get(i).File.toString().getBytes(StandardCharsets.UTF_8);
+      size += 4 + paths[i].length + 16;
+    }
+
+    final ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.put(UploaderMessage.VERSION);
+    buf.putInt(paths.length);
+    for (int i = 0; i < paths.length; i++)
+      buf.putInt(paths[i].length)
+          .put(paths[i])
+          .putLong(entries.get(i).TimeUploaded)
+          .putLong(entries.get(i).TimestampWhenFrozen);
+    return buf.array();
+  }
+
+  /**
+   * @param bytes
+   *     A page encoded by {@link #encodePage(List, boolean)}.
+   * @return The entries, in order.
+   * @throws IllegalArgumentException
+   *     If the page is malformed.
+   */
+  static List<UploaderCacheEntry> decodePage(final byte[] bytes) {
+    if (bytes.length == 0 || bytes[0] != UploaderMessage.VERSION) {
+      final JSONArray array = new JSONArray(new String(bytes, StandardCharsets.UTF_8));
+      final List<UploaderCacheEntry> entries = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        final JSONObject obj = array.getJSONObject(i);
+        entries.add(new UploaderCacheEntry(Paths.get(obj.getString("f")), obj.getLong("t"), obj.getLong("ft")));
+      }
+      return entries;
+    }
+
+    final int[] pos = {1};
+    final int count = UploaderMessage.readInt(bytes, pos[0]);
+    pos[0] += 4;
+    final List<UploaderCacheEntry> entries = new ArrayList<>(Math.min(count, bytes.length / 20));
+    for (int i = 0; i < count; i++) {
+      final String path = UploaderMessage.readString(bytes, pos);
+      final long timeUploaded = UploaderMessage.readLong(bytes, pos[0]);
+      final long timestampWhenFrozen = UploaderMessage.readLong(bytes, pos[0] + 8);
+      pos[0] += 16;
+      entries.add(new UploaderCacheEntry(Paths.get(path), timeUploaded, timestampWhenFrozen));
+    }
+    return entries;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof UploaderCacheEntry))
+      return false;
+    final UploaderCacheEntry e = (UploaderCacheEntry) o;
+    return this.File.equals(e.File)
+        && this.TimeUploaded == e.TimeUploaded
+        && this.TimestampWhenFrozen == e.TimestampWhenFrozen;
+  }
+
+  @Override
+  public int hashCode() {
+    return this.File.hashCode() ^ Long.hashCode(this.TimeUploaded) ^ Long.hashCode(this.TimestampWhenFrozen);
+  }
+
+  @Override
+  public String toString() {
+    return UploaderCacheEntry.class.getSimpleName()
+        + "(" + File
+        + ", t=" + TimeUploaded
+        + ", ft=" + TimestampWhenFrozen
+        + ")";
+  }
+}
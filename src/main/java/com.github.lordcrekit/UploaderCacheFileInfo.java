@@ -1,8 +1,18 @@
 package com.github.lordcrekit;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 final class UploaderCacheFileInfo {
 
@@ -26,25 +36,39 @@ final class UploaderCacheFileInfo {
    */
   final long TimeUploaded;
 
+  /**
+   * The timestamp on the file when it was last uploaded to each destination it has been uploaded to.
+   */
+  final Map<URI, Long> TimesUploadedTo;
+
   UploaderCacheFileInfo(
       final boolean ignored,
       final long timeFrozen,
       final long timestampWhenFrozen,
       final long timeUploaded) {
+    this(ignored, timeFrozen, timestampWhenFrozen, timeUploaded, Collections.<URI, Long>emptyMap());
+  }
+
+  UploaderCacheFileInfo(
+      final boolean ignored,
+      final long timeFrozen,
+      final long timestampWhenFrozen,
+      final long timeUploaded,
+      final Map<URI, Long> timesUploadedTo) {
 
     this.Ignored = ignored;
     this.TimeFrozen = timeFrozen;
     this.TimestampWhenFrozen = timestampWhenFrozen;
     this.TimeUploaded = timeUploaded;
+    this.TimesUploadedTo = timesUploadedTo;
   }
 
   UploaderCacheFileInfo(final UploaderCacheInformation cache, final Path path) {
     this.Ignored = cache.isIgnored(path);
     this.TimeFrozen = cache.isFrozen(path);
-    this.TimestampWhenFrozen = cache.TimestampsWhenFrozen.containsKey(path)
-        ? cache.TimestampsWhenFrozen.get(path) : -1;
-    this.TimeUploaded = cache.Timestamps.containsKey(path)
-        ? cache.Timestamps.get(path) : -1;
+    this.TimestampWhenFrozen = cache.TimestampsWhenFrozen.getLong(path, -1);
+    this.TimeUploaded = cache.Timestamps.getLong(path, -1);
+    this.TimesUploadedTo = cache.DestinationTimestamps.uploaded(path);
   }
 
   UploaderCacheFileInfo(final JSONObject json) {
@@ -60,6 +84,152 @@ final class UploaderCacheFileInfo {
     this.TimeUploaded = json.has("t")
         ? json.getLong("t")
         : -1;
+
+    final Map<URI, Long> timesUploadedTo = new LinkedHashMap<>();
+    final JSONObject destObj = json.has("d") ? json.getJSONObject("d") : new JSONObject();
+    for (Iterator<String> key = destObj.keys(); key.hasNext(); ) {
+      final String d = key.next();
+      timesUploadedTo.put(URI.create(d), destObj.getLong(d));
+    }
+    this.TimesUploadedTo = timesUploadedTo.isEmpty() ? Collections.<URI, Long>emptyMap() : timesUploadedTo;
+  }
+
+  /**
+   * A file with no times for any destination was only ever recorded without them, so its {@link #TimeUploaded} stands
+   * for every destination.
+   *
+   * @param destination
+   *     A destination.
+   * @return The timestamp on the file when it was last uploaded to the destination, or <code>-1</code> if it never was.
+   */
+  long timeUploadedTo(final URI destination) {
+    if (this.TimesUploadedTo.isEmpty())
+      return this.TimeUploaded;
+    final Long t = this.TimesUploadedTo.get(destination.normalize());
+    return t == null ? -1 : t;
+  }
+
+  /**
+   * @param bytes
+   *     File information encoded by {@link #toBytes()} or {@link #toJSON()}.
+   * @return The file information.
+   */
+  static UploaderCacheFileInfo decode(final byte[] bytes) {
+    if (bytes.length == 0 || bytes[0] != UploaderMessage.VERSION)
+      return new UploaderCacheFileInfo(new JSONObject(new String(bytes, StandardCharsets.UTF_8)));
+    return read(ByteBuffer.wrap(bytes, 1, bytes.length - 1));
+  }
+
+  /**
+   * @return The binary protocol's encoding of this.
+   */
+  byte[] toBytes() {
+    final List<byte[]> destinations = encodeDestinations(this);
+    final ByteBuffer buf = ByteBuffer.allocate(1 + size(destinations));
+    buf.put(UploaderMessage.VERSION);
+    write(buf, this, destinations);
+    return buf.array();
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Binary encoding">
+
+  /**
+   * Each file's information is its flags and times, then an <code>int</code> count of destinations followed by each
+   * one's URI, as an <code>int</code> byte length and that much UTF-8, and its time.
+   */
+  private static List<byte[]> encodeDestinations(final UploaderCacheFileInfo info) {
+    final List<byte[]> destinations = new ArrayList<>(info.TimesUploadedTo.size());
+    for (URI d : info.TimesUploadedTo.keySet())
+      destinations.add(d.toString().getBytes(StandardCharsets.UTF_8));
+    return destinations;
+  }
+
+  private static int size(final List<byte[]> destinations) {
+    int size = 25 + 4;
+    for (byte[] d : destinations)
+      size += 4 + d.length + 8;
+    return size;
+  }
+
+  private static void write(final ByteBuffer buf, final UploaderCacheFileInfo info, final List<byte[]> destinations) {
+    buf.put((byte) (info.Ignored ? 1 : 0))
+        .putLong(info.TimeFrozen)
+        .putLong(info.TimestampWhenFrozen)
+        .putLong(info.TimeUploaded)
+        .putInt(destinations.size());
+    final Iterator<Long> times = info.TimesUploadedTo.values().iterator();
+    for (byte[] d : destinations)
+      buf.putInt(d.length).put(d).putLong(times.next());
+  }
+
+  private static UploaderCacheFileInfo read(final ByteBuffer buf) {
+    final boolean ignored = buf.get() != 0;
+    final long timeFrozen = buf.getLong();
+    final long timestampWhenFrozen = buf.getLong();
+    final long timeUploaded = buf.getLong();
+    final int count = buf.getInt();
+    final Map<URI, Long> timesUploadedTo = count == 0
+        ? Collections.<URI, Long>emptyMap()
+        : new LinkedHashMap<>(count * 2);
+    for (int i = 0; i < count; i++) {
+      final byte[] d = new byte[buf.getInt()];
+      buf.get(d);
+      timesUploadedTo.put(URI.create(new String(d, StandardCharsets.UTF_8)), buf.getLong());
+    }
+    return new UploaderCacheFileInfo(ignored, timeFrozen, timestampWhenFrozen, timeUploaded, timesUploadedTo);
+  }
+  // </editor-fold>
+
+  /**
+   * @param infos
+   *     The file information of several files.
+   * @param binary
+   *     If the binary protocol should be used, rather than JSON.
+   * @return The encoded file information, in order.
+   */
+  static byte[] encodeAll(final List<UploaderCacheFileInfo> infos, final boolean binary) {
+    if (!binary) {
+      final JSONArray array = new JSONArray();
+      for (UploaderCacheFileInfo info : infos)
+        array.put(info.toJSON());
+      return array.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    final List<List<byte[]>> destinations = new ArrayList<>(infos.size());
+    int size = 5;
+    for (UploaderCacheFileInfo info : infos) {
+      destinations.add(encodeDestinations(info));
+      size += size(destinations.get(destinations.size() - 1));
+    }
+
+    final ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.put(UploaderMessage.VERSION);
+    buf.putInt(infos.size());
+    for (int i = 0; i < infos.size(); i++)
+      write(buf, infos.get(i), destinations.get(i));
+    return buf.array();
+  }
+
+  /**
+   * @param bytes
+   *     File information encoded by {@link #encodeAll(List, boolean)}.
+   * @return The file information, in order.
+   */
+  static List<UploaderCacheFileInfo> decodeAll(final byte[] bytes) {
+    if (bytes.length == 0 || bytes[0] != UploaderMessage.VERSION) {
+      final JSONArray array = new JSONArray(new String(bytes, StandardCharsets.UTF_8));
+      final List<UploaderCacheFileInfo> infos = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++)
+        infos.add(new UploaderCacheFileInfo(array.getJSONObject(i)));
+      return infos;
+    }
+
+    final ByteBuffer buf = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+    final int count = buf.getInt();
+    final List<UploaderCacheFileInfo> infos = new ArrayList<>(count);
+    for (int i = 0; i < count; i++)
+      infos.add(read(buf));
+    return infos;
   }
 
   public JSONObject toJSON() {
@@ -72,6 +242,12 @@ final class UploaderCacheFileInfo {
       obj.put("ft", this.TimestampWhenFrozen);
     if (this.TimeUploaded > 0)
       obj.put("t", this.TimeUploaded);
+    if (!this.TimesUploadedTo.isEmpty()) {
+      final JSONObject destObj = new JSONObject();
+      for (Map.Entry<URI, Long> e : this.TimesUploadedTo.entrySet())
+        destObj.put(e.getKey().toString(), e.getValue());
+      obj.put("d", destObj);
+    }
 
     return obj;
   }
@@ -85,7 +261,8 @@ final class UploaderCacheFileInfo {
     return this.Ignored == o.Ignored
         && this.TimeFrozen == o.TimeFrozen
         && this.TimestampWhenFrozen == o.TimestampWhenFrozen
-        && this.TimeUploaded == o.TimeUploaded;
+        && this.TimeUploaded == o.TimeUploaded
+        && this.TimesUploadedTo.equals(o.TimesUploadedTo);
   }
 
   @Override
@@ -95,6 +272,7 @@ final class UploaderCacheFileInfo {
         + ", f=" + TimeFrozen
         + ", ft=" + TimestampWhenFrozen
         + ", t=" + TimeUploaded
+        + ", d=" + TimesUploadedTo
         + ")";
   }
 }
@@ -0,0 +1,144 @@
+package com.github.lordcrekit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the timestamps of the files a freeze pattern matches, walking the directories in parallel.
+ * <p>
+ * Each directory is a fork join task, and its subdirectories are forked as tasks of their own. A directory is only
+ * entered if some path under it could still match: the pattern is matched against the directory's path followed by a
+ * separator, and if the matcher neither matches nor {@link Matcher#hitEnd() hit the end} of the input, no longer path
+ * can match either. Entries that can not match are skipped without being looked at on disk. Like
+ * {@link Files#walk(Path, java.nio.file.FileVisitOption...)}, symbolic links are not followed.
+ *
+ * @see UploaderCacheInformation#findFrozenTimestamps(Path, Pattern)
+ */
+final class UploaderCacheFreezeWalk extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Shared by every cache. Its threads are daemons, so an unfinished walk does not keep the JVM alive.
+   */
+  private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  private final Pattern pattern;
+  private final Path directory;
+  private final Map<Path, Long> found;
+
+  private UploaderCacheFreezeWalk(final Pattern pattern, final Path directory, final Map<Path, Long> found) {
+    this.pattern = pattern;
+    this.directory = directory;
+    this.found = found;
+  }
+
+  /**
+   * Walk a root, blocking until it is done.
+   *
+   * @param root
+   *     The directory to search.
+   * @param pattern
+   *     The freeze pattern.
+   * @return The timestamp of every matching path.
+   * @throws IOException
+   *     If the root can not be read.
+   */
+  static Map<Path, Long> walk(final Path root, final Pattern pattern) throws IOException {
+    final BasicFileAttributes attributes = Files.readAttributes(
+        root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+
+    final Map<Path, Long> found = new ConcurrentHashMap<>();
+    final Matcher m = pattern.matcher(root.toString());
+    if (m.matches())
+      found.put(root, timestamp(root, attributes));
+    if (attributes.isDirectory())
+      POOL.invoke(new UploaderCacheFreezeWalk(pattern, root, found));
+    return found;
+  }
+
+  /**
+   * Walk a root in the background.
+   *
+   * @param root
+   *     The directory to search.
+   * @param pattern
+   *     The freeze pattern.
+   * @return The timestamp of every matching path, once the walk is done.
+   */
+  static CompletableFuture<Map<Path, Long>> start(final Path root, final Pattern pattern) {
+    final CompletableFuture<Map<Path, Long>> result = new CompletableFuture<>();
+    POOL.execute(() -> {
+      try {
+        result.complete(walk(root, pattern));
+      } catch (IOException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+
+  @Override
+  protected void compute() {
+    final List<UploaderCacheFreezeWalk> subdirectories = new ArrayList<>();
+    final Matcher m = this.pattern.matcher("");
+
+    try (final DirectoryStream<Path> entries = Files.newDirectoryStream(this.directory)) {
+      for (Path p : entries) {
+        final String s = p.toString();
+        final boolean matches = m.reset(s).matches();
+        final boolean descend = canMatchUnder(m, s);
+        if (!matches && !descend)
+          continue;
+
+        try {
+          final BasicFileAttributes attributes = Files.readAttributes(
+              p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          if (matches)
+            this.found.put(p, timestamp(p, attributes));
+          if (descend && attributes.isDirectory())
+            subdirectories.add(new UploaderCacheFreezeWalk(this.pattern, p, this.found));
+        } catch (IOException e) {
+          Logger.getLogger(UploaderCacheFreezeWalk.class.getName()).log(
+              Level.WARNING, "Failed to log date of frozen file " + s, e);
+        }
+      }
+    } catch (IOException e) {
+      Logger.getLogger(UploaderCacheFreezeWalk.class.getName()).log(
+          Level.WARNING, "Failed to search " + this.directory + " for frozen files", e);
+    }
+
+    invokeAll(subdirectories);
+  }
+
+  /**
+   * @return If a path under the given one could match the matcher's pattern.
+   */
+  private static boolean canMatchUnder(final Matcher m, final String path) {
+    final String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+    return m.reset(prefix).matches() || m.hitEnd();
+  }
+
+  private static long timestamp(final Path p, final BasicFileAttributes attributes) throws IOException {
+    // A link's own attributes were read, but the timestamp of what it points to is what gets uploaded.
+    return attributes.isSymbolicLink()
+        ? Files.getLastModifiedTime(p).toMillis()
+        : attributes.lastModifiedTime().toMillis();
+  }
+}
@@ -3,14 +3,23 @@ package com.github.lordcrekit;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import org.json.JSONTokener;
+
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -22,39 +31,46 @@ import java.util.regex.Pattern;
 class UploaderCacheInformation {
 
   /**
-   *
+   * Patterns of files that are never uploaded.
    */
-  final List<Pattern> IgnoredPatterns;
+  final UploaderCachePatternList IgnoredPatterns;
 
   /**
-   *
+   * Patterns of files that are frozen, and the time they were frozen at. The first matching pattern applies.
    */
-  final Map<Pattern, Long> FrozenPatterns;
+  final UploaderCachePatternMap FrozenPatterns;
 
   /**
    * The timestamp on a file when it was frozen.
    */
-  final Map<Path, Long> TimestampsWhenFrozen;
+  final UploaderCachePathTrie TimestampsWhenFrozen;
 
   /**
    * The timestamp on files that have been uploaded.
    */
-  final Map<Path, Long> Timestamps;
+  final UploaderCachePathTrie Timestamps;
+
+  /**
+   * The timestamp on files when they were last uploaded to each destination. {@link #Timestamps} is the most recent of
+   * them, as well as holding the times recorded without a destination.
+   */
+  final UploaderCacheDestinations DestinationTimestamps;
 
   UploaderCacheInformation() {
-    this.IgnoredPatterns = new ArrayList<>();
-    this.FrozenPatterns = new LinkedHashMap<>();
-    this.TimestampsWhenFrozen = new HashMap<>();
-    this.Timestamps = new HashMap<>();
+    this.IgnoredPatterns = new UploaderCachePatternList();
+    this.FrozenPatterns = new UploaderCachePatternMap();
+    this.TimestampsWhenFrozen = new UploaderCachePathTrie();
+    this.Timestamps = new UploaderCachePathTrie();
+    this.DestinationTimestamps = new UploaderCacheDestinations();
   }
 
   UploaderCacheInformation(final JSONObject json) {
-    this.IgnoredPatterns = new ArrayList<>();
+    this.IgnoredPatterns = new UploaderCachePatternList();
     final JSONArray ignoreAr = json.has("i") ? json.getJSONArray("i") : new JSONArray();
     for (int i = 0; i < ignoreAr.length(); i++)
       this.IgnoredPatterns.add(Pattern.compile(ignoreAr.getString(i)));
 
-    this.FrozenPatterns = new LinkedHashMap<>();
+    this.FrozenPatterns = new UploaderCachePatternMap();
     final JSONObject frozenObj = json.has("f") ? json.getJSONObject("f") : new JSONObject();
     for (Iterator<String> key = frozenObj.keys(); key.hasNext(); ) {
       final String p = key.next();
@@ -62,20 +78,33 @@ class UploaderCacheInformation {
       this.FrozenPatterns.put(Pattern.compile(p), t);
     }
 
-    this.TimestampsWhenFrozen = new HashMap<>();
+    this.TimestampsWhenFrozen = new UploaderCachePathTrie();
     final JSONObject frozenTimeObj = json.has("ft") ? json.getJSONObject("ft") : new JSONObject();
     for (Iterator<String> key = frozenTimeObj.keys(); key.hasNext(); ) {
       final String p = key.next();
       final long t = frozenTimeObj.getLong(p);
-      this.TimestampsWhenFrozen.put(Paths.get(p), t);
+      this.TimestampsWhenFrozen.putLong(Paths.get(p), t);
     }
 
-    this.Timestamps = new HashMap<>();
+    this.Timestamps = new UploaderCachePathTrie();
     final JSONObject timeObj = json.has("t") ? json.getJSONObject("t") : new JSONObject();
     for (Iterator<String> key = timeObj.keys(); key.hasNext(); ) {
       final String p = key.next();
       final long t = timeObj.getLong(p);
-      this.Timestamps.put(Paths.get(p), t);
+      this.Timestamps.putLong(Paths.get(p), t);
+    }
+
+    // Destinations are listed once, and their timestamps are in the same order.
+    this.DestinationTimestamps = new UploaderCacheDestinations();
+    final JSONArray destAr = json.has("d") ? json.getJSONArray("d") : new JSONArray();
+    final JSONArray destTimeAr = json.has("dt") ? json.getJSONArray("dt") : new JSONArray();
+    for (int i = 0; i < destAr.length(); i++) {
+      final URI destination = URI.create(destAr.getString(i));
+      final JSONObject destTimeObj = destTimeAr.getJSONObject(i);
+      for (Iterator<String> key = destTimeObj.keys(); key.hasNext(); ) {
+        final String p = key.next();
+        this.DestinationTimestamps.putLong(Paths.get(p), destination, destTimeObj.getLong(p));
+      }
     }
   }
 
@@ -86,17 +115,108 @@ class UploaderCacheInformation {
    * @throws IOException
    */
   final void addFrozenTimestamps(final Path root, final Pattern pattern) throws IOException {
-    Files.walk(root).forEach((Path p) -> {
-      final Matcher m = pattern.matcher(p.toString());
-      if (m.matches()) {
-        try {
-          TimestampsWhenFrozen.put(p, Files.getLastModifiedTime(p).toMillis());
-        } catch (IOException e) {
-          Logger.getLogger(UploaderCacheInformation.class.getName()).log(
-              Level.WARNING, "Failed to log date of frozen file " + p.toString(), e);
+    this.TimestampsWhenFrozen.putAll(findFrozenTimestamps(root, pattern));
+  }
+
+  /**
+   * Find the current timestamps of every file under a root that a freeze pattern matches.
+   *
+   * @param root
+   *     The directory to search.
+   * @param pattern
+   *     The freeze pattern.
+   * @return The timestamp of every matching file.
+   * @throws IOException
+   *     If the root can not be walked.
+   */
+  static Map<Path, Long> findFrozenTimestamps(final Path root, final Pattern pattern) throws IOException {
+    return UploaderCacheFreezeWalk.walk(root, pattern);
+  }
+
+  /**
+   * Apply a single change record, as written to the {@link UploaderCacheJournal}. Applying the same record twice has
+   * the same effect as applying it once, so a journal can safely be replayed over a snapshot that already contains
+   * some of its records.
+   *
+   * @param change
+   *     The change. Its <code>"c"</code> is the {@link UploaderCacheThread} command that caused it.
+   */
+  final void apply(final JSONObject change) {
+    switch (change.getInt("c")) {
+      case UploaderCacheThread.FREEZE_COMMAND: {
+        final String pattern = change.getString("p");
+        final long timestamp = change.getLong("t");
+        Pattern key = null;
+        for (Pattern p : this.FrozenPatterns.keySet())
+          if (p.pattern().equals(pattern)) {
+            key = p;
+            break;
+          }
+        this.FrozenPatterns.put(key != null ? key : Pattern.compile(pattern), timestamp);
+
+        final JSONObject frozenTimes = change.has("ft") ? change.getJSONObject("ft") : new JSONObject();
+        for (Iterator<String> it = frozenTimes.keys(); it.hasNext(); ) {
+          final String p = it.next();
+          this.TimestampsWhenFrozen.putLong(Paths.get(p), frozenTimes.getLong(p));
+        }
+        break;
+      }
+
+      case UploaderCacheThread.IGNORE_COMMAND: {
+        final String pattern = change.getString("p");
+        for (Pattern p : this.IgnoredPatterns)
+          if (p.pattern().equals(pattern))
+            return;
+        this.IgnoredPatterns.add(Pattern.compile(pattern));
+        break;
+      }
+
+      case UploaderCacheThread.UPDATE_COMMAND: {
+        final Path p = Paths.get(change.getString("f"));
+        this.Timestamps.putLong(p, change.getLong("t"));
+        if (change.has("d"))
+          this.DestinationTimestamps.putLong(p, URI.create(change.getString("d")), change.getLong("t"));
+        else
+          this.DestinationTimestamps.putAll(p, change.getLong("t"));
+        break;
+      }
+
+      case UploaderCacheThread.UPDATE_ALL_COMMAND: {
+        // Updates for each destination, keyed by the destination so it is only written once.
+        final Set<String> withDestination = new HashSet<>();
+        final JSONObject destinations = change.has("d") ? change.getJSONObject("d") : new JSONObject();
+        for (Iterator<String> it = destinations.keys(); it.hasNext(); ) {
+          final String d = it.next();
+          final URI destination = URI.create(d);
+          final JSONObject destUpdates = destinations.getJSONObject(d);
+          for (Iterator<String> pit = destUpdates.keys(); pit.hasNext(); ) {
+            final String p = pit.next();
+            this.DestinationTimestamps.putLong(Paths.get(p), destination, destUpdates.getLong(p));
+            withDestination.add(p);
+          }
         }
+
+        // Every file's latest time. Those updated without a destination also update each destination they have.
+        final JSONObject updates = change.getJSONObject("f");
+        for (Iterator<String> it = updates.keys(); it.hasNext(); ) {
+          final String p = it.next();
+          this.Timestamps.putLong(Paths.get(p), updates.getLong(p));
+          if (!withDestination.contains(p))
+            this.DestinationTimestamps.putAll(Paths.get(p), updates.getLong(p));
+        }
+        break;
       }
-    });
+
+      default:
+        throw new IllegalArgumentException("Not a change record: " + change);
+    }
+  }
+
+  /**
+   * @return A number that changes whenever the ignored or frozen patterns change.
+   */
+  final long patternGeneration() {
+    return this.IgnoredPatterns.generation() + this.FrozenPatterns.generation();
   }
 
   /**
@@ -105,12 +225,7 @@ class UploaderCacheInformation {
    * @return
    */
   final boolean isIgnored(Path path) {
-    for (Pattern pattern : this.IgnoredPatterns) {
-      final Matcher m = pattern.matcher(path.toString());
-      if (m.matches())
-        return true;
-    }
-    return false;
+    return this.IgnoredPatterns.anyMatch(path.toString());
   }
 
   /**
@@ -119,12 +234,7 @@ class UploaderCacheInformation {
    * @return
    */
   final long isFrozen(Path path) {
-    for (Map.Entry<Pattern, Long> e : this.FrozenPatterns.entrySet()) {
-      final Matcher m = e.getKey().matcher(path.toString());
-      if (m.matches())
-        return e.getValue();
-    }
-    return -1;
+    return this.FrozenPatterns.firstMatch(path.toString());
   }
 
   // <editor-fold defaultstate="collapsed" desc="Equality checking">
@@ -137,7 +247,8 @@ class UploaderCacheInformation {
     return comparePatternList(this.IgnoredPatterns, o.IgnoredPatterns)
         && comparePatternLongMap(this.FrozenPatterns, o.FrozenPatterns)
         && this.TimestampsWhenFrozen.equals(o.TimestampsWhenFrozen)
-        && this.Timestamps.equals(o.Timestamps);
+        && this.Timestamps.equals(o.Timestamps)
+        && this.DestinationTimestamps.equals(o.DestinationTimestamps);
   }
   // </editor-fold>
 
@@ -168,6 +279,19 @@ class UploaderCacheInformation {
         timeAr.put(e.getKey().toString(), e.getValue());
       obj.put("t", timeAr);
     }
+    {
+      final JSONArray destAr = new JSONArray();
+      final JSONArray destTimeAr = new JSONArray();
+      for (int i = 0; i < this.DestinationTimestamps.size(); i++) {
+        destAr.put(this.DestinationTimestamps.get(i).toString());
+        final JSONObject destTimes = new JSONObject();
+        for (Map.Entry<Path, Long> e : this.DestinationTimestamps.timestamps(i).entrySet())
+          destTimes.put(e.getKey().toString(), e.getValue());
+        destTimeAr.put(destTimes);
+      }
+      obj.put("d", destAr);
+      obj.put("dt", destTimeAr);
+    }
     return obj;
   }
 
@@ -175,6 +299,61 @@ class UploaderCacheInformation {
   public final String toString() {
     return this.toJSON().toString();
   }
+
+  /**
+   * Read a cache file in any {@link UploaderCacheSettings.Format}. A missing or empty file is an empty cache.
+   *
+   * @param file
+   *     The cache file.
+   * @return The information in the file.
+   * @throws IOException
+   *     If the file can not be read.
+   */
+  static UploaderCacheInformation read(final Path file) throws IOException {
+    if (!Files.exists(file) || Files.size(file) == 0)
+      return new UploaderCacheInformation();
+    if (UploaderCacheBinaryFormat.isBinary(file))
+      return UploaderCacheBinaryFormat.read(file);
+
+    try (final Reader rdr = Files.newBufferedReader(file)) {
+      return new UploaderCacheInformation(new JSONObject(new JSONTokener(rdr)));
+    }
+  }
+
+  /**
+   * Write this to a cache file. The file is replaced atomically, so a crash while writing leaves the previous version
+   * intact.
+   *
+   * @param file
+   *     The cache file.
+   * @param format
+   *     The format to write in.
+   * @param sync
+   *     If the new version must be on disk before this returns.
+   * @throws IOException
+   *     If the file can not be written.
+   */
+  final void write(final Path file, final UploaderCacheSettings.Format format, final boolean sync)
+      throws IOException {
+    final Path dir = file.toAbsolutePath().getParent();
+    final Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        if (format == UploaderCacheSettings.Format.BINARY) {
+          UploaderCacheBinaryFormat.write(this, channel);
+        } else {
+          final Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.name()));
+          this.toJSON().write(writer);
+          writer.flush();
+        }
+        if (sync)
+          channel.force(true);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
   // </editor-fold>
 
   // <editor-fold defaultstate="collapsed" desc="Private stuff">
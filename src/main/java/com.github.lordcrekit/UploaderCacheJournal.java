@@ -0,0 +1,265 @@
+package com.github.lordcrekit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only log of the changes made to an {@link UploaderCacheInformation}, kept next to its cache file.
+ * <p>
+ * Each change is appended as one JSON record per line, so persisting a change costs the size of the change rather than
+ * the size of the cache. The journal is split into numbered segments. When the active segment has enough records it is
+ * retired, and a background thread folds the retired segments into the cache file and deletes them. Loading the cache
+ * is loading the cache file and replaying whatever segments are left.
+ *
+ * @see UploaderCacheThread
+ */
+final class UploaderCacheJournal implements Closeable {
+
+  private static final String SEGMENT_INFIX = ".journal.";
+
+  private final Path cacheFile;
+  private final UploaderCacheSettings.Format format;
+  private final int compactionThreshold;
+
+  /**
+   * Folds retired segments into the cache file, one compaction at a time.
+   */
+  private final ExecutorService compactor;
+
+  private FileChannel segment;
+  private long segmentNumber;
+  private int segmentRecords;
+
+  UploaderCacheJournal(final Path cacheFile,
+                       final UploaderCacheSettings.Format format,
+                       final int compactionThreshold) {
+    this.cacheFile = cacheFile;
+    this.format = format;
+    this.compactionThreshold = compactionThreshold;
+    this.compactor = Executors.newSingleThreadExecutor((Runnable r) -> {
+      final Thread t = new Thread(r, UploaderCacheJournal.class.getSimpleName());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Load the cache file and replay every journal segment over it. New records go to a fresh segment, so a record that
+   * was torn by a crash is never appended to.
+   *
+   * @return The current information.
+   * @throws IOException
+   *     If the cache file or the journal can not be read.
+   */
+  UploaderCacheInformation open() throws IOException {
+    final UploaderCacheInformation info = UploaderCacheInformation.read(this.cacheFile);
+    final List<Path> segments = segments(this.cacheFile, Long.MAX_VALUE);
+    for (Path seg : segments)
+      replay(info, seg);
+
+    this.segmentNumber = segments.isEmpty()
+        ? 0
+        : segmentNumber(prefix(this.cacheFile), segments.get(segments.size() - 1)) + 1;
+    this.segmentRecords = 0;
+    return info;
+  }
+
+  /**
+   * Append a change record. The record must already have been applied to the in-memory information.
+   *
+   * @param change
+   *     The change, as accepted by {@link UploaderCacheInformation#apply(JSONObject)}.
+   * @throws IOException
+   *     If the record could not be written.
+   */
+  void append(final JSONObject change) throws IOException {
+    if (this.segment == null)
+      this.segment = FileChannel.open(segmentPath(this.cacheFile, this.segmentNumber),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+    final ByteBuffer buf = ByteBuffer.wrap((change.toString() + '\n').getBytes(StandardCharsets.UTF_8));
+    while (buf.hasRemaining())
+      this.segment.write(buf);
+
+    if (++this.segmentRecords >= this.compactionThreshold)
+      compact();
+  }
+
+  /**
+   * Force every appended record to disk.
+   *
+   * @throws IOException
+   *     If the records could not be synced.
+   */
+  void sync() throws IOException {
+    if (this.segment != null)
+      this.segment.force(false);
+  }
+
+  /**
+   * Retire the active segment and fold every retired segment into the cache file in the background.
+   *
+   * @throws IOException
+   *     If the active segment could not be closed.
+   */
+  void compact() throws IOException {
+    if (this.segment == null)
+      return;
+
+    final long upTo = this.segmentNumber;
+    this.segment.force(false);
+    this.segment.close();
+    this.segment = null;
+    this.segmentNumber++;
+    this.segmentRecords = 0;
+
+    this.compactor.submit(() -> {
+      try {
+        fold(this.cacheFile, this.format, upTo);
+      } catch (IOException e) {
+        // The segments are left in place and will be folded by the next compaction, or replayed on the next load.
+        Logger.getLogger(UploaderCacheJournal.class.getName()).log(
+            Level.WARNING, "Failed to compact journal of " + this.cacheFile, e);
+      }
+    });
+  }
+
+  /**
+   * Wait for any running compaction and close the active segment.
+   */
+  @Override
+  public void close() throws IOException {
+    this.compactor.shutdown();
+    try {
+      this.compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (this.segment != null)
+        this.segment.close();
+      this.segment = null;
+    }
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Segment files">
+
+  /**
+   * Fold journal segments into the cache file, then delete them. This only touches files, so it can run on any thread.
+   *
+   * @param cacheFile
+   *     The cache file.
+   * @param format
+   *     The format to rewrite the cache file in.
+   * @param upTo
+   *     The highest segment number to fold.
+   * @throws IOException
+   *     If the cache file could not be rewritten.
+   */
+  static void fold(final Path cacheFile, final UploaderCacheSettings.Format format, final long upTo)
+      throws IOException {
+    final List<Path> segments = segments(cacheFile, upTo);
+    if (segments.isEmpty())
+      return;
+
+    final UploaderCacheInformation info = UploaderCacheInformation.read(cacheFile);
+    for (Path seg : segments)
+      replay(info, seg);
+    info.write(cacheFile, format, true);
+
+    for (Path seg : segments)
+      Files.deleteIfExists(seg);
+  }
+
+  /**
+   * @param cacheFile
+   *     The cache file.
+   * @param upTo
+   *     The highest segment number to include.
+   * @return Every journal segment of a cache file, in the order they were written.
+   * @throws IOException
+   *     If the directory can not be listed.
+   */
+  static List<Path> segments(final Path cacheFile, final long upTo) throws IOException {
+    final Path dir = cacheFile.toAbsolutePath().getParent();
+    final String prefix = prefix(cacheFile);
+
+    // Matched by hand rather than with a glob, since the cache file's name may contain glob syntax.
+    final List<Path> found = new ArrayList<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path p : stream) {
+        final long n = segmentNumber(prefix, p);
+        if (n >= 0 && n <= upTo)
+          found.add(p);
+      }
+    }
+    found.sort((Path a, Path b) -> Long.compare(segmentNumber(prefix, a), segmentNumber(prefix, b)));
+    return found;
+  }
+
+  /**
+   * @return The start of the name of every segment of a cache file.
+   */
+  private static String prefix(final Path cacheFile) {
+    return cacheFile.getFileName().toString() + SEGMENT_INFIX;
+  }
+
+  private static Path segmentPath(final Path cacheFile, final long number) {
+    return cacheFile.resolveSibling(prefix(cacheFile) + number);
+  }
+
+  /**
+   * @param prefix
+   *     The cache file's name followed by the segment infix.
+   * @return The segment's number, or <code>-1</code> if the file is not a segment of the cache file.
+   */
+  private static long segmentNumber(final String prefix, final Path segment) {
+    final String name = segment.getFileName().toString();
+    if (!name.startsWith(prefix) || name.length() == prefix.length())
+      return -1;
+    for (int i = prefix.length(); i < name.length(); i++)
+      if (name.charAt(i) < '0' || name.charAt(i) > '9')
+        return -1;
+    try {
+      return Long.parseLong(name.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static void replay(final UploaderCacheInformation info, final Path segment) throws IOException {
+    try (final BufferedReader rdr = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = rdr.readLine()) != null) {
+        if (line.isEmpty())
+          continue;
+        try {
+          info.apply(new JSONObject(line));
+        } catch (JSONException e) {
+          // Only the last record of a segment can be torn, by a crash while it was being appended.
+          Logger.getLogger(UploaderCacheJournal.class.getName()).log(
+              Level.WARNING, "Skipping torn journal record in " + segment, e);
+          return;
+        }
+      }
+    }
+  }
+  // </editor-fold>
+}
@@ -0,0 +1,495 @@
+package com.github.lordcrekit;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A map from paths to timestamps, stored as a trie of path components.
+ * <p>
+ * Each directory name is stored once no matter how many paths are under it, and each timestamp is a primitive
+ * <code>long</code>. Children are kept sorted, so iteration is in a stable order (each path before the paths under it,
+ * siblings by name), and everything under a directory can be visited or removed without looking at the rest of the
+ * map.
+ * <p>
+ * Not thread safe.
+ *
+ * @see UploaderCacheInformation#Timestamps
+ * @see UploaderCacheInformation#TimestampsWhenFrozen
+ */
+final class UploaderCachePathTrie extends AbstractMap<Path, Long> {
+
+  /**
+   * Marks a node that is only a directory on the way to other paths.
+   */
+  private static final long ABSENT = Long.MIN_VALUE;
+
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  private static final class Node {
+    final String name;
+    Node[] children = NO_CHILDREN;
+    int childCount;
+    long value = ABSENT;
+
+    Node(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return The index of the child, or <code>-(insertion point) - 1</code> if there is no such child.
+     */
+    int find(final String childName) {
+      int lo = 0;
+      int hi = this.childCount - 1;
+      while (lo <= hi) {
+        final int mid = (lo + hi) >>> 1;
+        final int cmp = this.children[mid].name.compareTo(childName);
+        if (cmp < 0)
+          lo = mid + 1;
+        else if (cmp > 0)
+          hi = mid - 1;
+        else
+          return mid;
+      }
+      return -(lo + 1);
+    }
+
+    Node child(final String childName) {
+      final int i = find(childName);
+      return i >= 0 ? this.children[i] : null;
+    }
+
+    Node getOrAddChild(final String childName) {
+      int i = find(childName);
+      if (i >= 0)
+        return this.children[i];
+
+      i = -(i + 1);
+      if (this.childCount == this.children.length)
+        this.children = Arrays.copyOf(this.children, Math.max(2, this.childCount * 2));
+      System.arraycopy(this.children, i, this.children, i + 1, this.childCount - i);
+      final Node child = new Node(childName);
+      this.children[i] = child;
+      this.childCount++;
+      return child;
+    }
+
+    void removeChild(final int i) {
+      System.arraycopy(this.children, i + 1, this.children, i, this.childCount - i - 1);
+      this.children[--this.childCount] = null;
+      if (this.childCount == 0)
+        this.children = NO_CHILDREN;
+    }
+  }
+
+  private final Node root = new Node("");
+  private int size;
+
+  // <editor-fold defaultstate="collapsed" desc="Path components">
+  private static int componentCount(final Path path) {
+    return path.getNameCount() + (path.getRoot() != null ? 1 : 0);
+  }
+
+  private static String component(final Path path, final int i) {
+    final Path root = path.getRoot();
+    if (root == null)
+      return path.getName(i).toString();
+    return i == 0 ? root.toString() : path.getName(i - 1).toString();
+  }
+
+  private static Path resolve(final Path parent, final String name) {
+    return parent == null ? Paths.get(name) : parent.resolve(name);
+  }
+
+  private Node find(final Path path) {
+    Node n = this.root;
+    final int count = componentCount(path);
+    for (int i = 0; i < count && n != null; i++)
+      n = n.child(component(path, i));
+    return n;
+  }
+  // </editor-fold>
+
+  // <editor-fold defaultstate="collapsed" desc="Primitive access">
+
+  /**
+   * @param path
+   *     The path.
+   * @param absent
+   *     What to return if the path has no timestamp.
+   * @return The timestamp of the path.
+   */
+  long getLong(final Path path, final long absent) {
+    final Node n = find(path);
+    return n == null || n.value == ABSENT ? absent : n.value;
+  }
+
+  /**
+   * @param path
+   *     The path.
+   * @param value
+   *     The timestamp. {@link Long#MIN_VALUE} can not be stored.
+   */
+  void putLong(final Path path, final long value) {
+    if (value == ABSENT)
+      throw new IllegalArgumentException("Can not store " + value);
+
+    Node n = this.root;
+    final int count = componentCount(path);
+    for (int i = 0; i < count; i++)
+      n = n.getOrAddChild(component(path, i));
+    if (n.value == ABSENT)
+      this.size++;
+    n.value = value;
+  }
+  // </editor-fold>
+
+  // <editor-fold defaultstate="collapsed" desc="Subtrees">
+
+  /**
+   * @param directory
+   *     The directory.
+   * @return Every entry for the directory and the paths under it, in iteration order.
+   */
+  Iterable<Map.Entry<Path, Long>> entriesUnder(final Path directory) {
+    return () -> {
+      final Node n = find(directory);
+      return n == null
+          ? Collections.<Map.Entry<Path, Long>>emptyIterator()
+          : new EntryIterator(n, directory);
+    };
+  }
+
+  /**
+   * Iterate part of a subtree, for reading it a page at a time. Each page starts after the last path of the previous
+   * page, so the map can change between pages: entries added or removed behind the cursor are simply not seen.
+   *
+   * @param directory
+   *     The directory, or <code>null</code> for the whole map.
+   * @param after
+   *     The path to start after, or <code>null</code> to start at the beginning.
+   * @return The entries for the directory and the paths under it that come after the given path in iteration order.
+   */
+  Iterator<Map.Entry<Path, Long>> entriesAfter(final Path directory, final Path after) {
+    final Node start = directory == null ? this.root : find(directory);
+    if (start == null)
+      return Collections.emptyIterator();
+    if (after == null)
+      return new EntryIterator(start, directory);
+    if (directory != null && !after.startsWith(directory))
+      return compare(after, directory) < 0
+          ? new EntryIterator(start, directory)
+          : Collections.<Map.Entry<Path, Long>>emptyIterator();
+
+    // Rebuild the stack the iterator would have had just after returning the path.
+    final Deque<Frame> stack = new ArrayDeque<>();
+    Node n = start;
+    Path p = directory;
+    Frame f = new Frame(n, p);
+    f.visited = true;
+    stack.push(f);
+    final int count = componentCount(after);
+    for (int i = directory == null ? 0 : componentCount(directory); i < count; i++) {
+      final String name = component(after, i);
+      final int child = n.find(name);
+      if (child < 0) {
+        // The path is gone, so carry on with whatever now sorts after it.
+        f.next = -(child + 1);
+        return new EntryIterator(stack);
+      }
+      f.next = child + 1;
+      n = n.children[child];
+      p = resolve(p, name);
+      f = new Frame(n, p);
+      f.visited = true;
+      stack.push(f);
+    }
+    return new EntryIterator(stack);
+  }
+
+  /**
+   * Compare paths in iteration order: component by component, with a path before the paths under it.
+   */
+  static int compare(final Path a, final Path b) {
+    final int ac = componentCount(a);
+    final int bc = componentCount(b);
+    for (int i = 0; i < Math.min(ac, bc); i++) {
+      final int c = component(a, i).compareTo(component(b, i));
+      if (c != 0)
+        return c;
+    }
+    return Integer.compare(ac, bc);
+  }
+
+  /**
+   * @param directory
+   *     The directory.
+   * @return The number of entries for the directory and the paths under it.
+   */
+  int countUnder(final Path directory) {
+    final Node n = find(directory);
+    return n == null ? 0 : count(n);
+  }
+
+  /**
+   * Remove the directory and every path under it.
+   *
+   * @param directory
+   *     The directory.
+   * @return The number of entries removed.
+   */
+  int removeUnder(final Path directory) {
+    final int count = componentCount(directory);
+    if (count == 0) {
+      final int removed = this.size;
+      clear();
+      return removed;
+    }
+
+    // Find the parent of the subtree, so the whole subtree can be unlinked at once.
+    Node parent = this.root;
+    for (int i = 0; i < count - 1 && parent != null; i++)
+      parent = parent.child(component(directory, i));
+    if (parent == null)
+      return 0;
+    final int i = parent.find(component(directory, count - 1));
+    if (i < 0)
+      return 0;
+
+    final int removed = count(parent.children[i]);
+    parent.removeChild(i);
+    this.size -= removed;
+    prune(directory, count - 1);
+    return removed;
+  }
+
+  private static int count(final Node n) {
+    int c = n.value == ABSENT ? 0 : 1;
+    for (int i = 0; i < n.childCount; i++)
+      c += count(n.children[i]);
+    return c;
+  }
+
+  /**
+   * Unlink the empty directories at the end of the first <code>depth</code> components of a path.
+   */
+  private void prune(final Path path, final int depth) {
+    final Node[] chain = new Node[depth + 1];
+    chain[0] = this.root;
+    for (int i = 0; i < depth; i++) {
+      chain[i + 1] = chain[i].child(component(path, i));
+      if (chain[i + 1] == null)
+        return;
+    }
+    for (int i = depth; i > 0; i--) {
+      final Node n = chain[i];
+      if (n.value != ABSENT || n.childCount > 0)
+        return;
+      chain[i - 1].removeChild(chain[i - 1].find(n.name));
+    }
+  }
+  // </editor-fold>
+
+  // <editor-fold defaultstate="collapsed" desc="Map">
+  @Override
+  public int size() {
+    return this.size;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return key instanceof Path && getLong((Path) key, ABSENT) != ABSENT;
+  }
+
+  @Override
+  public Long get(final Object key) {
+    if (!(key instanceof Path))
+      return null;
+    final long v = getLong((Path) key, ABSENT);
+    return v == ABSENT ? null : v;
+  }
+
+  @Override
+  public Long put(final Path key, final Long value) {
+    final Long old = get(key);
+    putLong(key, value);
+    return old;
+  }
+
+  @Override
+  public Long remove(final Object key) {
+    if (!(key instanceof Path))
+      return null;
+    final Path path = (Path) key;
+    final Node n = find(path);
+    if (n == null || n.value == ABSENT)
+      return null;
+
+    final long old = n.value;
+    n.value = ABSENT;
+    this.size--;
+    prune(path, componentCount(path));
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    this.root.children = NO_CHILDREN;
+    this.root.childCount = 0;
+    this.size = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<Path, Long>> entrySet() {
+    return new AbstractSet<Map.Entry<Path, Long>>() {
+      @Override
+      public Iterator<Map.Entry<Path, Long>> iterator() {
+        return new EntryIterator(UploaderCachePathTrie.this.root, null);
+      }
+
+      @Override
+      public int size() {
+        return UploaderCachePathTrie.this.size;
+      }
+    };
+  }
+  // </editor-fold>
+
+  // <editor-fold defaultstate="collapsed" desc="Iteration">
+  private static final class Frame {
+    final Node node;
+    final Path path;
+    boolean visited;
+    int next;
+
+    Frame(final Node node, final Path path) {
+      this.node = node;
+      this.path = path;
+    }
+  }
+
+  private final class Entry implements Map.Entry<Path, Long> {
+    private final Node node;
+    private final Path path;
+
+    Entry(final Node node, final Path path) {
+      this.node = node;
+      this.path = path;
+    }
+
+    @Override
+    public Path getKey() {
+      return this.path;
+    }
+
+    @Override
+    public Long getValue() {
+      return this.node.value;
+    }
+
+    @Override
+    public Long setValue(final Long value) {
+      if (this.node.value == ABSENT)
+        throw new IllegalStateException("Entry was removed");
+      final long old = this.node.value;
+      this.node.value = value;
+      return old;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Map.Entry))
+        return false;
+      final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return this.path.equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return this.path.hashCode() ^ Long.hashCode(this.node.value);
+    }
+
+    @Override
+    public String toString() {
+      return this.path + "=" + this.node.value;
+    }
+  }
+
+  /**
+   * Walks a subtree depth first. Removing through the iterator only clears the entry's value, so the walk is not
+   * disturbed; the empty directory is left for a later removal to prune.
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<Path, Long>> {
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private Entry next;
+    private Entry last;
+
+    EntryIterator(final Node start, final Path path) {
+      this.stack.push(new Frame(start, path));
+      advance();
+    }
+
+    /**
+     * Resume a walk from a stack that was rebuilt by {@link #entriesAfter(Path, Path)}.
+     */
+    EntryIterator(final Deque<Frame> stack) {
+      this.stack.addAll(stack);
+      advance();
+    }
+
+    private void advance() {
+      while (!this.stack.isEmpty()) {
+        final Frame f = this.stack.peek();
+        if (!f.visited) {
+          f.visited = true;
+          if (f.node.value != ABSENT && f.path != null) {
+            this.next = new Entry(f.node, f.path);
+            return;
+          }
+        }
+        if (f.next < f.node.childCount) {
+          final Node c = f.node.children[f.next++];
+          this.stack.push(new Frame(c, resolve(f.path, c.name)));
+        } else {
+          this.stack.pop();
+        }
+      }
+      this.next = null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.next != null;
+    }
+
+    @Override
+    public Map.Entry<Path, Long> next() {
+      if (this.next == null)
+        throw new NoSuchElementException();
+      this.last = this.next;
+      advance();
+      return this.last;
+    }
+
+    @Override
+    public void remove() {
+      if (this.last == null || this.last.node.value == ABSENT)
+        throw new IllegalStateException();
+      this.last.node.value = ABSENT;
+      UploaderCachePathTrie.this.size--;
+      this.last = null;
+    }
+  }
+  // </editor-fold>
+}
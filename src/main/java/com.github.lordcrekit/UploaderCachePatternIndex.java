@@ -0,0 +1,306 @@
+package com.github.lordcrekit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a string against a whole set of patterns at once, instead of trying each pattern in turn.
+ * <p>
+ * Most patterns start or end with literal text, like <code>/home/me/.*</code> or <code>.*\.tmp</code>. Those patterns
+ * are filed in a trie under that literal, and a string is only matched against the patterns whose literal it starts or
+ * ends with. The remaining patterns are joined into a single alternation, so they are all tried in one pass.
+ * <p>
+ * Patterns are numbered in the order they were added, so the first matching pattern can also be found. Patterns can
+ * only be appended; anything else needs a new index.
+ * <p>
+ * Queries can run concurrently with each other, but not with {@link #add(Pattern)}.
+ */
+final class UploaderCachePatternIndex {
+
+  /**
+   * A character trie. Each node holds the patterns whose literal ends at that node.
+   */
+  private static final class LiteralTrie {
+    final Map<Character, LiteralTrie> children = new HashMap<>(4);
+    int[] patterns = NONE;
+
+    void add(final String literal, final boolean reversed, final int ordinal) {
+      LiteralTrie n = this;
+      for (int i = 0; i < literal.length(); i++) {
+        final char c = literal.charAt(reversed ? literal.length() - 1 - i : i);
+        n = n.children.computeIfAbsent(c, (Character k) -> new LiteralTrie());
+      }
+      n.patterns = Arrays.copyOf(n.patterns, n.patterns.length + 1);
+      n.patterns[n.patterns.length - 1] = ordinal;
+    }
+
+    /**
+     * Collect the patterns whose literal the string starts (or, reversed, ends) with.
+     */
+    void collect(final CharSequence s, final boolean reversed, final Candidates out) {
+      LiteralTrie n = this;
+      for (int i = 0; ; i++) {
+        out.addAll(n.patterns);
+        if (i == s.length())
+          return;
+        n = n.children.get(s.charAt(reversed ? s.length() - 1 - i : i));
+        if (n == null)
+          return;
+      }
+    }
+  }
+
+  /**
+   * A growable list of pattern numbers.
+   */
+  private static final class Candidates {
+    int[] items = new int[8];
+    int size;
+
+    void addAll(final int[] ordinals) {
+      if (ordinals.length == 0)
+        return;
+      if (this.size + ordinals.length > this.items.length)
+        this.items = Arrays.copyOf(this.items, Math.max(this.items.length * 2, this.size + ordinals.length));
+      System.arraycopy(ordinals, 0, this.items, this.size, ordinals.length);
+      this.size += ordinals.length;
+    }
+  }
+
+  private static final int[] NONE = new int[0];
+
+  private final List<Pattern> patterns = new ArrayList<>();
+
+  private final LiteralTrie prefixes = new LiteralTrie();
+  private final LiteralTrie suffixes = new LiteralTrie();
+
+  /**
+   * Patterns without a usable literal.
+   */
+  private int[] unfiltered = NONE;
+
+  /**
+   * Every unfiltered pattern that can be joined into {@link #combined}.
+   */
+  private final StringBuilder combinedSource = new StringBuilder();
+  private Pattern combined;
+
+  /**
+   * Unfiltered patterns that can not be joined with others, because of their flags or back references.
+   */
+  private int[] separate = NONE;
+
+  /**
+   * Add a pattern to the end of the index.
+   *
+   * @param pattern
+   *     The pattern.
+   * @return The pattern's number.
+   */
+  int add(final Pattern pattern) {
+    final int ordinal = this.patterns.size();
+    this.patterns.add(pattern);
+
+    final String[] literals = literals(pattern);
+    final String prefix = literals == null ? "" : literals[0];
+    final String suffix = literals == null ? "" : literals[1];
+
+    if (!prefix.isEmpty() || !suffix.isEmpty()) {
+      if (prefix.length() >= suffix.length())
+        this.prefixes.add(prefix, false, ordinal);
+      else
+        this.suffixes.add(suffix, true, ordinal);
+      return ordinal;
+    }
+
+    this.unfiltered = append(this.unfiltered, ordinal);
+    if (isCombinable(pattern)) {
+      if (this.combinedSource.length() > 0)
+        this.combinedSource.append('|');
+      this.combinedSource.append("(?:").append(pattern.pattern()).append(')');
+      this.combined = Pattern.compile(this.combinedSource.toString());
+    } else {
+      this.separate = append(this.separate, ordinal);
+    }
+    return ordinal;
+  }
+
+  int size() {
+    return this.patterns.size();
+  }
+
+  /**
+   * @param s
+   *     The string to match.
+   * @return If any pattern matches the whole string.
+   */
+  boolean anyMatch(final CharSequence s) {
+    if (this.combined != null && this.combined.matcher(s).matches())
+      return true;
+    for (int ordinal : this.separate)
+      if (this.patterns.get(ordinal).matcher(s).matches())
+        return true;
+
+    final Candidates c = collect(s, false);
+    for (int i = 0; i < c.size; i++)
+      if (this.patterns.get(c.items[i]).matcher(s).matches())
+        return true;
+    return false;
+  }
+
+  /**
+   * @param s
+   *     The string to match.
+   * @return The number of the first pattern that matches the whole string, or <code>-1</code> if none do.
+   */
+  int firstMatch(final CharSequence s) {
+    final Candidates c = collect(s, true);
+    Arrays.sort(c.items, 0, c.size);
+    for (int i = 0; i < c.size; i++)
+      if (this.patterns.get(c.items[i]).matcher(s).matches())
+        return c.items[i];
+    return -1;
+  }
+
+  /**
+   * @param all
+   *     If the unfiltered patterns should be included.
+   * @return The patterns that could match.
+   */
+  private Candidates collect(final CharSequence s, final boolean all) {
+    final Candidates c = new Candidates();
+    this.prefixes.collect(s, false, c);
+    this.suffixes.collect(s, true, c);
+    if (all)
+      c.addAll(this.unfiltered);
+    return c;
+  }
+
+  private static int[] append(final int[] array, final int value) {
+    final int[] result = Arrays.copyOf(array, array.length + 1);
+    result[array.length] = value;
+    return result;
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Pattern analysis">
+
+  /**
+   * @return If the pattern means the same thing when joined into an alternation with other patterns.
+   */
+  private static boolean isCombinable(final Pattern pattern) {
+    final String src = pattern.pattern();
+    return pattern.flags() == 0
+        && !src.contains("\\Q")
+        && !src.contains("\\k<")
+        && !src.matches("(?s).*\\\\[1-9].*")
+        && !src.matches("(?s).*\\(\\?<[a-zA-Z].*");
+  }
+
+  /**
+   * Escapes that stand for something other than a literal character, and are exactly two characters long.
+   */
+  private static final String SIMPLE_CLASSES = "dDsSwWbBAGZzhHvVRXntrfea";
+
+  /**
+   * Find the literal text every match of a pattern must start and end with. This is conservative: anything it does not
+   * fully understand gives no literal.
+   *
+   * @return The prefix and the suffix (either may be empty), or <code>null</code> if the pattern has none.
+   */
+  static String[] literals(final Pattern pattern) {
+    final String src = pattern.pattern();
+    if (pattern.flags() != 0 || src.contains("|") || src.matches("(?s).*\\(\\?[a-zA-Z\\-].*"))
+      return null;
+
+    // One entry per token: the literal character, or null for anything else.
+    final List<Character> tokens = new ArrayList<>(src.length());
+    for (int i = 0; i < src.length(); ) {
+      final char c = src.charAt(i);
+      switch (c) {
+        case '\\': {
+          if (i + 1 >= src.length())
+            return null;
+          final char e = src.charAt(i + 1);
+          if (Character.isLetterOrDigit(e)) {
+            if (SIMPLE_CLASSES.indexOf(e) < 0)
+              return null;
+            tokens.add(null);
+          } else {
+            tokens.add(e);
+          }
+          i += 2;
+          break;
+        }
+
+        case '[': {
+          // Skip the character class.
+          int j = i + 1;
+          if (j < src.length() && src.charAt(j) == '^')
+            j++;
+          if (j < src.length() && src.charAt(j) == ']')
+            j++;
+          while (j < src.length() && src.charAt(j) != ']') {
+            if (src.charAt(j) == '[')
+              return null;
+            j += src.charAt(j) == '\\' ? 2 : 1;
+          }
+          if (j >= src.length())
+            return null;
+          tokens.add(null);
+          i = j + 1;
+          break;
+        }
+
+        case '*':
+        case '+':
+        case '?':
+        case '{': {
+          // A quantifier makes whatever it applies to optional or repeated.
+          if (!tokens.isEmpty())
+            tokens.set(tokens.size() - 1, null);
+          tokens.add(null);
+          if (c == '{') {
+            final int close = src.indexOf('}', i);
+            if (close < 0)
+              return null;
+            i = close + 1;
+          } else {
+            i++;
+          }
+          break;
+        }
+
+        case '(':
+        case ')':
+        case '.':
+        case '^':
+        case '$':
+          tokens.add(null);
+          i++;
+          break;
+
+        default:
+          tokens.add(c);
+          i++;
+      }
+    }
+
+    final StringBuilder prefix = new StringBuilder();
+    for (int i = 0; i < tokens.size() && tokens.get(i) != null; i++)
+      prefix.append(tokens.get(i).charValue());
+
+    final StringBuilder suffix = new StringBuilder();
+    for (int i = tokens.size() - 1; i >= 0 && tokens.get(i) != null; i--)
+      suffix.append(tokens.get(i).charValue());
+    suffix.reverse();
+
+    if (prefix.length() == 0 && suffix.length() == 0)
+      return null;
+    return new String[]{prefix.toString(), suffix.toString()};
+  }
+  // </editor-fold>
+}
@@ -0,0 +1,107 @@
+package com.github.lordcrekit;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An ordered list of patterns that can match a string against all of its patterns at once.
+ * <p>
+ * Appending a pattern updates the index in place. Any other change rebuilds the index. Queries never change anything,
+ * so they can run concurrently with each other.
+ *
+ * @see UploaderCachePatternIndex
+ * @see UploaderCacheInformation#IgnoredPatterns
+ */
+final class UploaderCachePatternList extends AbstractList<Pattern> {
+
+  private final List<Pattern> patterns = new ArrayList<>();
+
+  private UploaderCachePatternIndex index = new UploaderCachePatternIndex();
+
+  /**
+   * Incremented by every change.
+   */
+  private long generation = 0;
+
+  /**
+   * @return A number that changes whenever the patterns change.
+   */
+  long generation() {
+    return this.generation;
+  }
+
+  /**
+   * @param s
+   *     The string to match.
+   * @return If any pattern matches the whole string.
+   */
+  boolean anyMatch(final CharSequence s) {
+    return this.index.anyMatch(s);
+  }
+
+  /**
+   * @param s
+   *     The string to match.
+   * @return The position of the first pattern that matches the whole string, or <code>-1</code> if none do.
+   */
+  int firstMatch(final CharSequence s) {
+    return this.index.firstMatch(s);
+  }
+
+  private void rebuild() {
+    final UploaderCachePatternIndex rebuilt = new UploaderCachePatternIndex();
+    for (Pattern p : this.patterns)
+      rebuilt.add(p);
+    this.index = rebuilt;
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="List">
+  @Override
+  public Pattern get(final int i) {
+    return this.patterns.get(i);
+  }
+
+  @Override
+  public int size() {
+    return this.patterns.size();
+  }
+
+  @Override
+  public void add(final int i, final Pattern pattern) {
+    this.patterns.add(i, pattern);
+    this.modCount++;
+    this.generation++;
+    if (i == this.index.size())
+      this.index.add(pattern);
+    else
+      rebuild();
+  }
+
+  @Override
+  public Pattern set(final int i, final Pattern pattern) {
+    final Pattern old = this.patterns.set(i, pattern);
+    this.generation++;
+    rebuild();
+    return old;
+  }
+
+  @Override
+  public Pattern remove(final int i) {
+    final Pattern old = this.patterns.remove(i);
+    this.modCount++;
+    this.generation++;
+    rebuild();
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    this.patterns.clear();
+    this.modCount++;
+    this.generation++;
+    this.index = new UploaderCachePatternIndex();
+  }
+  // </editor-fold>
+}
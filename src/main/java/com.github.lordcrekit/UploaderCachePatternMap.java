@@ -0,0 +1,150 @@
+package com.github.lordcrekit;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * An insertion ordered map from patterns to timestamps that can find the first pattern matching a string without
+ * trying every pattern.
+ * <p>
+ * Adding a pattern updates the index in place. Changing a pattern's timestamp does not touch the index at all. Removing
+ * a pattern rebuilds the index. Queries never change anything, so they can run concurrently with each other.
+ *
+ * @see UploaderCachePatternIndex
+ * @see UploaderCacheInformation#FrozenPatterns
+ */
+final class UploaderCachePatternMap extends AbstractMap<Pattern, Long> {
+
+  private final Map<Pattern, Long> map = new LinkedHashMap<>();
+
+  /**
+   * The patterns in the order they were given to {@link #index}.
+   */
+  private final List<Pattern> indexed = new ArrayList<>();
+  private UploaderCachePatternIndex index = new UploaderCachePatternIndex();
+
+  /**
+   * Incremented by every change, including changed timestamps.
+   */
+  private long generation = 0;
+
+  /**
+   * @return A number that changes whenever the patterns or their timestamps change.
+   */
+  long generation() {
+    return this.generation;
+  }
+
+  /**
+   * @param s
+   *     The string to match.
+   * @return The timestamp of the first pattern that matches the whole string, or <code>-1</code> if none do.
+   */
+  long firstMatch(final CharSequence s) {
+    final int i = this.index.firstMatch(s);
+    return i < 0 ? -1 : this.map.get(this.indexed.get(i));
+  }
+
+  private void rebuild() {
+    this.index = new UploaderCachePatternIndex();
+    this.indexed.clear();
+    for (Pattern p : this.map.keySet()) {
+      this.index.add(p);
+      this.indexed.add(p);
+    }
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Map">
+  @Override
+  public int size() {
+    return this.map.size();
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return this.map.containsKey(key);
+  }
+
+  @Override
+  public Long get(final Object key) {
+    return this.map.get(key);
+  }
+
+  @Override
+  public Long put(final Pattern key, final Long value) {
+    final Long old = this.map.put(key, value);
+    this.generation++;
+    if (old == null) {
+      this.index.add(key);
+      this.indexed.add(key);
+    }
+    return old;
+  }
+
+  @Override
+  public Long remove(final Object key) {
+    final Long old = this.map.remove(key);
+    if (old != null) {
+      this.generation++;
+      rebuild();
+    }
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    this.map.clear();
+    this.generation++;
+    this.indexed.clear();
+    this.index = new UploaderCachePatternIndex();
+  }
+
+  @Override
+  public Set<Map.Entry<Pattern, Long>> entrySet() {
+    return new AbstractSet<Map.Entry<Pattern, Long>>() {
+      @Override
+      public Iterator<Map.Entry<Pattern, Long>> iterator() {
+        final Iterator<Map.Entry<Pattern, Long>> it = UploaderCachePatternMap.this.map.entrySet().iterator();
+        return new Iterator<Map.Entry<Pattern, Long>>() {
+          @Override
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          @Override
+          public Map.Entry<Pattern, Long> next() {
+            final Map.Entry<Pattern, Long> e = it.next();
+            return new SimpleEntry<Pattern, Long>(e) {
+              @Override
+              public Long setValue(final Long value) {
+                super.setValue(value);
+                UploaderCachePatternMap.this.generation++;
+                return e.setValue(value);
+              }
+            };
+          }
+
+          @Override
+          public void remove() {
+            it.remove();
+            UploaderCachePatternMap.this.generation++;
+            rebuild();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return UploaderCachePatternMap.this.map.size();
+      }
+    };
+  }
+  // </editor-fold>
+}
@@ -0,0 +1,191 @@
+package com.github.lordcrekit;
+
+/**
+ * Options for how an {@link UploaderCache} stores its information. The defaults behave exactly like an UploaderCache
+ * created without settings.
+ *
+ * @author William A. Norman <a href="norman.william.dev@gmail.com"/>
+ */
+public final class UploaderCacheSettings {
+
+  /**
+   * When changes made through an {@link UploaderCache} are acknowledged to the caller.
+   */
+  public enum Durability {
+    /**
+     * Each change is written before it is acknowledged.
+     */
+    IMMEDIATE,
+
+    /**
+     * Changes that arrive within the commit window are synced to disk together, and acknowledged together afterwards.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Changes are acknowledged as soon as they are applied in memory, and synced to disk at the end of each commit
+     * window. A crash can lose the changes of the last window.
+     */
+    RELAXED
+  }
+
+  /**
+   * How the cache file is written. Either format can always be read, so changing formats converts the cache file the
+   * next time it is written.
+   */
+  public enum Format {
+    /**
+     * A single JSON object. Slow to load for large caches, but readable and easy to import from or export to.
+     */
+    JSON,
+
+    /**
+     * A compact binary format that is loaded through memory mapping.
+     */
+    BINARY
+  }
+
+  /**
+   * How requests are encoded on their way to the cache and service threads.
+   */
+  public enum Protocol {
+    /**
+     * JSON text. Slower, but easy to read when debugging.
+     */
+    JSON,
+
+    /**
+     * A compact binary encoding.
+     */
+    BINARY
+  }
+
+  /**
+   * If changes are appended to a journal instead of rewriting the whole cache file.
+   */
+  boolean Journaled = false;
+
+  /**
+   * The number of journal records written before the journal is folded back into the cache file.
+   */
+  int CompactionThreshold = 65536;
+
+  /**
+   * The format the cache file is written in.
+   */
+  Format FileFormat = Format.JSON;
+
+  /**
+   * The most ignore and freeze decisions remembered, or <code>0</code> to always recompute them.
+   */
+  int DecisionCacheSize = 16384;
+
+  /**
+   * How requests are encoded.
+   */
+  Protocol WireProtocol = Protocol.BINARY;
+
+  /**
+   * When changes are acknowledged.
+   */
+  Durability DurabilityMode = Durability.IMMEDIATE;
+
+  /**
+   * The longest a change waits for a commit, in milliseconds.
+   */
+  long CommitWindow = 10;
+
+  /**
+   * The most changes that wait for a single commit.
+   */
+  int CommitCount = 256;
+
+  /**
+   * Persist changes to an append-only journal next to the cache file, instead of rewriting the entire cache file for
+   * every change. The journal is folded into the cache file in the background.
+   *
+   * @param journaled
+   *     If the cache should be journaled.
+   * @return This.
+   */
+  public UploaderCacheSettings setJournaled(final boolean journaled) {
+    this.Journaled = journaled;
+    return this;
+  }
+
+  /**
+   * @param records
+   *     How many records the journal may grow by before it is folded into the cache file. Must be positive.
+   * @return This.
+   */
+  public UploaderCacheSettings setCompactionThreshold(final int records) {
+    if (records <= 0)
+      throw new IllegalArgumentException("Compaction threshold must be positive: " + records);
+    this.CompactionThreshold = records;
+    return this;
+  }
+
+  /**
+   * @param format
+   *     The format the cache file is written in.
+   * @return This.
+   */
+  public UploaderCacheSettings setFormat(final Format format) {
+    this.FileFormat = format;
+    return this;
+  }
+
+  /**
+   * Remember whether recently queried paths are ignored or frozen, so repeated queries for the same paths do not match
+   * them against every pattern again. Remembered decisions are discarded whenever a pattern is frozen or ignored.
+   *
+   * @param decisions
+   *     The most decisions to remember, or <code>0</code> to always recompute them.
+   * @return This.
+   */
+  public UploaderCacheSettings setDecisionCacheSize(final int decisions) {
+    if (decisions < 0)
+      throw new IllegalArgumentException("Decision cache size can not be negative: " + decisions);
+    this.DecisionCacheSize = decisions;
+    return this;
+  }
+
+  /**
+   * @param protocol
+   *     How requests to the cache, and to any {@link UploaderService} using the cache, are encoded. Either is always
+   *     understood, so this only matters for reading the messages while debugging.
+   * @return This.
+   */
+  public UploaderCacheSettings setProtocol(final Protocol protocol) {
+    this.WireProtocol = protocol;
+    return this;
+  }
+
+  /**
+   * @param durability
+   *     When changes are acknowledged.
+   * @return This.
+   */
+  public UploaderCacheSettings setDurability(final Durability durability) {
+    this.DurabilityMode = durability;
+    return this;
+  }
+
+  /**
+   * Set the window changes are grouped in by {@link Durability#GROUP_COMMIT} and {@link Durability#RELAXED}. A commit
+   * happens when the oldest uncommitted change is this old, or when this many changes are waiting, whichever is first.
+   *
+   * @param millis
+   *     The longest a change waits for a commit. Must not be negative.
+   * @param count
+   *     The most changes that wait for one commit. Must be positive.
+   * @return This.
+   */
+  public UploaderCacheSettings setCommitWindow(final long millis, final int count) {
+    if (millis < 0 || count <= 0)
+      throw new IllegalArgumentException("Invalid commit window: " + millis + "ms, " + count + " changes");
+    this.CommitWindow = millis;
+    this.CommitCount = count;
+    return this;
+  }
+}
@@ -1,17 +1,24 @@
 package com.github.lordcrekit;
 
 import org.json.JSONObject;
-import org.json.JSONTokener;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -26,10 +33,18 @@ final class UploaderCacheThread implements Runnable {
   static final byte IGNORE_COMMAND = 'i';
   static final byte UPDATE_COMMAND = 'u';
   static final byte TERMINATE_COMMAND = 't';
+  static final byte UPDATE_ALL_COMMAND = 'U';
 
   // Information request commands
   static final byte GET_FILE_STATUS = 'g';
   static final byte GET_CACHE_STATUS = 'c';
+  static final byte GET_FILES_STATUS = 'G';
+  static final byte GET_ENTRIES = 'e';
+
+  /**
+   * The most entries a single {@link #GET_ENTRIES} reply holds, however many were asked for.
+   */
+  static final int MAX_PAGE_SIZE = 4096;
 
   /**
    * Because we can't interrupt the thread, this boolean is checked each loop.
@@ -39,118 +54,529 @@ final class UploaderCacheThread implements Runnable {
   private final ZContext context;
   private final String address;
 
+  /**
+   * Where finished freeze walks wake the thread up.
+   */
+  private final String freezeAddress;
+
   private final Path cacheFile;
+  private final UploaderCacheSettings settings;
+
+  /**
+   * The journal changes are appended to, or <code>null</code> if every change rewrites the cache file.
+   */
+  private UploaderCacheJournal journal;
+
+  /**
+   * Envelopes of requests whose changes are waiting for the next commit to be acknowledged.
+   */
+  private final List<byte[][]> uncommitted = new ArrayList<>();
+
+  /**
+   * The number of changes since the last commit, in any durability mode, for the settings' commit count.
+   */
+  private int uncommittedChanges = 0;
+
+  /**
+   * A FREEZE request whose walk has finished, but whose change has not been applied yet.
+   */
+  private static final class FinishedFreeze {
+    final byte[][] envelope;
+    final Pattern pattern;
+    final long timestamp;
+    final Map<Path, Long> frozenTimes;
+    final Throwable error;
+
+    FinishedFreeze(final byte[][] envelope,
+                   final Pattern pattern,
+                   final long timestamp,
+                   final Map<Path, Long> frozenTimes,
+                   final Throwable error) {
+      this.envelope = envelope;
+      this.pattern = pattern;
+      this.timestamp = timestamp;
+      this.frozenTimes = frozenTimes;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Freezes whose walks have finished, filled in by the walk threads.
+   */
+  private final BlockingQueue<FinishedFreeze> finishedFreezes = new LinkedBlockingQueue<>();
+
+  /**
+   * The number of freezes whose change has not been applied yet.
+   */
+  private int pendingFreezes = 0;
+
+  /**
+   * If there are changes that have not been committed.
+   */
+  private boolean dirty = false;
+
+  /**
+   * When the next commit is due, or <code>-1</code> if nothing is waiting for one.
+   */
+  private long commitDeadline = -1;
 
   UploaderCacheInformation cache;
 
-  UploaderCacheThread(final ZContext context, final String address, final Path cacheFile) {
+  /**
+   * Bound when the thread is created, since a message sent to an inproc address before it is bound can be lost.
+   */
+  private final ZMQ.Socket sock;
+  private final ZMQ.Socket freezeSock;
+
+  /**
+   * Guards {@link #cache} against threads reading it directly. This thread only needs the write lock, to change it.
+   */
+  private final StampedLock lock = new StampedLock();
+
+  /**
+   * Released once {@link #cache} has been read.
+   */
+  private final CountDownLatch loaded = new CountDownLatch(1);
+
+  /**
+   * Remembers ignore and freeze decisions, or <code>null</code> if they are always recomputed.
+   */
+  final UploaderCacheDecisionCache Decisions;
+
+  UploaderCacheThread(final ZContext context,
+                      final String address,
+                      final Path cacheFile,
+                      final UploaderCacheSettings settings) {
     this.context = context;
     this.address = address;
+    this.freezeAddress = UploaderService.makeAddress(UploaderCacheFreezeWalk.class.getSimpleName());
 
     this.cacheFile = cacheFile;
+    this.settings = settings;
+    this.Decisions = settings.DecisionCacheSize > 0
+        ? new UploaderCacheDecisionCache(settings.DecisionCacheSize) : null;
+
+    this.sock = context.createSocket(ZMQ.ROUTER);
+    this.sock.bind(address);
+    this.freezeSock = context.createSocket(ZMQ.PULL);
+    this.freezeSock.bind(this.freezeAddress);
   }
 
   @Override
   public void run() {
-    final ZMQ.Socket sock = context.createSocket(ZMQ.REP);
+    final ZMQ.Socket sock = this.sock;
+    final ZMQ.Socket freezeSock = this.freezeSock;
+    final ZMQ.Poller poller = context.createPoller(2);
     try {
       try {
         read();
       } catch (IOException e) {
         e.printStackTrace();
         assert false;
+      } finally {
+        this.loaded.countDown();
       }
 
-      sock.bind(address);
+      poller.register(sock, ZMQ.Poller.POLLIN);
+      poller.register(freezeSock, ZMQ.Poller.POLLIN);
 
       loop:
       while (!this.CloseNow.get()) {
-        final byte[] msg_bytes = sock.recv();
-        final JSONObject msg = new JSONObject(new String(msg_bytes));
-        switch (msg.getInt("c")) {
-
-          case FREEZE_COMMAND:
-            try {
-              final Path root = Paths.get(msg.getString("r"));
-              final Pattern pattern = Pattern.compile(msg.getString("p"));
-              final long timestamp = msg.getLong("t");
+        // The poller only reports sockets that became readable since it last looked, so a request left behind when
+        // several arrived at once has to be checked for directly.
+        final boolean waitingRequest = readable(sock);
+        final int events = poller.poll(waitingRequest ? 0
+            : this.commitDeadline < 0 ? -1 : Math.max(0, this.commitDeadline - System.currentTimeMillis()));
+        if (events > 0 && poller.pollin(1)) {
+          while (freezeSock.recv(ZMQ.DONTWAIT) != null)
+            ; // Only a wake up; the walks are in the queue.
+          for (FinishedFreeze f; (f = this.finishedFreezes.poll()) != null; )
+            finishFreeze(sock, f);
+        }
+        if (this.commitDeadline >= 0 && System.currentTimeMillis() >= this.commitDeadline)
+          commit(sock);
+        if (!readable(sock))
+          continue;
+
+        final byte[][] envelope = receiveEnvelope(sock);
+        final UploaderMessage msg = UploaderMessage.decode(sock.recv());
+        switch (msg.Command) {
+
+          case FREEZE_COMMAND: {
+            // Walking the root can take minutes, so it happens on other threads while this one keeps serving. The
+            // freeze is applied, and acknowledged, once the walk is done.
+            final Path root = Paths.get(msg.getString('r'));
+            final Pattern pattern = Pattern.compile(msg.getString('p'));
+            final long timestamp = msg.getLong('t');
+
+            this.pendingFreezes++;
+            UploaderCacheFreezeWalk.start(root, pattern).whenComplete((Map<Path, Long> found, Throwable error) -> {
+              this.finishedFreezes.add(new FinishedFreeze(envelope, pattern, timestamp, found, error));
+              wake();
+            });
+            break;
+          }
 
-              this.cache.FrozenPatterns.put(pattern, timestamp);
-              this.cache.addFrozenTimestamps(root, pattern);
+          case IGNORE_COMMAND: {
+            final String pattern = msg.getString('p');
 
-              write();
+            final JSONObject change = new JSONObject();
+            change.put("c", IGNORE_COMMAND);
+            change.put("p", pattern);
+            apply(change);
 
-              Logger.getLogger(UploaderCacheThread.class.getName()).log(
-                  UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                  "Freeze of " + pattern.pattern() + " at " + timestamp);
+            Logger.getLogger(UploaderCacheThread.class.getName()).log(
+                UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+                "Ignore of " + pattern);
 
-              sock.send(SUCCESS_RESPONSE);
-            } catch (IOException e) {
-              sock.send(FAILURE_RESPONSE);
-            }
+            write(sock, envelope, change);
             break;
+          }
 
-          case IGNORE_COMMAND:
-            try {
-              final String pattern = msg.getString("p");
-              this.cache.IgnoredPatterns.add(Pattern.compile(pattern));
+          case UPDATE_COMMAND: {
+            final JSONObject change = new JSONObject();
+            change.put("c", UPDATE_COMMAND);
+            change.put("f", msg.getString('f'));
+            change.put("t", msg.getLong('t'));
+            if (!msg.getString('d').isEmpty())
+              change.put("d", msg.getString('d'));
+            apply(change);
 
-              Logger.getLogger(UploaderCacheThread.class.getName()).log(
-                  UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                  "Ignore of " + pattern);
+            write(sock, envelope, change);
+            break;
+          }
 
-              write();
-              sock.send(SUCCESS_RESPONSE);
-            } catch (IOException e) {
-              sock.send(FAILURE_RESPONSE);
+          case UPDATE_ALL_COMMAND: {
+            final List<String> files = msg.getStrings('F');
+            final long[] timestamps = msg.getLongs('T');
+            final List<String> destinations = msg.getStrings('D');
+            if (files.size() != timestamps.length
+                || !(destinations.isEmpty() || destinations.size() == timestamps.length)) {
+              reply(sock, envelope, FAILURE_RESPONSE);
+              break;
             }
-            break;
 
-          case UPDATE_COMMAND:
-            try {
-              final Path path = Paths.get(msg.getString("f"));
-              final long timestamp = msg.getLong("t");
-              this.cache.Timestamps.put(path, timestamp);
+            // Every file's latest time, and each destination's own times grouped under it.
+            final JSONObject updates = new JSONObject();
+            final JSONObject destinationUpdates = new JSONObject();
+            for (int i = 0; i < timestamps.length; i++) {
+              updates.put(files.get(i), timestamps[i]);
+              if (!destinations.isEmpty() && !destinations.get(i).isEmpty()) {
+                if (!destinationUpdates.has(destinations.get(i)))
+                  destinationUpdates.put(destinations.get(i), new JSONObject());
+                destinationUpdates.getJSONObject(destinations.get(i)).put(files.get(i), timestamps[i]);
+              }
+            }
 
-              write();
+            final JSONObject change = new JSONObject();
+            change.put("c", UPDATE_ALL_COMMAND);
+            change.put("f", updates);
+            if (destinationUpdates.length() > 0)
+              change.put("d", destinationUpdates);
+            apply(change);
 
-              sock.send(SUCCESS_RESPONSE);
-            } catch (IOException e) {
-              sock.send(FAILURE_RESPONSE);
-            }
+            write(sock, envelope, change);
             break;
+          }
 
           case TERMINATE_COMMAND: {
-            sock.send(SUCCESS_RESPONSE);
+            finishFreezes(sock);
+            commit(sock);
+            reply(sock, envelope, SUCCESS_RESPONSE);
             break loop;
           }
 
           case GET_FILE_STATUS: {
-            final String path = msg.getString("f");
+            final String path = msg.getString('f');
+
+            final UploaderCacheFileInfo info = getFileInfo(Paths.get(path).normalize());
+            reply(sock, envelope, msg.Binary
+                ? info.toBytes()
+                : info.toJSON().toString().getBytes(StandardCharsets.UTF_8));
+            break;
+          }
+
+          case GET_FILES_STATUS: {
+            final List<String> paths = msg.getStrings('F');
+            final List<UploaderCacheFileInfo> infos = new ArrayList<>(paths.size());
+            for (String path : paths)
+              infos.add(getFileInfo(Paths.get(path).normalize()));
+            reply(sock, envelope, UploaderCacheFileInfo.encodeAll(infos, msg.Binary));
+            break;
+          }
 
-            final UploaderCacheFileInfo info = new UploaderCacheFileInfo(this.cache, Paths.get(path).normalize());
-            sock.send(info.toJSON().toString());
+          case GET_ENTRIES: {
+            final String root = msg.getString('r');
+            final String after = msg.getString('a');
+            final String which = msg.getString('w');
+            final List<UploaderCacheEntry> entries = getEntries(
+                root.isEmpty() ? null : Paths.get(root).normalize(),
+                after.isEmpty() ? null : Paths.get(after),
+                which.indexOf('u') >= 0,
+                which.indexOf('f') >= 0,
+                (int) Math.min(Math.max(msg.getLong('n'), 1), MAX_PAGE_SIZE));
+            reply(sock, envelope, UploaderCacheEntry.encodePage(entries, msg.Binary));
             break;
           }
 
           case GET_CACHE_STATUS: {
-            sock.send(this.cache.toJSON().toString());
+            reply(sock, envelope, this.cache.toJSON().toString().getBytes(StandardCharsets.UTF_8));
             break;
           }
 
           // <editor-fold defaultstate="collapsed" desc="default">
           default: {
-            sock.send(FAILURE_RESPONSE);
+            reply(sock, envelope, FAILURE_RESPONSE);
             assert false;
           }
           // </editor-fold>
         }
       }
     } finally {
+      finishFreezes(sock);
+      commit(sock);
+
       Logger.getLogger(UploaderCacheThread.class.getName()).log(
           UploaderService.SOCKET_LOGGING_LEVEL, "Closing thread socket.");
       context.destroySocket(sock);
+      context.destroySocket(freezeSock);
+
+      if (this.journal != null)
+        try {
+          this.journal.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+    }
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Socket envelopes">
+
+  static boolean readable(final ZMQ.Socket sock) {
+    return (sock.getEvents() & ZMQ.Poller.POLLIN) != 0;
+  }
+
+  /**
+   * Receive the routing frames of a request, up to and including the empty delimiter frame. The next frame is the
+   * request itself.
+   *
+   * @param sock
+   *     The ROUTER socket.
+   * @return The frames a reply must be sent with.
+   */
+  private static byte[][] receiveEnvelope(final ZMQ.Socket sock) {
+    final List<byte[]> frames = new ArrayList<>(2);
+    byte[] frame;
+    do {
+      frame = sock.recv();
+      frames.add(frame);
+    } while (frame.length > 0 && sock.hasReceiveMore());
+    return frames.toArray(new byte[frames.size()][]);
+  }
+
+  private static void reply(final ZMQ.Socket sock, final byte[][] envelope, final byte[] response) {
+    for (byte[] frame : envelope)
+      sock.sendMore(frame);
+    sock.send(response);
+  }
+  // </editor-fold>
+
+  // <editor-fold defaultstate="collapsed" desc="Freezes">
+
+  /**
+   * Wake the thread up to apply a finished freeze. Called from the walk's thread.
+   */
+  private void wake() {
+    final ZMQ.Socket wakeSock = this.context.getContext().socket(ZMQ.PUSH);
+    try {
+      wakeSock.connect(this.freezeAddress);
+      wakeSock.send(new byte[0]);
+    } finally {
+      wakeSock.close();
+    }
+  }
+
+  /**
+   * Apply a freeze whose walk has finished, and acknowledge it when the settings' durability allows.
+   */
+  private void finishFreeze(final ZMQ.Socket sock, final FinishedFreeze f) {
+    this.pendingFreezes--;
+    if (f.error != null) {
+      Logger.getLogger(UploaderCacheThread.class.getName()).log(
+          Level.WARNING, "Failed to freeze " + f.pattern.pattern(), f.error);
+      reply(sock, f.envelope, FAILURE_RESPONSE);
+      return;
+    }
+
+    final JSONObject frozenTimes = new JSONObject();
+    for (Map.Entry<Path, Long> e : f.frozenTimes.entrySet())
+      frozenTimes.put(e.getKey().toString(), e.getValue());
+
+    final JSONObject change = new JSONObject();
+    change.put("c", FREEZE_COMMAND);
+    change.put("p", f.pattern.pattern());
+    change.put("t", f.timestamp);
+    change.put("ft", frozenTimes);
+    apply(change);
+
+    Logger.getLogger(UploaderCacheThread.class.getName()).log(
+        UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+        "Freeze of " + f.pattern.pattern() + " at " + f.timestamp);
+
+    write(sock, f.envelope, change);
+  }
+
+  /**
+   * Wait for every freeze that is still walking, and apply it.
+   */
+  private void finishFreezes(final ZMQ.Socket sock) {
+    try {
+      while (this.pendingFreezes > 0)
+        finishFreeze(sock, this.finishedFreezes.take());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  // </editor-fold>
+
+  // <editor-fold defaultstate="collapsed" desc="Direct reads">
+
+  /**
+   * Get a file's information from another thread in this JVM, without a round trip through the socket. Any number of
+   * threads can read at once; they only wait while a change is being applied.
+   *
+   * @param path
+   *     The normalized path.
+   * @return The file's information.
+   */
+  UploaderCacheFileInfo readFileInfo(final Path path) {
+    awaitLoaded();
+    final long stamp = this.lock.readLock();
+    try {
+      return getFileInfo(path);
+    } finally {
+      this.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * @param paths
+   *     Normalized paths.
+   * @return The information of each file, in order, all as of the same moment.
+   * @see #readFileInfo(Path)
+   */
+  List<UploaderCacheFileInfo> readFileInfo(final List<Path> paths) {
+    awaitLoaded();
+    final List<UploaderCacheFileInfo> infos = new ArrayList<>(paths.size());
+    final long stamp = this.lock.readLock();
+    try {
+      for (Path path : paths)
+        infos.add(getFileInfo(path));
+    } finally {
+      this.lock.unlockRead(stamp);
+    }
+    return infos;
+  }
+
+  /**
+   * Read a page of entries directly.
+   *
+   * @see #getEntries(Path, Path, boolean, boolean, int)
+   */
+  List<UploaderCacheEntry> readEntries(final Path root,
+                                       final Path after,
+                                       final boolean uploaded,
+                                       final boolean frozen,
+                                       final int limit) {
+    awaitLoaded();
+    final long stamp = this.lock.readLock();
+    try {
+      return getEntries(root, after, uploaded, frozen, limit);
+    } finally {
+      this.lock.unlockRead(stamp);
+    }
+  }
+
+  private void awaitLoaded() {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        this.loaded.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /**
+   * Apply a change to {@link #cache}, while no other thread is reading it.
+   */
+  private void apply(final JSONObject change) {
+    final long stamp = this.lock.writeLock();
+    try {
+      this.cache.apply(change);
+    } finally {
+      this.lock.unlockWrite(stamp);
+    }
+  }
+  // </editor-fold>
+
+  /**
+   * Get a page of the stored timestamps, merging the upload and frozen timestamps of each path into one entry.
+   *
+   * @param root
+   *     The subtree to read, or <code>null</code> for the whole cache.
+   * @param after
+   *     The last path of the previous page, or <code>null</code> for the first page.
+   * @param uploaded
+   *     If upload timestamps should be included.
+   * @param frozen
+   *     If timestamps when frozen should be included.
+   * @param limit
+   *     The most entries to return. A shorter page is the last.
+   * @return The entries, in iteration order.
+   */
+  private List<UploaderCacheEntry> getEntries(final Path root,
+                                              final Path after,
+                                              final boolean uploaded,
+                                              final boolean frozen,
+                                              final int limit) {
+    final Iterator<Map.Entry<Path, Long>> u = uploaded
+        ? this.cache.Timestamps.entriesAfter(root, after)
+        : Collections.<Map.Entry<Path, Long>>emptyIterator();
+    final Iterator<Map.Entry<Path, Long>> f = frozen
+        ? this.cache.TimestampsWhenFrozen.entriesAfter(root, after)
+        : Collections.<Map.Entry<Path, Long>>emptyIterator();
+
+    final List<UploaderCacheEntry> entries = new ArrayList<>(Math.min(limit, 256));
+    Map.Entry<Path, Long> nextU = u.hasNext() ? u.next() : null;
+    Map.Entry<Path, Long> nextF = f.hasNext() ? f.next() : null;
+    while (entries.size() < limit && (nextU != null || nextF != null)) {
+      final int cmp = nextU == null ? 1
+          : nextF == null ? -1
+          : UploaderCachePathTrie.compare(nextU.getKey(), nextF.getKey());
+      if (cmp < 0) {
+        entries.add(new UploaderCacheEntry(nextU.getKey(), nextU.getValue(), -1));
+        nextU = u.hasNext() ? u.next() : null;
+      } else if (cmp > 0) {
+        entries.add(new UploaderCacheEntry(nextF.getKey(), -1, nextF.getValue()));
+        nextF = f.hasNext() ? f.next() : null;
+      } else {
+        entries.add(new UploaderCacheEntry(nextU.getKey(), nextU.getValue(), nextF.getValue()));
+        nextU = u.hasNext() ? u.next() : null;
+        nextF = f.hasNext() ? f.next() : null;
+      }
     }
+    return entries;
+  }
+
+  private UploaderCacheFileInfo getFileInfo(final Path path) {
+    return this.Decisions != null
+        ? this.Decisions.getFileInfo(this.cache, path)
+        : new UploaderCacheFileInfo(this.cache, path);
   }
 
   private boolean isIgnored(final String path) {
@@ -162,18 +588,87 @@ final class UploaderCacheThread implements Runnable {
   }
 
   private final void read() throws IOException {
-    if (!Files.exists(this.cacheFile) || Files.size(this.cacheFile) == 0)
-      this.cache = new UploaderCacheInformation();
-    else
-      try (final Reader rdr = Files.newBufferedReader(this.cacheFile)) {
-        final JSONObject obj = new JSONObject(new JSONTokener(rdr));
-        this.cache = new UploaderCacheInformation(obj);
+    if (this.settings.Journaled) {
+      this.journal = new UploaderCacheJournal(
+          this.cacheFile, this.settings.FileFormat, this.settings.CompactionThreshold);
+      this.cache = this.journal.open();
+    } else {
+      this.cache = UploaderCacheInformation.read(this.cacheFile);
+    }
+  }
+
+  /**
+   * Persist a change that has already been applied to {@link #cache}, and acknowledge it when the settings' durability
+   * allows.
+   *
+   * @param sock
+   *     The socket to acknowledge on.
+   * @param envelope
+   *     The envelope of the request that made the change.
+   * @param change
+   *     The change record.
+   */
+  private final void write(final ZMQ.Socket sock, final byte[][] envelope, final JSONObject change) {
+    try {
+      if (this.journal != null)
+        this.journal.append(change);
+
+      switch (this.settings.DurabilityMode) {
+        case IMMEDIATE:
+          if (this.journal == null)
+            this.cache.write(this.cacheFile, this.settings.FileFormat, false);
+          reply(sock, envelope, SUCCESS_RESPONSE);
+          return;
+
+        case GROUP_COMMIT:
+          this.uncommitted.add(envelope);
+          break;
+
+        case RELAXED:
+          reply(sock, envelope, SUCCESS_RESPONSE);
+          break;
       }
+    } catch (IOException e) {
+      e.printStackTrace();
+      reply(sock, envelope, FAILURE_RESPONSE);
+      return;
+    }
+
+    this.dirty = true;
+    this.uncommittedChanges++;
+    if (this.commitDeadline < 0)
+      this.commitDeadline = System.currentTimeMillis() + this.settings.CommitWindow;
+    if (this.uncommittedChanges >= this.settings.CommitCount)
+      commit(sock);
   }
 
-  private final void write() throws IOException {
-    try (final Writer writer = Files.newBufferedWriter(this.cacheFile)) {
-      this.cache.toJSON().write(writer);
+  /**
+   * Make every change since the last commit durable with a single sync, then acknowledge the changes that were waiting
+   * for it.
+   *
+   * @param sock
+   *     The socket to acknowledge on.
+   */
+  private final void commit(final ZMQ.Socket sock) {
+    this.commitDeadline = -1;
+    this.uncommittedChanges = 0;
+    if (!this.dirty)
+      return;
+    this.dirty = false;
+
+    byte[] response = SUCCESS_RESPONSE;
+    try {
+      if (this.journal != null)
+        this.journal.sync();
+      else
+        this.cache.write(this.cacheFile, this.settings.FileFormat, true);
+    } catch (IOException e) {
+      e.printStackTrace();
+      response = FAILURE_RESPONSE;
     }
+
+    for (byte[][] envelope : this.uncommitted)
+      reply(sock, envelope, response);
+    this.uncommitted.clear();
   }
 }
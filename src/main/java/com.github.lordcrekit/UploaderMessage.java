@@ -0,0 +1,330 @@
+package com.github.lordcrekit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A command sent to an {@link UploaderCacheThread} or an {@link UploaderServiceThread}.
+ * <p>
+ * Each command has a fixed list of fields, named by the single character keys the JSON protocol has always used. A
+ * field named <code>t</code>, <code>n</code> or <code>j</code> is a <code>long</code>, and <code>T</code> or
+ * <code>J</code> is an array of them. Any other upper case key is a list of strings, and any other lower case key is a
+ * string. In the binary protocol a
+ * message is the {@link #VERSION} byte, the command byte, then each field in order: strings as an <code>int</code>
+ * byte length followed by that much UTF-8, longs as 8 big-endian bytes, and arrays and lists as an <code>int</code>
+ * count followed by their elements. A JSON message always starts with <code>{</code>, so either can be decoded without
+ * being told which it is. Fields that are never put are sent empty, or as zero.
+ *
+ * @see UploaderCacheSettings.Protocol
+ */
+final class UploaderMessage {
+
+  /**
+   * The first byte of every binary message.
+   */
+  static final byte VERSION = 1;
+
+  /**
+   * @return The keys of the command's fields, in the order they are encoded.
+   */
+  static String fields(final byte command) {
+    switch (command) {
+      case UploaderCacheThread.FREEZE_COMMAND:
+        return "rpt";
+      case UploaderCacheThread.IGNORE_COMMAND:
+        return "p";
+      case UploaderCacheThread.UPDATE_COMMAND:
+        return "ftd";
+      case UploaderCacheThread.GET_FILE_STATUS:
+        return "f";
+      case UploaderCacheThread.GET_FILES_STATUS:
+        return "F";
+      case UploaderCacheThread.UPDATE_ALL_COMMAND:
+        return "FTD";
+      case UploaderCacheThread.GET_ENTRIES:
+        return "rawn";
+      case UploaderServiceThread.QUEUE_COMMAND:
+        return "fUnJ";
+      default:
+        return "";
+    }
+  }
+
+  final byte Command;
+
+  /**
+   * If the message was, or will be, sent in the binary protocol. Replies are sent in the same protocol.
+   */
+  final boolean Binary;
+
+  private final String keys;
+
+  /**
+   * The value of each field that is not a single long: a String, a List of Strings, or a long[].
+   */
+  private final Object[] values;
+  private final long[] longs;
+
+  private UploaderMessage(final byte command, final boolean binary) {
+    this.Command = command;
+    this.Binary = binary;
+    this.keys = fields(command);
+    this.values = new Object[this.keys.length()];
+    this.longs = new long[this.keys.length()];
+
+    // Fields that are never put are sent empty.
+    for (int i = 0; i < this.keys.length(); i++) {
+      final char k = this.keys.charAt(i);
+      if (isLongs(k))
+        this.values[i] = new long[0];
+      else if (isStrings(k))
+        this.values[i] = Collections.<String>emptyList();
+      else if (!isLong(k))
+        this.values[i] = "";
+    }
+  }
+
+  /**
+   * @param command
+   *     The command.
+   * @param protocol
+   *     The protocol it will be sent in.
+   */
+  UploaderMessage(final byte command, final UploaderCacheSettings.Protocol protocol) {
+    this(command, protocol == UploaderCacheSettings.Protocol.BINARY);
+  }
+
+  private int index(final char key) {
+    final int i = this.keys.indexOf(key);
+    if (i < 0)
+      throw new IllegalArgumentException("Command " + (char) this.Command + " has no field " + key);
+    return i;
+  }
+
+  UploaderMessage put(final char key, final String value) {
+    this.values[index(key)] = value;
+    return this;
+  }
+
+  UploaderMessage put(final char key, final List<String> value) {
+    this.values[index(key)] = value;
+    return this;
+  }
+
+  UploaderMessage put(final char key, final long[] value) {
+    this.values[index(key)] = value;
+    return this;
+  }
+
+  UploaderMessage put(final char key, final long value) {
+    this.longs[index(key)] = value;
+    return this;
+  }
+
+  String getString(final char key) {
+    return (String) this.values[index(key)];
+  }
+
+  @SuppressWarnings("unchecked")
+  List<String> getStrings(final char key) {
+    return (List<String>) this.values[index(key)];
+  }
+
+  long[] getLongs(final char key) {
+    return (long[]) this.values[index(key)];
+  }
+
+  long getLong(final char key) {
+    return this.longs[index(key)];
+  }
+
+  private static boolean isLong(final char key) {
+    return key == 't' || key == 'n' || key == 'j';
+  }
+
+  private static boolean isLongs(final char key) {
+    return key == 'T' || key == 'J';
+  }
+
+  private static boolean isStrings(final char key) {
+    return Character.isUpperCase(key) && !isLongs(key);
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Encoding">
+
+  /**
+   * @return The message, in the protocol it was created for.
+   */
+  byte[] encode() {
+    if (!this.Binary) {
+      final JSONObject obj = new JSONObject();
+      obj.put("c", this.Command);
+      for (int i = 0; i < this.keys.length(); i++) {
+        final char k = this.keys.charAt(i);
+        final String key = String.valueOf(k);
+        if (isLong(k))
+          obj.put(key, this.longs[i]);
+        else if (isLongs(k))
+          obj.put(key, new JSONArray(this.values[i]));
+        else if (isStrings(k))
+          obj.put(key, new JSONArray(getStrings(k)));
+        else
+          obj.put(key, this.values[i]);
+      }
+      return obj.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Encode the strings first, so the buffer can be sized exactly.
+    final Object[] encoded = new Object[this.keys.length()];
+    int size = 2;
+    for (int i = 0; i < this.keys.length(); i++) {
+      final char key = this.keys.charAt(i);
+      if (isLong(key)) {
+        size += 8;
+      } else if (isLongs(key)) {
+        size += 4 + 8 * ((long[]) this.values[i]).length;
+      } else if (isStrings(key)) {
+        final List<String> strings = getStrings(key);
+        final byte[][] bytes = new byte[strings.size()][];
+        size += 4;
+        for (int j = 0; j < bytes.length; j++) {
+          bytes[j] = strings.get(j).getBytes(StandardCharsets.UTF_8);
+          size += 4 + bytes[j].length;
+        }
+        encoded[i] = bytes;
+      } else {
+        final byte[] bytes = ((String) this.values[i]).getBytes(StandardCharsets.UTF_8);
+        size += 4 + bytes.length;
+        encoded[i] = bytes;
+      }
+    }
+
+    final ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.put(VERSION);
+    buf.put(this.Command);
+    for (int i = 0; i < this.keys.length(); i++) {
+      final char key = this.keys.charAt(i);
+      if (isLong(key)) {
+        buf.putLong(this.longs[i]);
+      } else if (isLongs(key)) {
+        final long[] longs = (long[]) this.values[i];
+        buf.putInt(longs.length);
+        for (long l : longs)
+          buf.putLong(l);
+      } else if (isStrings(key)) {
+        final byte[][] strings = (byte[][]) encoded[i];
+        buf.putInt(strings.length);
+        for (byte[] bytes : strings)
+          buf.putInt(bytes.length).put(bytes);
+      } else {
+        final byte[] bytes = (byte[]) encoded[i];
+        buf.putInt(bytes.length).put(bytes);
+      }
+    }
+    return buf.array();
+  }
+
+  /**
+   * @param bytes
+   *     A message in either protocol.
+   * @return The message.
+   * @throws IllegalArgumentException
+   *     If the message is malformed.
+   */
+  static UploaderMessage decode(final byte[] bytes) {
+    if (bytes.length == 0)
+      throw new IllegalArgumentException("Empty message");
+
+    if (bytes[0] != VERSION) {
+      final JSONObject obj = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+      final UploaderMessage msg = new UploaderMessage((byte) obj.getInt("c"), false);
+      for (int i = 0; i < msg.keys.length(); i++) {
+        final String key = String.valueOf(msg.keys.charAt(i));
+        final char k = msg.keys.charAt(i);
+        if (isLong(k)) {
+          msg.longs[i] = obj.getLong(key);
+        } else if (isLongs(k)) {
+          final JSONArray array = obj.getJSONArray(key);
+          final long[] longs = new long[array.length()];
+          for (int j = 0; j < longs.length; j++)
+            longs[j] = array.getLong(j);
+          msg.values[i] = longs;
+        } else if (isStrings(k)) {
+          final JSONArray array = obj.getJSONArray(key);
+          final List<String> strings = new ArrayList<>(array.length());
+          for (int j = 0; j < array.length(); j++)
+            strings.add(array.getString(j));
+          msg.values[i] = strings;
+        } else {
+          msg.values[i] = obj.getString(key);
+        }
+      }
+      return msg;
+    }
+
+    if (bytes.length < 2)
+      throw new IllegalArgumentException("Truncated message: " + Arrays.toString(bytes));
+    final UploaderMessage msg = new UploaderMessage(bytes[1], true);
+    final int[] pos = {2};
+    for (int i = 0; i < msg.keys.length(); i++) {
+      final char k = msg.keys.charAt(i);
+      if (isLong(k)) {
+        msg.longs[i] = readLong(bytes, pos[0]);
+        pos[0] += 8;
+      } else if (isLongs(k)) {
+        final long[] longs = new long[readCount(bytes, pos, 8)];
+        for (int j = 0; j < longs.length; j++, pos[0] += 8)
+          longs[j] = readLong(bytes, pos[0]);
+        msg.values[i] = longs;
+      } else if (isStrings(k)) {
+        final int count = readCount(bytes, pos, 4);
+        final List<String> strings = new ArrayList<>(count);
+        for (int j = 0; j < count; j++)
+          strings.add(readString(bytes, pos));
+        msg.values[i] = strings;
+      } else {
+        msg.values[i] = readString(bytes, pos);
+      }
+    }
+    return msg;
+  }
+
+  /**
+   * Read a count, and check that the message is long enough to hold that many elements of at least the given size.
+   */
+  private static int readCount(final byte[] bytes, final int[] pos, final int elementSize) {
+    final int count = readInt(bytes, pos[0]);
+    pos[0] += 4;
+    if (count < 0 || (long) count * elementSize > bytes.length - pos[0])
+      throw new IllegalArgumentException("Truncated message");
+    return count;
+  }
+
+  static String readString(final byte[] bytes, final int[] pos) {
+    final int length = readCount(bytes, pos, 1);
+    final String s = new String(bytes, pos[0], length, StandardCharsets.UTF_8);
+    pos[0] += length;
+    return s;
+  }
+
+  static int readInt(final byte[] bytes, final int pos) {
+    if (pos + 4 > bytes.length)
+      throw new IllegalArgumentException("Truncated message");
+    return (bytes[pos] & 0xFF) << 24
+        | (bytes[pos + 1] & 0xFF) << 16
+        | (bytes[pos + 2] & 0xFF) << 8
+        | (bytes[pos + 3] & 0xFF);
+  }
+
+  static long readLong(final byte[] bytes, final int pos) {
+    return (long) readInt(bytes, pos) << 32 | (readInt(bytes, pos + 4) & 0xFFFFFFFFL);
+  }
+  // </editor-fold>
+}
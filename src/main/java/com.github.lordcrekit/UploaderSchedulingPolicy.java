@@ -0,0 +1,109 @@
+package com.github.lordcrekit;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * The UploaderSchedulingPolicy decides the order queued files are uploaded in.
+ * <p>
+ * Each request is ranked once, when it is queued, and waiting requests are considered lowest rank first. Requests
+ * queued with a higher priority always come before those with a lower one, whatever their rank, and requests of equal
+ * rank are considered in the order they were queued. Ranks are only compared, so a policy may count in whatever units
+ * suit it.
+ * <p>
+ * Policies are only called from the service's own thread.
+ *
+ * @author William A. Norman <a href="norman.william.dev@gmail.com"/>
+ * @see UploaderServiceSettings#setSchedulingPolicy(UploaderSchedulingPolicy)
+ */
+public interface UploaderSchedulingPolicy {
+
+  /**
+   * @param file
+   *     The file being queued.
+   * @param destination
+   *     The destination it is queued for.
+   * @return The request's rank. Lower ranks are uploaded sooner.
+   */
+  long rank(Path file, URI destination);
+
+  /**
+   * Called when a request is taken from the queue and needs uploading, for policies whose ranks depend on what has
+   * already been served.
+   *
+   * @param file
+   *     The file being uploaded.
+   * @param destination
+   *     The destination it is uploaded to.
+   * @param rank
+   *     The request's rank.
+   */
+  default void started(final Path file, final URI destination, final long rank) {
+  }
+
+  /**
+   * Called instead of {@link #started(Path, URI, long)} when a request is taken from the queue but the file is already
+   * up to date, so a policy that counted it against anything when ranking it can take that back.
+   *
+   * @param file
+   *     The file that was queued.
+   * @param destination
+   *     The destination it was queued for.
+   * @param rank
+   *     The request's rank.
+   */
+  default void skipped(final Path file, final URI destination, final long rank) {
+  }
+
+  /**
+   * @return Upload files in the order they were queued. This is the default.
+   */
+  static UploaderSchedulingPolicy fifo() {
+    return (Path file, URI destination) -> 0;
+  }
+
+  /**
+   * A large file queued among many small ones would hold them all up, so this lets the small ones go first. While
+   * smaller files keep arriving, a large one can wait indefinitely; {@link #weightedFair(Map)} does not have that
+   * problem.
+   *
+   * @return Upload the smallest files first.
+   */
+  static UploaderSchedulingPolicy smallestFirst() {
+    return (Path file, URI destination) -> {
+      try {
+        return Files.size(file);
+      } catch (IOException e) {
+        return 0; // It will be skipped quickly anyway.
+      }
+    };
+  }
+
+  /**
+   * @return Upload the files that were modified longest ago first, so the oldest unsaved changes are saved soonest.
+   */
+  static UploaderSchedulingPolicy oldestModificationFirst() {
+    return (Path file, URI destination) -> {
+      try {
+        return Files.getLastModifiedTime(file).toMillis();
+      } catch (IOException e) {
+        return 0;
+      }
+    };
+  }
+
+  /**
+   * Share the uploads between directory trees in proportion to their weights, counted in bytes. A tree that queues a
+   * great deal can not hold up the others, and within a tree files keep the order they were queued in.
+   *
+   * @param weights
+   *     The weight of each root. Files under none of them share a weight of 1.
+   * @return Upload the files of each root in turn, in proportion to the roots' weights.
+   */
+  static UploaderSchedulingPolicy weightedFair(final Map<Path, Integer> weights) {
+    return new UploaderWeightedFairPolicy(weights);
+  }
+}
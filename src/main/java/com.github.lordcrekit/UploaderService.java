@@ -1,7 +1,5 @@
 package com.github.lordcrekit;
 
-import org.json.JSONObject;
-import org.json.JSONTokener;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 
@@ -9,6 +7,9 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Level;
@@ -26,6 +27,11 @@ public class UploaderService implements Closeable {
   final static Level SOCKET_LOGGING_LEVEL = Level.FINE;
   final static Level BEHAVIOUR_LOGGING_LEVEL = Level.INFO;
 
+  /**
+   * How long {@link #terminate()} waits on its own socket before checking the service is still running.
+   */
+  private final static int TERMINATE_RETRY_MILLIS = 100;
+
   static String makeAddress(String prefix) {
     return "inproc://"
         + prefix
@@ -38,11 +44,25 @@ public class UploaderService implements Closeable {
   private final String address;
   private final UploaderCache cache;
   private final UploaderRouter router;
-  private final UploaderStrategy strategy;
 
   private final UploaderServiceThread threadService;
+
+  /**
+   * Where queued requests are written, or <code>null</code> if they are not.
+   */
+  private final UploaderServiceJournal journal;
   private final Thread thread;
 
+  /**
+   * The PUSH socket each calling thread queues uploads through.
+   */
+  private final UploaderSockets sockets;
+
+  /**
+   * How requests are encoded. The same as the cache's.
+   */
+  private final UploaderCacheSettings.Protocol protocol;
+
   /**
    * Create a new UploadService.
    */
@@ -50,6 +70,44 @@ public class UploaderService implements Closeable {
                          final UploaderCache cache,
                          final UploaderRouter router,
                          final UploaderStrategy strategy) {
+    this(context, cache, router, strategy, new UploaderServiceSettings());
+  }
+
+  /**
+   * Create a new UploadService.
+   *
+   * @param settings
+   *     How uploads are run.
+   */
+  public UploaderService(final ZContext context,
+                         final UploaderCache cache,
+                         final UploaderRouter router,
+                         final UploaderStrategy strategy,
+                         final UploaderServiceSettings settings) {
+    this(context, cache, router, strategy, null, settings);
+  }
+
+  /**
+   * Create a new UploadService that keeps many uploads outstanding on an asynchronous strategy, without a thread
+   * waiting on each.
+   *
+   * @param settings
+   *     How uploads are run. The worker count and virtual threads are not used.
+   */
+  public UploaderService(final ZContext context,
+                         final UploaderCache cache,
+                         final UploaderRouter router,
+                         final AsyncUploaderStrategy strategy,
+                         final UploaderServiceSettings settings) {
+    this(context, cache, router, null, strategy, settings);
+  }
+
+  private UploaderService(final ZContext context,
+                          final UploaderCache cache,
+                          final UploaderRouter router,
+                          final UploaderStrategy strategy,
+                          final AsyncUploaderStrategy asyncStrategy,
+                          final UploaderServiceSettings settings) {
 
     this.context = context;
 
@@ -57,11 +115,32 @@ public class UploaderService implements Closeable {
 
     this.cache = cache;
     this.router = router;
-    this.strategy = strategy;
 
-    this.threadService = new UploaderServiceThread(this.context, this.address, this.cache, this.strategy);
+    List<UploaderServiceJournal.Entry> backlog = Collections.emptyList();
+    UploaderServiceJournal journal = null;
+    if (settings.Journaled) {
+      if (cache == null)
+        throw new IllegalArgumentException("A journaled service needs a cache to keep its journal next to");
+      journal = new UploaderServiceJournal(cache.getFile());
+      try {
+        backlog = journal.open();
+      } catch (IOException e) {
+        Logger.getLogger(UploaderService.class.getName()).log(
+            Level.WARNING, "Failed to read the upload journal of " + cache.getFile() + "; running without it", e);
+        journal = null;
+      }
+    }
+    this.journal = journal;
+
+    this.threadService = new UploaderServiceThread(
+        this.context, this.address, this.cache, strategy, asyncStrategy, this.journal, settings);
     this.thread = new Thread(this.threadService, UploaderService.class.getSimpleName());
     this.thread.start();
+
+    this.sockets = new UploaderSockets(this.context, this.address, ZMQ.PUSH);
+    this.protocol = cache != null ? cache.getProtocol() : new UploaderCacheSettings().WireProtocol;
+
+    replay(backlog);
   }
 
   /**
@@ -71,23 +150,27 @@ public class UploaderService implements Closeable {
    *     The file to upload.
    * @param destination
    *     The destination to upload to.
+   * @see #offerUpload(Path, URI)
    */
   public void queueUpload(final Path file, final URI destination) {
-    final ZMQ.Socket sock = this.context.createSocket(ZMQ.PUSH);
-    try {
-      sock.connect(this.address);
-      final JSONObject msg = new JSONObject();
-      msg.put("c", UploaderServiceThread.QUEUE_COMMAND);
-      msg.put("f", file.normalize().toString());
-      msg.put("u", destination.normalize().toString());
+    queueUpload(file, destination, 0);
+  }
 
-      sock.send(msg.toString());
-    } finally {
-      context.destroySocket(sock);
-      Logger.getLogger(UploaderService.class.getName()).log(
-          UploaderService.SOCKET_LOGGING_LEVEL,
-          "Closing queueing socket");
-    }
+  /**
+   * Queue a file for upload, ahead of every file queued with a lower priority. If the queue is bounded and full, the
+   * request is dropped once the settings' overflow mode gives up on it; {@link #offerUpload(Path, URI, int)} says when.
+   *
+   * @param file
+   *     The file to upload.
+   * @param destination
+   *     The destination to upload to.
+   * @param priority
+   *     The file's priority. Files are queued with a priority of <code>0</code> by default.
+   * @see UploaderSchedulingPolicy
+   */
+  public void queueUpload(final Path file, final URI destination, final int priority) {
+    if (!offerUpload(file, destination, priority))
+      dropped(file, 1);
   }
 
   /**
@@ -95,31 +178,219 @@ public class UploaderService implements Closeable {
    *
    * @param file
    *     The file to upload.
+   * @see #offerUpload(Path)
    */
   public void queueUpload(final Path file) {
+    queueUpload(file, 0);
+  }
+
+  /**
+   * Queue a file for upload, ahead of every file queued with a lower priority. The service's {@link UploaderRouter}
+   * determines locations to upload to. If the queue is bounded and full, the destinations there is no room for are
+   * dropped once the settings' overflow mode gives up on them; {@link #offerUpload(Path, int)} says which.
+   *
+   * @param file
+   *     The file to upload.
+   * @param priority
+   *     The file's priority. Files are queued with a priority of <code>0</code> by default.
+   */
+  public void queueUpload(final Path file, final int priority) {
     final List<URI> destinations = this.router.route(file);
-    if (destinations.isEmpty()) {
-      return;
+    final int queued = queue(file, destinations, priority).size();
+    if (queued < destinations.size())
+      dropped(file, destinations.size() - queued);
+  }
+
+  /**
+   * Queue a file for upload, if there is room for it.
+   *
+   * @param file
+   *     The file to upload.
+   * @param destination
+   *     The destination to upload to.
+   * @return If the file was queued. It always is unless the queue is bounded and full.
+   * @see UploaderServiceSettings#setQueueLimit(int, UploaderServiceSettings.Overflow)
+   */
+  public boolean offerUpload(final Path file, final URI destination) {
+    return offerUpload(file, destination, 0);
+  }
+
+  /**
+   * Queue a file for upload ahead of every file queued with a lower priority, if there is room for it.
+   *
+   * @param file
+   *     The file to upload.
+   * @param destination
+   *     The destination to upload to.
+   * @param priority
+   *     The file's priority.
+   * @return If the file was queued. It always is unless the queue is bounded and full.
+   * @see UploaderServiceSettings#setQueueLimit(int, UploaderServiceSettings.Overflow)
+   */
+  public boolean offerUpload(final Path file, final URI destination, final int priority) {
+    return !queue(file, Collections.singletonList(destination), priority).isEmpty();
+  }
+
+  /**
+   * Queue a file for upload to each location the service's {@link UploaderRouter} determines, as far as there is room.
+   *
+   * @param file
+   *     The file to upload.
+   * @return The destinations the file was queued to. It always is to every one unless the queue is bounded and full.
+   * @see UploaderServiceSettings#setQueueLimit(int, UploaderServiceSettings.Overflow)
+   */
+  public List<URI> offerUpload(final Path file) {
+    return offerUpload(file, 0);
+  }
+
+  /**
+   * Queue a file for upload to each location the service's {@link UploaderRouter} determines, ahead of every file
+   * queued with a lower priority, as far as there is room.
+   *
+   * @param file
+   *     The file to upload.
+   * @param priority
+   *     The file's priority.
+   * @return The destinations the file was queued to, in the order the router gave them. It always is to every one
+   * unless the queue is bounded and full, in which case it is only queued to the first ones, that there was room for.
+   * @see UploaderServiceSettings#setQueueLimit(int, UploaderServiceSettings.Overflow)
+   */
+  public List<URI> offerUpload(final Path file, final int priority) {
+    return queue(file, this.router.route(file), priority);
+  }
+
+  /**
+   * Make room for and send requests to upload a file to each of the destinations, in order, until there is no room.
+   *
+   * @return The destinations the file was queued to.
+   */
+  private List<URI> queue(final Path file, final List<URI> destinations, final int priority) {
+    // The destinations are sent together, so a fan-out strategy reads the file once for all of them. Room is only waited
+    // for while none is held, though, so a file routed to more destinations than the queue holds is sent in parts
+    // rather than wait on itself.
+    final String path = file.normalize().toString();
+    final List<String> sending = new ArrayList<>();
+    int sent = 0;
+    for (URI uri : destinations) {
+      if (!(sending.isEmpty() ? this.threadService.reserve() : this.threadService.tryReserve())) {
+        if (!sending.isEmpty()) {
+          send(path, sending, priority);
+          sent += sending.size();
+          sending.clear();
+        }
+        if (!this.threadService.reserve())
+          return new ArrayList<>(destinations.subList(0, sent));
+      }
+      sending.add(uri.normalize().toString());
     }
+    if (!sending.isEmpty())
+      send(path, sending, priority);
+    return new ArrayList<>(destinations);
+  }
 
-    final ZMQ.Socket sock = this.context.createSocket(ZMQ.PUSH);
-    try {
-      sock.connect(this.address);
+  private static void dropped(final Path file, final int destinations) {
+    Logger.getLogger(UploaderService.class.getName()).log(
+        Level.WARNING, "The upload queue is full; dropped " + destinations + " requests to upload " + file);
+  }
 
-      for (URI uri : destinations) {
-        final JSONObject msg = new JSONObject();
-        msg.put("c", UploaderServiceThread.QUEUE_COMMAND);
-        msg.put("f", file.normalize().toString());
-        msg.put("u", uri.normalize().toString());
+  /**
+   * Journal a request to upload a file to each of the destinations, if the service is journaled, and send it to the
+   * service thread. Room must already have been made for each destination.
+   */
+  private void send(final String file, final List<String> destinations, final int priority) {
+    final long[] journalIds = new long[destinations.size()];
+    Arrays.fill(journalIds, -1);
+    if (this.journal != null) {
+      try {
+        for (int i = 0; i < journalIds.length; i++)
+          journalIds[i] = this.journal.append(file, destinations.get(i), priority);
+      } catch (IOException e) {
+        Logger.getLogger(UploaderService.class.getName()).log(
+            Level.WARNING, "Failed to journal upload of " + file + "; it will not survive a restart", e);
+      }
+    }
+    this.sockets.send(0, queueMessage(file, destinations, priority, journalIds).encode());
+  }
+
+  private UploaderMessage queueMessage(final String file,
+                                       final List<String> destinations,
+                                       final int priority,
+                                       final long[] journalIds) {
+    return new UploaderMessage(UploaderServiceThread.QUEUE_COMMAND, this.protocol)
+        .put('f', file)
+        .put('U', destinations)
+        .put('n', priority)
+        .put('J', journalIds);
+  }
 
-        sock.send(msg.toString());
+  /**
+   * Queue every request left in the journal by an earlier service, with the ids they were journaled under. Requests
+   * journaled together for a file are sent together again.
+   */
+  private void replay(final List<UploaderServiceJournal.Entry> entries) {
+    final List<String> destinations = new ArrayList<>();
+    final List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < entries.size(); i++) {
+      final UploaderServiceJournal.Entry e = entries.get(i);
+      if (destinations.isEmpty())
+        this.threadService.reserveUninterruptibly();
+      else if (!this.threadService.tryReserve()) {
+        this.sockets.send(0, queueMessage(e.File, destinations, e.Priority, toArray(ids)).encode());
+        destinations.clear();
+        ids.clear();
+        this.threadService.reserveUninterruptibly();
+      }
+      destinations.add(e.Destination);
+      ids.add(e.Id);
+
+      final UploaderServiceJournal.Entry next = i + 1 < entries.size() ? entries.get(i + 1) : null;
+      if (next == null || !next.File.equals(e.File) || next.Priority != e.Priority
+          || destinations.contains(next.Destination)) {
+        this.sockets.send(0, queueMessage(e.File, destinations, e.Priority, toArray(ids)).encode());
+        destinations.clear();
+        ids.clear();
       }
-    } finally {
-      context.destroySocket(sock);
-      Logger.getLogger(UploaderService.class.getName()).log(
-          UploaderService.SOCKET_LOGGING_LEVEL,
-          "Closing queuing socket");
     }
+    if (!entries.isEmpty())
+      Logger.getLogger(UploaderService.class.getName()).log(
+          UploaderService.BEHAVIOUR_LOGGING_LEVEL, "Queued " + entries.size() + " requests left in the journal");
+  }
+
+  private static long[] toArray(final List<Long> longs) {
+    final long[] array = new long[longs.size()];
+    for (int i = 0; i < array.length; i++)
+      array[i] = longs.get(i);
+    return array;
+  }
+
+  /**
+   * @return How many upload requests the service has received, counting each destination of a file separately.
+   */
+  public long getQueuedRequests() {
+    return this.threadService.Queued.get();
+  }
+
+  /**
+   * @return How many upload requests were dropped because the same file was already waiting to be uploaded to the same
+   * destination, or was already marked to be checked again once its upload in progress finishes.
+   */
+  public long getCoalescedRequests() {
+    return this.threadService.Coalesced.get();
+  }
+
+  /**
+   * @return How many requests are queued and not yet being uploaded, including ones the service has not received yet.
+   */
+  public int getQueueDepth() {
+    // The counts are read separately, so an upload finishing in between can briefly make the difference negative.
+    return Math.max(0, this.threadService.Outstanding.get() - this.threadService.InFlight.get());
+  }
+
+  /**
+   * @return How many uploads are running.
+   */
+  public int getInFlight() {
+    return this.threadService.InFlight.get();
   }
 
   /**
@@ -127,13 +398,25 @@ public class UploaderService implements Closeable {
    * as soon as possible, call {@link #close()}.
    */
   public void terminate() {
+    final UploaderMessage msg = new UploaderMessage(UploaderServiceThread.TERMINATE_COMMAND, this.protocol);
+
+    // The calling thread's queueing socket keeps the termination behind the uploads it queued, but it blocks once the
+    // service is gone, and this may be called again after the service has already terminated. So it is only tried
+    // without waiting, and a socket of its own is used if that fails.
+    if (!this.thread.isAlive())
+      return;
+    if (this.sockets.send(ZMQ.DONTWAIT, msg.encode()))
+      return;
+
     final ZMQ.Socket sock = this.context.createSocket(ZMQ.PUSH);
     try {
       sock.connect(this.address);
-      final JSONObject msg = new JSONObject();
-      msg.put("c", UploaderServiceThread.TERMINATE_COMMAND);
-
-      sock.send(msg.toString());
+      // A socket connecting while the service closes its own is never attached, so it stops waiting once the
+      // service is gone.
+      sock.setSendTimeOut(TERMINATE_RETRY_MILLIS);
+      while (!sock.send(msg.encode()) && this.thread.isAlive())
+        Logger.getLogger(UploaderService.class.getName()).log(
+            UploaderService.SOCKET_LOGGING_LEVEL, "Retrying termination");
     } finally {
       context.destroySocket(sock);
       Logger.getLogger(UploaderService.class.getName()).log(
@@ -160,6 +443,7 @@ public class UploaderService implements Closeable {
       this.threadService.CloseNow.set(true);
       this.terminate();
       this.awaitTermination();
+      this.sockets.close();
     } catch (InterruptedException e) {
       throw new IOException("Do not interrupt thread closing UploaderService.", e);
     }
@@ -0,0 +1,292 @@
+package com.github.lordcrekit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only log of the requests queued with an {@link UploaderService}, kept next to its cache file, so they are
+ * not lost if the service stops before getting to them.
+ * <p>
+ * Each request is appended as one JSON record per line, with an id that only ever increases, before it is sent to the
+ * service thread. The journal is split into numbered segments of a fixed number of records. The service thread
+ * acknowledges each request once its upload is recorded in the cache, or it turns out not to be needed, and a segment
+ * whose every request has been acknowledged is deleted. A request whose upload failed is never acknowledged, so it is
+ * tried again when the service next starts. Nothing else is ever written, so starting up only reads the segments that
+ * still hold unfinished requests, however large the trees being uploaded are. A replayed segment may hold requests that
+ * were already done; deciding them again against the cache skips them.
+ * <p>
+ * Records are written, but not synced to disk, so the journal survives the process stopping but not the machine
+ * crashing. Syncing every request would make queueing a large tree as slow as the disk's flushes.
+ *
+ * @see UploaderServiceSettings#setJournaled(boolean)
+ */
+final class UploaderServiceJournal implements Closeable {
+
+  private static final String SEGMENT_INFIX = ".queue.";
+
+  /**
+   * The number of requests written to a segment before the next one is started.
+   */
+  static final int SEGMENT_RECORDS = 1024;
+
+  /**
+   * A request read back from the journal.
+   */
+  static final class Entry {
+    final long Id;
+    final String File;
+    final String Destination;
+    final int Priority;
+
+    Entry(final long id, final String file, final String destination, final int priority) {
+      this.Id = id;
+      this.File = file;
+      this.Destination = destination;
+      this.Priority = priority;
+    }
+  }
+
+  /**
+   * A segment file, and how many of its requests have not been acknowledged.
+   */
+  private static final class Segment {
+    final Path path;
+    int pending = 0;
+
+    Segment(final Path path) {
+      this.path = path;
+    }
+  }
+
+  private final Path cacheFile;
+
+  /**
+   * Every segment that still exists, keyed by the id of its first request.
+   */
+  private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+
+  private FileChannel active;
+  private Segment activeSegment;
+  private long segmentNumber;
+  private int segmentRecords;
+  private long nextId;
+
+  /**
+   * @param cacheFile
+   *     The cache file the segments are kept next to.
+   */
+  UploaderServiceJournal(final Path cacheFile) {
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Read every request left in the journal. New requests go to a fresh segment, so a record that was torn by a crash is
+   * never appended to.
+   *
+   * @return The requests, in the order they were queued. They stay in the journal until they are acknowledged.
+   * @throws IOException
+   *     If the journal can not be read.
+   */
+  synchronized List<Entry> open() throws IOException {
+    final List<Entry> entries = new ArrayList<>();
+    long lastNumber = -1;
+    for (Path path : segments(this.cacheFile)) {
+      lastNumber = segmentNumber(prefix(this.cacheFile), path);
+      final List<Entry> read = read(path);
+      if (read.isEmpty()) {
+        Files.deleteIfExists(path);
+        continue;
+      }
+
+      final Segment segment = new Segment(path);
+      segment.pending = read.size();
+      this.segments.put(read.get(0).Id, segment);
+      entries.addAll(read);
+      this.nextId = read.get(read.size() - 1).Id + 1;
+    }
+    this.segmentNumber = lastNumber + 1;
+    return entries;
+  }
+
+  /**
+   * Append a request.
+   *
+   * @return The request's id, to acknowledge it with.
+   * @throws IOException
+   *     If the request could not be written.
+   */
+  synchronized long append(final String file, final String destination, final int priority) throws IOException {
+    if (this.active == null) {
+      this.activeSegment = new Segment(segmentPath(this.cacheFile, this.segmentNumber));
+      this.active = FileChannel.open(this.activeSegment.path,
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      this.segments.put(this.nextId, this.activeSegment);
+    }
+
+    final long id = this.nextId++;
+    final JSONObject record = new JSONObject();
+    record.put("j", id);
+    record.put("f", file);
+    record.put("u", destination);
+    record.put("n", priority);
+
+    final ByteBuffer buf = ByteBuffer.wrap((record.toString() + '\n').getBytes(StandardCharsets.UTF_8));
+    while (buf.hasRemaining())
+      this.active.write(buf);
+    this.activeSegment.pending++;
+
+    if (++this.segmentRecords >= SEGMENT_RECORDS)
+      retire();
+    return id;
+  }
+
+  /**
+   * Mark a request as done with. Once every request of a finished segment is, the segment is deleted.
+   *
+   * @param id
+   *     The request's id.
+   */
+  synchronized void acknowledge(final long id) {
+    final Map.Entry<Long, Segment> e = this.segments.floorEntry(id);
+    if (e == null)
+      return;
+
+    final Segment segment = e.getValue();
+    if (--segment.pending == 0 && segment != this.activeSegment) {
+      this.segments.remove(e.getKey());
+      delete(segment);
+    }
+  }
+
+  /**
+   * Close the active segment.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (this.active != null)
+      retire();
+  }
+
+  /**
+   * Finish the active segment, deleting it if every request in it is already done with; the next request starts a new
+   * one.
+   */
+  private void retire() throws IOException {
+    final Segment segment = this.activeSegment;
+    this.active.close();
+    this.active = null;
+    this.activeSegment = null;
+    this.segmentNumber++;
+    this.segmentRecords = 0;
+
+    if (segment.pending == 0) {
+      this.segments.values().remove(segment);
+      delete(segment);
+    }
+  }
+
+  private void delete(final Segment segment) {
+    try {
+      Files.deleteIfExists(segment.path);
+    } catch (IOException e) {
+      // Left behind, it is only replayed, and skipped, on the next start.
+      Logger.getLogger(UploaderServiceJournal.class.getName()).log(
+          Level.WARNING, "Failed to delete finished queue segment " + segment.path, e);
+    }
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Segment files">
+
+  /**
+   * @param cacheFile
+   *     The cache file.
+   * @return Every queue journal segment next to a cache file, in the order they were written.
+   * @throws IOException
+   *     If the directory can not be listed.
+   */
+  static List<Path> segments(final Path cacheFile) throws IOException {
+    final Path dir = cacheFile.toAbsolutePath().getParent();
+    final String prefix = prefix(cacheFile);
+
+    // Matched by hand rather than with a glob, since the cache file's name may contain glob syntax.
+    final List<Path> found = new ArrayList<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path p : stream)
+        if (segmentNumber(prefix, p) >= 0)
+          found.add(p);
+    }
+    found.sort((Path a, Path b) -> Long.compare(segmentNumber(prefix, a), segmentNumber(prefix, b)));
+    return found;
+  }
+
+  /**
+   * @return The start of the name of every segment of a cache file.
+   */
+  private static String prefix(final Path cacheFile) {
+    return cacheFile.getFileName().toString() + SEGMENT_INFIX;
+  }
+
+  private static Path segmentPath(final Path cacheFile, final long number) {
+    return cacheFile.resolveSibling(prefix(cacheFile) + number);
+  }
+
+  /**
+   * @param prefix
+   *     The cache file's name followed by the segment infix.
+   * @return The segment's number, or <code>-1</code> if the file is not a segment of the cache file.
+   */
+  private static long segmentNumber(final String prefix, final Path segment) {
+    final String name = segment.getFileName().toString();
+    if (!name.startsWith(prefix) || name.length() == prefix.length())
+      return -1;
+    for (int i = prefix.length(); i < name.length(); i++)
+      if (name.charAt(i) < '0' || name.charAt(i) > '9')
+        return -1;
+    try {
+      return Long.parseLong(name.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static List<Entry> read(final Path segment) throws IOException {
+    final List<Entry> entries = new ArrayList<>();
+    try (final BufferedReader rdr = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = rdr.readLine()) != null) {
+        if (line.isEmpty())
+          continue;
+        try {
+          final JSONObject record = new JSONObject(line);
+          entries.add(new Entry(
+              record.getLong("j"), record.getString("f"), record.getString("u"), record.getInt("n")));
+        } catch (JSONException e) {
+          // Only the last record of a segment can be torn, by a crash while it was being appended.
+          Logger.getLogger(UploaderServiceJournal.class.getName()).log(
+              Level.WARNING, "Skipping torn queue journal record in " + segment, e);
+          break;
+        }
+      }
+    }
+    return entries;
+  }
+  // </editor-fold>
+}
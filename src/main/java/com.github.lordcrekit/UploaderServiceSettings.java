@@ -0,0 +1,245 @@
+package com.github.lordcrekit;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Options for how an {@link UploaderService} runs its uploads. The defaults behave exactly like an UploaderService
+ * created without settings.
+ *
+ * @author William A. Norman <a href="norman.william.dev@gmail.com"/>
+ */
+public final class UploaderServiceSettings {
+
+  /**
+   * What queueing a file does when the queue is full.
+   */
+  public enum Overflow {
+    /**
+     * Wait until there is room.
+     */
+    BLOCK,
+
+    /**
+     * Wait until there is room, for at most the overflow timeout, and then give up.
+     */
+    TIMEOUT,
+
+    /**
+     * Give up straight away.
+     */
+    REJECT
+  }
+
+  /**
+   * The most uploads running at once.
+   */
+  int Workers = 1;
+
+  /**
+   * The most uploads running at once to any one destination.
+   */
+  int DestinationConcurrency = Integer.MAX_VALUE;
+
+  /**
+   * The most requests queued or being uploaded at once, or <code>0</code> for no limit.
+   */
+  int QueueLimit = 0;
+
+  /**
+   * What queueing does when the queue is full.
+   */
+  Overflow OverflowMode = Overflow.BLOCK;
+
+  /**
+   * How long {@link Overflow#TIMEOUT} waits for room, in milliseconds.
+   */
+  long OverflowTimeout = 1000;
+
+  /**
+   * The order queued files are uploaded in.
+   */
+  UploaderSchedulingPolicy SchedulingPolicy = UploaderSchedulingPolicy.fifo();
+
+  /**
+   * The most files, and bytes, a {@link BatchUploaderStrategy} is handed at once, and how long the first file of a
+   * batch waits for more, in milliseconds.
+   */
+  int BatchFiles = 64;
+  long BatchBytes = 8 * 1024 * 1024;
+  long BatchWindow = 50;
+
+  /**
+   * If queued requests are written to a journal next to the cache file.
+   */
+  boolean Journaled = false;
+
+  /**
+   * If each upload runs on a virtual thread of its own, rather than on a pool of workers.
+   */
+  boolean VirtualThreads = false;
+
+  /**
+   * @return If this JVM has virtual threads, which are needed by {@link #setVirtualThreads(boolean)}.
+   */
+  public static boolean isVirtualThreadSupported() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return A new executor that starts a virtual thread for each task.
+   * @throws UnsupportedOperationException
+   *     If this JVM has no virtual threads.
+   */
+  static ExecutorService newVirtualThreadExecutor() {
+    // Found reflectively, so the library still builds for and runs on Java 8.
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+    }
+  }
+
+  /**
+   * Run uploads on a pool of worker threads. The service thread still decides what needs uploading, in the order files
+   * were queued, so one slow upload no longer holds up every other file. A file is never uploaded to the same
+   * destination twice at once; a request for it waits until the upload in progress is done.
+   *
+   * @param workers
+   *     The most uploads running at once. Must be positive.
+   * @return This.
+   */
+  public UploaderServiceSettings setWorkers(final int workers) {
+    if (workers <= 0)
+      throw new IllegalArgumentException("Worker count must be positive: " + workers);
+    this.Workers = workers;
+    return this;
+  }
+
+  /**
+   * Run each upload on a virtual thread of its own. Uploads that spend their time blocked on the network then cost
+   * almost nothing while they wait, so thousands can be in flight without sizing a pool; the worker count is not used.
+   * Use {@link #setDestinationConcurrency(int)} to limit how hard each destination is pushed.
+   *
+   * @param virtualThreads
+   *     If uploads should run on virtual threads.
+   * @return This.
+   * @throws UnsupportedOperationException
+   *     If this JVM has no virtual threads.
+   * @see #isVirtualThreadSupported()
+   */
+  public UploaderServiceSettings setVirtualThreads(final boolean virtualThreads) {
+    if (virtualThreads && !isVirtualThreadSupported())
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+    this.VirtualThreads = virtualThreads;
+    return this;
+  }
+
+  /**
+   * @param policy
+   *     The order queued files are uploaded in. Each service needs a policy of its own, since policies may keep track
+   *     of what they have served.
+   * @return This.
+   * @see UploaderSchedulingPolicy
+   */
+  public UploaderServiceSettings setSchedulingPolicy(final UploaderSchedulingPolicy policy) {
+    if (policy == null)
+      throw new IllegalArgumentException("Scheduling policy can not be null");
+    this.SchedulingPolicy = policy;
+    return this;
+  }
+
+  /**
+   * Bound the queue, so a burst of requests can not grow it without limit. Every request for a destination counts from
+   * when it is queued until it has been decided against, dropped as a repeat, or uploaded.
+   *
+   * @param requests
+   *     The most requests queued or being uploaded at once, or <code>0</code> for no limit.
+   * @param overflow
+   *     What queueing does when the queue is full.
+   * @return This.
+   * @see UploaderService#offerUpload(java.nio.file.Path)
+   */
+  public UploaderServiceSettings setQueueLimit(final int requests, final Overflow overflow) {
+    if (requests < 0)
+      throw new IllegalArgumentException("Queue limit can not be negative: " + requests);
+    this.QueueLimit = requests;
+    this.OverflowMode = overflow;
+    return this;
+  }
+
+  /**
+   * @param millis
+   *     How long {@link Overflow#TIMEOUT} waits for room in the queue. Must not be negative.
+   * @return This.
+   */
+  public UploaderServiceSettings setOverflowTimeout(final long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("Overflow timeout can not be negative: " + millis);
+    this.OverflowTimeout = millis;
+    return this;
+  }
+
+  /**
+   * Write every queued request to an append-only journal next to the cache file before sending it to the service, so
+   * requests the service had not finished when it stopped, or crashed, are queued again by the next service created
+   * with the same cache. Requests are only dropped from the journal once they are done with, so a request may be
+   * decided twice, but the cache makes sure a file is not uploaded twice for it. A request whose upload failed stays in
+   * the journal, and is tried again by the next service. The journal is not synced to disk as requests are written, so
+   * requests may be lost if the machine crashes.
+   *
+   * @param journaled
+   *     If queued requests should be journaled. The service must have a cache.
+   * @return This.
+   */
+  public UploaderServiceSettings setJournaled(final boolean journaled) {
+    this.Journaled = journaled;
+    return this;
+  }
+
+  /**
+   * How files are gathered for a {@link BatchUploaderStrategy}. A batch is handed over once it has as many files or
+   * bytes as it may hold, once its first file has waited for the window, or once the service is terminating, whichever
+   * comes first. A batch counts as one upload towards the worker count and the destination concurrency.
+   *
+   * @param files
+   *     The most files in a batch. Must be positive.
+   * @param bytes
+   *     The most bytes in a batch; a larger file is sent in a batch of its own. Must be positive.
+   * @param windowMillis
+   *     How long the first file of a batch waits for more. Must not be negative.
+   * @return This.
+   */
+  public UploaderServiceSettings setBatching(final int files, final long bytes, final long windowMillis) {
+    if (files <= 0)
+      throw new IllegalArgumentException("Batch size must be positive: " + files);
+    if (bytes <= 0)
+      throw new IllegalArgumentException("Batch byte budget must be positive: " + bytes);
+    if (windowMillis < 0)
+      throw new IllegalArgumentException("Batch window can not be negative: " + windowMillis);
+    this.BatchFiles = files;
+    this.BatchBytes = bytes;
+    this.BatchWindow = windowMillis;
+    return this;
+  }
+
+  /**
+   * Limit how many uploads go to the same destination at once, so a pool of workers is not all spent on one slow host.
+   * Destinations are told apart by the scheme and authority of their URIs.
+   *
+   * @param uploads
+   *     The most uploads running at once to any one destination. Must be positive.
+   * @return This.
+   */
+  public UploaderServiceSettings setDestinationConcurrency(final int uploads) {
+    if (uploads <= 0)
+      throw new IllegalArgumentException("Destination concurrency must be positive: " + uploads);
+    this.DestinationConcurrency = uploads;
+    return this;
+  }
+}
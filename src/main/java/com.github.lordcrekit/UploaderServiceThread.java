@@ -1,19 +1,66 @@
 package com.github.lordcrekit;
 
-import org.json.JSONObject;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Decides which queued files need uploading, and hands those uploads to a pool of workers, or starts them on an
+ * {@link AsyncUploaderStrategy}.
+ * <p>
+ * Requests are considered in the order the settings' {@link UploaderSchedulingPolicy} puts them in. A request for a
+ * file and destination that is already being uploaded waits until that upload is done, so it is decided against the
+ * cache as that upload left it; a request that would go over the settings' limits waits for a worker. Everything else
+ * is decided, and started, straight away. With a {@link BatchUploaderStrategy}, the uploads that are needed are
+ * gathered into a batch per host instead, and each batch is started as one upload. With a
+ * {@link FanOutUploaderStrategy}, the uploads of a file decided together are started together, from one read of the
+ * file. A file queued to every destination its router gives arrives as one request, so all of them are decided
+ * together unless a destination's host is at its concurrency.
+ * <p>
+ * Repeated requests are coalesced: while a request for a file and destination is waiting, more requests for it are
+ * dropped, since the waiting one will see the same file. While it is being uploaded, they only mark it to be decided
+ * once more after the upload.
+ *
+ * @see UploaderServiceSettings
+ */
 class UploaderServiceThread implements Runnable {
 
   final static byte QUEUE_COMMAND = 'q';
@@ -24,166 +71,978 @@ class UploaderServiceThread implements Runnable {
   private final ZContext context;
   private final String address;
 
+  /**
+   * Where workers wake the thread up when they finish an upload.
+   */
+  private final String doneAddress;
+
   private final UploaderCache cache;
-  private final UploaderStrategy strategy;
+  private final UploaderServiceJournal journal;
+  private final AsyncUploaderStrategy strategy;
+
+  /**
+   * If the strategy was given asynchronous, rather than adapted to run on the workers.
+   */
+  private final boolean async;
+
+  /**
+   * The strategy, if it can upload batches, or <code>null</code> if every file is uploaded on its own.
+   */
+  private final BatchUploaderStrategy batchStrategy;
+
+  /**
+   * The strategy, if it can upload from contents already read and can not upload batches, or <code>null</code>.
+   */
+  private final FanOutUploaderStrategy fanOutStrategy;
+
+  private final UploaderServiceSettings settings;
 
   private final Random rng = new Random();
 
+  /**
+   * A queued request to upload a file to a destination. Equal if they are for the same file and destination.
+   */
+  static final class Upload {
+    final Path File;
+    final URI Destination;
+
+    /**
+     * Identifies the request in logs.
+     */
+    final String Id;
+
+    /**
+     * Its id in the service's journal, or <code>-1</code> if it is not journaled.
+     */
+    final long JournalId;
+
+    /**
+     * The priority the caller queued it with.
+     */
+    int Priority;
+
+    /**
+     * Its rank under the scheduling policy, and when it was queued, set each time it is added to the waiting requests.
+     */
+    long Rank;
+    long Sequence;
+
+    Upload(final Path file, final URI destination, final String id, final int priority, final long journalId) {
+      this.File = file;
+      this.Destination = destination;
+      this.Id = id;
+      this.Priority = priority;
+      this.JournalId = journalId;
+    }
+
+    /**
+     * @return The host the upload goes to, as far as {@link UploaderServiceSettings#DestinationConcurrency} is
+     * concerned.
+     */
+    String host() {
+      return this.Destination.getScheme() + "://"
+          + (this.Destination.getRawAuthority() == null ? "" : this.Destination.getRawAuthority());
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Upload))
+        return false;
+      final Upload u = (Upload) o;
+      return this.File.equals(u.File) && this.Destination.equals(u.Destination);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.File.hashCode() * 31 + this.Destination.hashCode();
+    }
+  }
+
+  /**
+   * Highest priority first, then lowest rank, then first queued.
+   */
+  private static final Comparator<Upload> ORDER = (Upload a, Upload b) -> {
+    if (a.Priority != b.Priority)
+      return Integer.compare(b.Priority, a.Priority);
+    if (a.Rank != b.Rank)
+      return Long.compare(a.Rank, b.Rank);
+    return Long.compare(a.Sequence, b.Sequence);
+  };
+
+  /**
+   * Requests that have not been decided yet, in the order they will be considered.
+   */
+  private final NavigableSet<Upload> waiting = new TreeSet<>(ORDER);
+
+  /**
+   * The same requests as {@link #waiting}, to find them by file and destination.
+   */
+  private final Map<Upload, Upload> waitingByUpload = new HashMap<>();
+
+  private long nextSequence = 0;
+
+  /**
+   * Running uploads that were requested again meanwhile, and have to be decided again once they finish.
+   */
+  private final Map<Upload, Upload> recheck = new HashMap<>();
+
+  /**
+   * Room in a bounded queue, or <code>null</code> if it is unbounded.
+   */
+  private final Semaphore capacity;
+
+  /**
+   * The number of requests queued and not yet done with: sent, waiting, or being uploaded.
+   */
+  final AtomicInteger Outstanding = new AtomicInteger();
+
+  /**
+   * The number of uploads running.
+   */
+  final AtomicInteger InFlight = new AtomicInteger();
+
+  /**
+   * The number of requests received.
+   */
+  final AtomicLong Queued = new AtomicLong();
+
+  /**
+   * The number of requests dropped because an equal one was already waiting or marked.
+   */
+  final AtomicLong Coalesced = new AtomicLong();
+
+  /**
+   * Uploads a worker is running.
+   */
+  private final Set<Upload> running = new HashSet<>();
+
+  /**
+   * The number of uploads running, counting a batch as one.
+   */
+  private int runningTasks = 0;
+
+  /**
+   * The number of running uploads to each host, counting a batch as one.
+   */
+  private final Map<String, Integer> runningPerHost = new HashMap<>();
+
+  /**
+   * Uploads gathered for one host, to be handed to the batch strategy together.
+   */
+  private static final class Batch {
+    final String host;
+    final long deadline;
+    final List<Upload> uploads = new ArrayList<>();
+    final Set<Path> files = new HashSet<>();
+    long bytes = 0;
+
+    /**
+     * Set when a file would have taken the batch over its byte budget, so it goes without waiting for more.
+     */
+    boolean sealed = false;
+
+    Batch(final String host, final long deadline) {
+      this.host = host;
+      this.deadline = deadline;
+    }
+
+    boolean isFull(final UploaderServiceSettings settings) {
+      return this.sealed || this.uploads.size() >= settings.BatchFiles || this.bytes >= settings.BatchBytes;
+    }
+  }
+
+  /**
+   * The batch being gathered for each host. Its uploads are already counted as running.
+   */
+  private final Map<String, Batch> batches = new LinkedHashMap<>();
+
+  /**
+   * Uploads decided in this dispatch for a fan-out strategy, by file. They are already counted as running.
+   */
+  private final Map<Path, List<Upload>> fanning = new LinkedHashMap<>();
+
+  /**
+   * Files smaller than this are read onto the heap for a fan-out strategy, rather than mapped.
+   */
+  private static final long MAP_THRESHOLD = 1024 * 1024;
+
+  /**
+   * Set once the thread has been asked to terminate, so batches are started without waiting for more files.
+   */
+  private boolean terminating = false;
+
+  /**
+   * An upload a worker has finished.
+   */
+  private static final class Finished {
+    final Upload upload;
+
+    /**
+     * What the strategy returned, or <code>null</code> if it failed.
+     */
+    final Long newTime;
+
+    /**
+     * If it is the last upload of its batch or fan-out, or not part of one, so its worker is free.
+     */
+    final boolean last;
+
+    /**
+     * If it held a place in its host's concurrency of its own, rather than sharing its batch's.
+     */
+    final boolean ownHost;
+
+    Finished(final Upload upload, final Long newTime, final boolean last) {
+      this(upload, newTime, last, last);
+    }
+
+    Finished(final Upload upload, final Long newTime, final boolean last, final boolean ownHost) {
+      this.upload = upload;
+      this.newTime = newTime;
+      this.last = last;
+      this.ownHost = ownHost;
+    }
+  }
+
+  /**
+   * Uploads the workers have finished, filled in by the workers.
+   */
+  private final BlockingQueue<Finished> finished = new LinkedBlockingQueue<>();
+
+  /**
+   * Uploads started with {@link #start(Upload)} that have not been handed to {@link #finished} yet. Asynchronous ones
+   * run on no worker, so this is how the thread waits for them when it stops.
+   */
+  private final Set<CompletableFuture<Void>> uploading = ConcurrentHashMap.newKeySet();
+
+  private ExecutorService workers;
+  private UploaderSockets doneSockets;
+
+  /**
+   * Where virtual threads and asynchronous uploads wake the thread up, or <code>null</code> if uploads run on pooled
+   * workers. A virtual thread only lives for one upload, and an asynchronous upload completes on whatever thread its
+   * strategy likes, so either would leave a pooled socket behind; they share this one instead, holding its lock.
+   */
+  private final ZMQ.Socket wakeSock;
+
+  /**
+   * Bound when the thread is created, since a message sent to an inproc address before it is bound can be lost.
+   */
+  private final ZMQ.Socket sock;
+  private final ZMQ.Socket doneSock;
+
+  /**
+   * Set once the thread has stopped, so uploads still completing do not try to wake it.
+   */
+  private volatile boolean stopped = false;
+
+  /**
+   * @param strategy
+   *     The strategy, if it is synchronous; it is run on the workers.
+   * @param asyncStrategy
+   *     The strategy, if it is asynchronous. Exactly one of the two is given.
+   * @param journal
+   *     Where queued requests were written, to acknowledge them in once they are done with, or <code>null</code>.
+   */
   UploaderServiceThread(final ZContext context,
                         final String address,
                         final UploaderCache cache,
-                        final UploaderStrategy strategy) {
+                        final UploaderStrategy strategy,
+                        final AsyncUploaderStrategy asyncStrategy,
+                        final UploaderServiceJournal journal,
+                        final UploaderServiceSettings settings) {
     this.context = context;
     this.address = address;
+    this.doneAddress = UploaderService.makeAddress(UploaderServiceThread.class.getSimpleName() + ".done");
     this.cache = cache;
-    this.strategy = strategy;
+    this.journal = journal;
+    this.async = asyncStrategy != null;
+    this.strategy = this.async
+        ? asyncStrategy
+        : AsyncUploaderStrategy.of(strategy, (Runnable r) -> this.workers.execute(r));
+    this.batchStrategy = strategy instanceof BatchUploaderStrategy ? (BatchUploaderStrategy) strategy : null;
+    this.fanOutStrategy = this.batchStrategy == null && strategy instanceof FanOutUploaderStrategy
+        ? (FanOutUploaderStrategy) strategy
+        : null;
+    this.settings = settings;
+    this.capacity = settings.QueueLimit > 0 ? new Semaphore(settings.QueueLimit) : null;
+
+    this.sock = context.createSocket(ZMQ.PULL);
+    this.sock.bind(address);
+    this.doneSock = context.createSocket(ZMQ.PULL);
+    this.doneSock.bind(this.doneAddress);
+    if (settings.VirtualThreads || this.async) {
+      this.wakeSock = context.createSocket(ZMQ.PUSH);
+      this.wakeSock.connect(this.doneAddress);
+    } else {
+      this.wakeSock = null;
+    }
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Queue bounds">
+
+  /**
+   * Make room for a request before it is sent, as the settings' overflow mode says to.
+   *
+   * @return If there was room.
+   */
+  boolean reserve() {
+    if (this.capacity != null) {
+      try {
+        switch (this.settings.OverflowMode) {
+          case BLOCK:
+            this.capacity.acquire();
+            break;
+          case TIMEOUT:
+            if (!this.capacity.tryAcquire(this.settings.OverflowTimeout, TimeUnit.MILLISECONDS))
+              return false;
+            break;
+          default:
+            if (!this.capacity.tryAcquire())
+              return false;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    this.Outstanding.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Make room for a request if there is some, without waiting whatever the overflow mode is.
+   *
+   * @return If there was room.
+   */
+  boolean tryReserve() {
+    if (this.capacity != null && !this.capacity.tryAcquire())
+      return false;
+    this.Outstanding.incrementAndGet();
+    return true;
   }
 
+  /**
+   * Make room for a request, waiting as long as it takes whatever the overflow mode is.
+   */
+  void reserveUninterruptibly() {
+    if (this.capacity != null)
+      this.capacity.acquireUninterruptibly();
+    this.Outstanding.incrementAndGet();
+  }
+
+  /**
+   * Give back the room of a request that is done with, and drop it from the journal.
+   */
+  private void done(final Upload upload) {
+    release();
+    if (this.journal != null && upload.JournalId >= 0)
+      this.journal.acknowledge(upload.JournalId);
+  }
+
+  /**
+   * Give back the room of a request that is done with.
+   */
+  private void release() {
+    this.Outstanding.decrementAndGet();
+    if (this.capacity != null)
+      this.capacity.release();
+  }
+  // </editor-fold>
+
   @Override
   public void run() {
-    final ZMQ.Socket sock = context.createSocket(ZMQ.PULL);
+    final ZMQ.Socket sock = this.sock;
+    final ZMQ.Socket doneSock = this.doneSock;
+    final ZMQ.Poller poller = context.createPoller(2);
+    final AtomicInteger workerCount = new AtomicInteger();
+    this.workers = this.settings.VirtualThreads
+        ? UploaderServiceSettings.newVirtualThreadExecutor()
+        : Executors.newFixedThreadPool(this.settings.Workers, (Runnable r) -> {
+          final Thread t = new Thread(
+              r, UploaderServiceThread.class.getSimpleName() + ".worker-" + workerCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    this.doneSockets = new UploaderSockets(this.context, this.doneAddress, ZMQ.PUSH);
     try {
-      sock.bind(address);
+      poller.register(sock, ZMQ.Poller.POLLIN);
+      poller.register(doneSock, ZMQ.Poller.POLLIN);
 
       loop:
       while (!this.CloseNow.get()) {
-        final String socketid = Integer.toString(rng.nextInt(), 36);
-
-        final String msgStr = new String(sock.recv());
-        final JSONObject msg = new JSONObject(msgStr);
-
-        switch (msg.getInt("c")) {
-          case QUEUE_COMMAND: {
-            // <editor-fold defaultstat="collapsed" desc="Queue logic">
-
-            final Path p = Paths.get(msg.getString("f"));
-            final URI u;
-            try {
-              u = new URI(msg.getString("u"));
-            } catch (URISyntaxException e) {
-              e.printStackTrace();
-              assert false;
-              continue;
-            }
+        poller.poll(nextBatchDeadline());
 
-            // <editor-fold defaultstate="collapsed" desc="File doesn't exist">
-            if (!Files.exists(p)) {
-              Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                  UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                  socketid + ": Not uploading " + p.getFileName() + " because it does not exist");
-              continue;
-            }
-            // </editor-fold>
-
-            final UploaderCacheFileInfo info = this.cache.getFileInformation(p);
-            /*
-            Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                socketid + ": " + info.toString());
-            final UploaderCacheInformation lol = this.cache.getCacheInformation();
-            Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                socketid + ": " + lol.toString());
-            */
-
-            // <editor-fold defaultstate="collapsed" desc="Ignored patterns">
-            if (info.Ignored) {
-              Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                  UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                  socketid + ": Not uploading " + p.getFileName() + " because it's ignored");
-              continue;
-            }
-            // </editor-fold>
-
-            // <editor-fold defaultstate="collapsed" desc="Frozen before creation">
-            if (info.TimeFrozen > 0 && info.TimestampWhenFrozen < 0) {
-              System.out.println(info.toString());
-              Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                  UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                  socketid + ": Not uploading " + p.getFileName() + " because it was frozen before creation");
-              continue;
-            }
-            // </editor-fold>
-
-            // <editor-fold defaultstate="collapsed" desc="Upload non uploaded file">
-            if (info.TimeUploaded < 0) {
-              try {
-                Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                    UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                    socketid + ": Uploading " + p.getFileName() + " because it has not been uploaded");
-
-                long newTime = this.strategy.upload(p, u);
-                this.cache.update(p, newTime);
-                continue;
-              } catch (IOException e) {
-                e.printStackTrace();
-                continue;
-              }
-            }
-            // </editor-fold>
-
-            final long fileTimestamp;
-            try {
-              fileTimestamp = Files.getLastModifiedTime(p).toMillis();
-            } catch (IOException e) {
-              e.printStackTrace();
-              continue;
-            }
+        if (poller.pollin(1))
+          receiveFinished(doneSock);
 
-            // <editor-fold defaultstate="collapsed" desc="Already up to date">
-            if (info.TimeUploaded >= fileTimestamp) {
-              Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                  UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                  socketid + ": Not uploading " + p.getFileName() + " because it is already up to date.");
-              continue;
-            }
-            // </editor-fold>
-
-            // <editor-fold defaultstate="collapsed" desc="Deal with frozen behaviour"
-            if (info.TimeFrozen > 0) {
-              if (info.TimestampWhenFrozen > info.TimeUploaded) {
-                Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                    UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                    socketid + ": Uploading " + p.getFileName() + " because the last uploaded version does not match the frozen version");
-
-                long newTime = this.strategy.upload(p, u);
-                this.cache.update(p, newTime);
-                continue;
-
-              } else {
-                Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                    UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                    socketid + ": Not uploading " + p.getFileName() + " because it is frozen");
-                continue;
+        if (poller.pollin(0)) {
+          byte[] bytes;
+          while ((bytes = sock.recv(ZMQ.DONTWAIT)) != null) {
+            final UploaderMessage msg = UploaderMessage.decode(bytes);
+            switch (msg.Command) {
+              case QUEUE_COMMAND: {
+                final List<Upload> uploads = parse(msg);
+                if (uploads != null) {
+                  for (Upload upload : uploads)
+                    enqueue(upload);
+                } else {
+                  for (int i = 0; i < msg.getStrings('U').size(); i++)
+                    release();
+                }
+                break;
               }
-            }
-            // </editor-fold>
 
-            // <editor-fold defaultstate="collapsed" desc="Upload it because it's changed and is not frozen">
-            Logger.getLogger(UploaderServiceThread.class.getName()).log(
-                UploaderService.BEHAVIOUR_LOGGING_LEVEL,
-                socketid + ": Uploading " + p.getFileName() + " because it has changed since the last request");
+              case TERMINATE_COMMAND:
+                // Finish everything asked of the service before it was asked to terminate.
+                this.terminating = true;
+                dispatch();
+                while (!this.CloseNow.get() && (!this.waiting.isEmpty() || !this.running.isEmpty())) {
+                  doneSock.recv();
+                  receiveFinished(doneSock);
+                  dispatch();
+                }
+                break loop;
 
-            long newTime = this.strategy.upload(p, u);
-            this.cache.update(p, newTime);
-            continue;
-            // </editor-fold>
+              default:
+                assert false;
+            }
           }
-
-          case TERMINATE_COMMAND:
-            break loop;
-
-          default:
-            assert false;
         }
+
+        dispatch();
       }
     } catch (Exception e) {
       e.printStackTrace();
       assert false;
     } finally {
+      // Uploads can not be interrupted part way, so let the running ones finish, and record them so they are not
+      // uploaded again.
+      this.workers.shutdown();
+      try {
+        while (!this.workers.awaitTermination(1, TimeUnit.MINUTES))
+          Logger.getLogger(UploaderServiceThread.class.getName()).log(
+              Level.WARNING, "Still waiting for " + this.running.size() + " uploads to finish");
+        awaitUploading();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      try {
+        receiveFinished(doneSock);
+      } catch (RuntimeException e) {
+        Logger.getLogger(UploaderServiceThread.class.getName()).log(
+            Level.WARNING, "Failed to record the uploads that finished while closing", e);
+      }
+      this.stopped = true;
+      this.doneSockets.close();
+      if (this.wakeSock != null) {
+        synchronized (this.wakeSock) {
+          context.destroySocket(this.wakeSock);
+        }
+      }
+
+      // Nothing more will be done with what is left, so no one should wait for room it holds. It stays in the journal.
+      for (int left = this.Outstanding.get(); left > 0; left--)
+        release();
+      if (this.journal != null) {
+        try {
+          this.journal.close();
+        } catch (IOException e) {
+          Logger.getLogger(UploaderServiceThread.class.getName()).log(
+              Level.WARNING, "Failed to close the upload journal", e);
+        }
+      }
+
       context.destroySocket(sock);
+      context.destroySocket(doneSock);
       Logger.getLogger(UploaderServiceThread.class.getName()).log(
           UploaderService.SOCKET_LOGGING_LEVEL, "Closing thread socket.");
     }
   }
+
+  /**
+   * Wait for every upload started with {@link #start(Upload)} to be handed to {@link #finished}.
+   */
+  private void awaitUploading() throws InterruptedException {
+    while (true) {
+      try {
+        CompletableFuture.allOf(this.uploading.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+        return;
+      } catch (TimeoutException e) {
+        Logger.getLogger(UploaderServiceThread.class.getName()).log(
+            Level.WARNING, "Still waiting for " + this.uploading.size() + " uploads to finish");
+      } catch (ExecutionException e) {
+        return; // They only hand over results, and never fail.
+      }
+    }
+  }
+
+  /**
+   * @return The request's uploads, one to each of its destinations, or <code>null</code> if it is malformed.
+   */
+  private List<Upload> parse(final UploaderMessage msg) {
+    final String socketid = Integer.toString(rng.nextInt(), 36);
+    final Path file = Paths.get(msg.getString('f'));
+    final List<String> destinations = msg.getStrings('U');
+    final long[] journalIds = msg.getLongs('J');
+    final List<Upload> uploads = new ArrayList<>(destinations.size());
+    try {
+      for (int i = 0; i < destinations.size(); i++)
+        uploads.add(new Upload(file, new URI(destinations.get(i)), socketid, (int) msg.getLong('n'),
+            i < journalIds.length ? journalIds[i] : -1));
+      return uploads;
+    } catch (URISyntaxException e) {
+      e.printStackTrace();
+      assert false;
+      return null;
+    }
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Scheduling">
+
+  private void addWaiting(final Upload upload) {
+    upload.Rank = this.settings.SchedulingPolicy.rank(upload.File, upload.Destination);
+    upload.Sequence = this.nextSequence++;
+    this.waiting.add(upload);
+    this.waitingByUpload.put(upload, upload);
+  }
+
+  private void enqueue(final Upload upload) {
+    this.Queued.incrementAndGet();
+    final Upload waiting = this.waitingByUpload.get(upload);
+    if (waiting != null) {
+      this.Coalesced.incrementAndGet();
+      done(upload);
+      if (upload.Priority > waiting.Priority) {
+        // Keep its place among requests of the new priority.
+        this.waiting.remove(waiting);
+        waiting.Priority = upload.Priority;
+        this.waiting.add(waiting);
+      }
+    } else if (this.running.contains(upload)) {
+      final Upload marked = this.recheck.putIfAbsent(upload, upload);
+      if (marked != null) {
+        this.Coalesced.incrementAndGet();
+        done(upload);
+        marked.Priority = Math.max(marked.Priority, upload.Priority);
+      }
+    } else {
+      addWaiting(upload);
+    }
+  }
+
+  private int workerLimit() {
+    return this.settings.VirtualThreads || this.async ? Integer.MAX_VALUE : this.settings.Workers;
+  }
+
+  /**
+   * Decide every waiting request that can be decided now, and start the uploads that are needed, while there are
+   * workers for them. With a batch strategy, needed uploads are gathered into their host's batch instead, for as long
+   * as it has room, and the batches that are ready are started. With a fan-out strategy, needed uploads of the same
+   * file are started together, as one task, once every request has been considered.
+   */
+  private void dispatch() {
+    final int workers = workerLimit();
+    for (Iterator<Upload> it = this.waiting.iterator();
+         it.hasNext() && (this.batchStrategy != null || this.runningTasks < workers || !this.fanning.isEmpty()); ) {
+      final Upload upload = it.next();
+      if (this.running.contains(upload))
+        continue;
+      // Once the workers are taken, a fan-out can still take the other destinations of a file it is already reading.
+      if (this.batchStrategy == null && this.runningTasks >= workers && !this.fanning.containsKey(upload.File))
+        continue;
+      if (this.batchStrategy == null) {
+        if (this.runningPerHost.getOrDefault(upload.host(), 0) >= this.settings.DestinationConcurrency)
+          continue;
+      } else {
+        final Batch batch = this.batches.get(upload.host());
+        if (batch != null && (batch.isFull(this.settings) || batch.files.contains(upload.File)))
+          continue;
+        if (batch != null && batch.bytes + size(upload.File) > this.settings.BatchBytes) {
+          // It waits for a batch of its own, which it may fill alone.
+          batch.sealed = true;
+          continue;
+        }
+      }
+
+      it.remove();
+      this.waitingByUpload.remove(upload);
+      if (!needsUpload(upload)) {
+        this.settings.SchedulingPolicy.skipped(upload.File, upload.Destination, upload.Rank);
+        done(upload);
+        continue;
+      }
+
+      this.settings.SchedulingPolicy.started(upload.File, upload.Destination, upload.Rank);
+      if (this.batchStrategy != null)
+        gather(upload);
+      else if (this.fanOutStrategy != null)
+        fan(upload);
+      else
+        start(upload);
+    }
+
+    if (this.batchStrategy != null)
+      startBatches();
+    else if (!this.fanning.isEmpty())
+      startFanOuts();
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="Batches">
+
+  private void gather(final Upload upload) {
+    final Batch batch = this.batches.computeIfAbsent(
+        upload.host(), (String host) -> new Batch(host, System.currentTimeMillis() + this.settings.BatchWindow));
+    batch.uploads.add(upload);
+    batch.files.add(upload.File);
+    batch.bytes += size(upload.File);
+    this.running.add(upload);
+  }
+
+  private static long size(final Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0; // It will fail to upload anyway.
+    }
+  }
+
+  /**
+   * Start every batch that is full, has waited for its window, or has to go because the thread is terminating, while
+   * there are workers for them.
+   */
+  private void startBatches() {
+    final int workers = workerLimit();
+    final long now = System.currentTimeMillis();
+    for (Iterator<Batch> it = this.batches.values().iterator(); it.hasNext() && this.runningTasks < workers; ) {
+      final Batch batch = it.next();
+      if (!(this.terminating || batch.isFull(this.settings) || now >= batch.deadline)
+          || this.runningPerHost.getOrDefault(batch.host, 0) >= this.settings.DestinationConcurrency)
+        continue;
+
+      it.remove();
+      startBatch(batch);
+    }
+  }
+
+  private void startBatch(final Batch batch) {
+    this.runningTasks++;
+    this.runningPerHost.merge(batch.host, 1, Integer::sum);
+    this.InFlight.addAndGet(batch.uploads.size());
+
+    this.workers.execute(() -> {
+      final Map<Path, URI> files = new LinkedHashMap<>();
+      for (Upload u : batch.uploads)
+        files.put(u.File, u.Destination);
+
+      Map<Path, Long> newTimes = null;
+      try {
+        newTimes = this.batchStrategy.uploadAll(files);
+      } catch (IOException | RuntimeException e) {
+        Logger.getLogger(UploaderServiceThread.class.getName()).log(
+            Level.WARNING, "Failed to upload a batch of " + files.size() + " files to " + batch.host, e);
+      } finally {
+        for (int i = 0; i < batch.uploads.size(); i++) {
+          final Upload u = batch.uploads.get(i);
+          this.finished.add(new Finished(
+              u, newTimes == null ? null : newTimes.get(u.File), i == batch.uploads.size() - 1));
+        }
+        wake();
+      }
+    });
+  }
+
+  /**
+   * @return How long the poller may wait before a batch's window is up, or <code>-1</code> if no batch is waiting on
+   * one. Batches whose window is already up are only waiting for a worker.
+   */
+  private long nextBatchDeadline() {
+    final long now = System.currentTimeMillis();
+    long next = -1;
+    for (Batch batch : this.batches.values())
+      if (batch.deadline > now && (next < 0 || batch.deadline - now < next))
+        next = batch.deadline - now;
+    return next;
+  }
+  // </editor-fold>
+
+  // <editor-fold defaultstate="collapsed" desc="Fan-out">
+
+  private void fan(final Upload upload) {
+    final List<Upload> uploads = this.fanning.computeIfAbsent(upload.File, (Path file) -> new ArrayList<>());
+    track(upload, uploads.isEmpty());
+    uploads.add(upload);
+  }
+
+  /**
+   * Start the uploads of each file decided in this dispatch. One worker reads the file and uploads it to the first
+   * destination, after handing the rest to other workers. Each file counts as one task towards the workers, however
+   * many destinations it goes to, and each destination holds its own place in its host's concurrency.
+   */
+  private void startFanOuts() {
+    for (List<Upload> uploads : this.fanning.values())
+      this.workers.execute(() -> fanOut(uploads));
+    this.fanning.clear();
+  }
+
+  private void fanOut(final List<Upload> uploads) {
+    final Path file = uploads.get(0).File;
+    final AtomicInteger left = new AtomicInteger(uploads.size());
+    final ByteBuffer contents;
+    try {
+      contents = read(file);
+    } catch (IOException | RuntimeException e) {
+      Logger.getLogger(UploaderServiceThread.class.getName()).log(
+          Level.WARNING,
+          uploads.get(0).Id + ": Failed to read " + file + " for " + uploads.size() + " destinations", e);
+      for (Upload u : uploads)
+        this.finished.add(new Finished(u, null, left.decrementAndGet() == 0, true));
+      wake();
+      return;
+    }
+
+    for (int i = 1; i < uploads.size(); i++) {
+      final Upload u = uploads.get(i);
+      try {
+        this.workers.execute(() -> fanOutTo(u, contents, left));
+      } catch (RejectedExecutionException e) {
+        fanOutTo(u, contents, left); // The service is closing now; finish the file here rather than lose it.
+      }
+    }
+    fanOutTo(uploads.get(0), contents, left);
+  }
+
+  /**
+   * @param left
+   *     How many uploads of the file have not finished, so the last one frees its task.
+   */
+  private void fanOutTo(final Upload upload, final ByteBuffer contents, final AtomicInteger left) {
+    Long newTime = null;
+    try {
+      newTime = contents == null
+          ? this.fanOutStrategy.upload(upload.File, upload.Destination)
+          : this.fanOutStrategy.upload(upload.File, contents.duplicate(), upload.Destination);
+    } catch (IOException | RuntimeException e) {
+      Logger.getLogger(UploaderServiceThread.class.getName()).log(
+          Level.WARNING, upload.Id + ": Failed to upload " + upload.File + " to " + upload.Destination, e);
+    } finally {
+      this.finished.add(new Finished(upload, newTime, left.decrementAndGet() == 0, true));
+      wake();
+    }
+  }
+
+  /**
+   * @return The file's contents, read only, or <code>null</code> if it is too large for one buffer.
+   */
+  private static ByteBuffer read(final Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        return null;
+      if (size >= MAP_THRESHOLD)
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+      final ByteBuffer contents = ByteBuffer.allocate((int) size);
+      while (contents.hasRemaining() && channel.read(contents) >= 0)
+        ;
+      contents.flip();
+      return contents.asReadOnlyBuffer();
+    }
+  }
+  // </editor-fold>
+
+  /**
+   * Count an upload as running.
+   *
+   * @param task
+   *     If it is a task of its own, rather than part of one already counted.
+   */
+  private void track(final Upload upload, final boolean task) {
+    this.running.add(upload);
+    if (task)
+      this.runningTasks++;
+    this.InFlight.incrementAndGet();
+    this.runningPerHost.merge(upload.host(), 1, Integer::sum);
+  }
+
+  /**
+   * Start an upload. Workers only run the strategy; the result is recorded in the cache by this thread, so workers,
+   * which may be short lived virtual threads, never need sockets to the cache of their own.
+   */
+  private void start(final Upload upload) {
+    track(upload, true);
+
+    CompletableFuture<Long> result;
+    try {
+      result = this.strategy.upload(upload.File, upload.Destination);
+      if (result == null)
+        throw new NullPointerException("Strategy returned no upload");
+    } catch (RuntimeException e) {
+      result = new CompletableFuture<>();
+      result.completeExceptionally(e);
+    }
+
+    final CompletableFuture<Void> handed = result.handle((Long newTime, Throwable e) -> {
+      if (e != null)
+        Logger.getLogger(UploaderServiceThread.class.getName()).log(
+            Level.WARNING, upload.Id + ": Failed to upload " + upload.File,
+            e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+      this.finished.add(new Finished(upload, e == null ? newTime : null, true));
+      wake();
+      return null;
+    });
+    this.uploading.add(handed);
+    handed.thenRun(() -> this.uploading.remove(handed));
+  }
+
+  private void wake() {
+    if (this.stopped)
+      return;
+
+    if (this.wakeSock == null) {
+      this.doneSockets.send(0, new byte[0]);
+      return;
+    }
+
+    synchronized (this.wakeSock) {
+      // If the queue is full, wake ups are already waiting to be read, so there is no need to block for room.
+      if (!this.stopped)
+        this.wakeSock.send(new byte[0], ZMQ.DONTWAIT);
+    }
+  }
+
+  /**
+   * Record every finished upload in the cache, in one request, and let the requests waiting on them be decided.
+   */
+  private void receiveFinished(final ZMQ.Socket doneSock) {
+    while (doneSock.recv(ZMQ.DONTWAIT) != null)
+      ; // Only a wake up; the uploads are in the queue.
+
+    final List<Finished> done = new ArrayList<>();
+    this.finished.drainTo(done);
+    if (done.isEmpty())
+      return;
+
+    final Map<URI, Map<Path, Long>> newTimes = new LinkedHashMap<>();
+    for (Finished f : done)
+      if (f.newTime != null && f.newTime >= 0)
+        newTimes.computeIfAbsent(f.upload.Destination, (URI d) -> new LinkedHashMap<>()).put(f.upload.File, f.newTime);
+    boolean recorded = true;
+    if (!newTimes.isEmpty()) {
+      try {
+        this.cache.updateDestinationsAsync(newTimes).join();
+      } catch (CompletionException e) {
+        recorded = false;
+        Logger.getLogger(UploaderServiceThread.class.getName()).log(
+            Level.WARNING, "Failed to record " + done.size() + " finished uploads in the cache", e.getCause());
+      }
+    }
+
+    for (Finished f : done) {
+      this.running.remove(f.upload);
+      this.InFlight.decrementAndGet();
+      // A request is only dropped from the journal once its upload is recorded; a failed one is replayed on restart.
+      if (recorded && f.newTime != null && f.newTime >= 0)
+        done(f.upload);
+      else
+        release();
+      if (f.last)
+        this.runningTasks--;
+      if (f.ownHost)
+        this.runningPerHost.merge(f.upload.host(), -1, (Integer a, Integer b) -> a + b == 0 ? null : a + b);
+      final Upload again = this.recheck.remove(f.upload);
+      if (again != null)
+        addWaiting(again);
+    }
+  }
+  // </editor-fold>
+
+  /**
+   * @return If the file needs to be uploaded to the destination, according to what the cache has for that destination.
+   */
+  private boolean needsUpload(final Upload upload) {
+    final String socketid = upload.Id;
+    final Path p = upload.File;
+
+    // <editor-fold defaultstate="collapsed" desc="File doesn't exist">
+    if (!Files.exists(p)) {
+      Logger.getLogger(UploaderServiceThread.class.getName()).log(
+          UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+          socketid + ": Not uploading " + p.getFileName() + " because it does not exist");
+      return false;
+    }
+    // </editor-fold>
+
+    final UploaderCacheFileInfo info = this.cache.getFileInformation(p);
+    final long timeUploaded = info.timeUploadedTo(upload.Destination);
+
+    // <editor-fold defaultstate="collapsed" desc="Ignored patterns">
+    if (info.Ignored) {
+      Logger.getLogger(UploaderServiceThread.class.getName()).log(
+          UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+          socketid + ": Not uploading " + p.getFileName() + " because it's ignored");
+      return false;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Frozen before creation">
+    if (info.TimeFrozen > 0 && info.TimestampWhenFrozen < 0) {
+      Logger.getLogger(UploaderServiceThread.class.getName()).log(
+          UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+          socketid + ": Not uploading " + p.getFileName() + " because it was frozen before creation");
+      return false;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Upload non uploaded file">
+    if (timeUploaded < 0) {
+      Logger.getLogger(UploaderServiceThread.class.getName()).log(
+          UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+          socketid + ": Uploading " + p.getFileName() + " because it has not been uploaded to " + upload.Destination);
+      return true;
+    }
+    // </editor-fold>
+
+    final long fileTimestamp;
+    try {
+      fileTimestamp = Files.getLastModifiedTime(p).toMillis();
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Already up to date">
+    if (timeUploaded >= fileTimestamp) {
+      Logger.getLogger(UploaderServiceThread.class.getName()).log(
+          UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+          socketid + ": Not uploading " + p.getFileName() + " because it is already up to date at "
+              + upload.Destination);
+      return false;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Deal with frozen behaviour">
+    if (info.TimeFrozen > 0) {
+      if (info.TimestampWhenFrozen > timeUploaded) {
+        Logger.getLogger(UploaderServiceThread.class.getName()).log(
+            UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+            socketid + ": Uploading " + p.getFileName() + " because the last uploaded version does not match the frozen version");
+        return true;
+
+      } else {
+        Logger.getLogger(UploaderServiceThread.class.getName()).log(
+            UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+            socketid + ": Not uploading " + p.getFileName() + " because it is frozen");
+        return false;
+      }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Upload it because it's changed and is not frozen">
+    Logger.getLogger(UploaderServiceThread.class.getName()).log(
+        UploaderService.BEHAVIOUR_LOGGING_LEVEL,
+        socketid + ": Uploading " + p.getFileName() + " because it has changed since the last request");
+    return true;
+    // </editor-fold>
+  }
 }
@@ -0,0 +1,185 @@
+package com.github.lordcrekit;
+
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * One connected socket per calling thread, kept open between calls instead of being created, connected and destroyed
+ * for every message.
+ * <p>
+ * ZMQ sockets must not be shared between threads, so each thread gets its own the first time it sends. A thread keeps
+ * its socket, rather than borrowing one from a pool, because messages sent on one socket arrive in order, which lets a
+ * caller's termination stay behind what it queued and its updates be applied in the order it made them. A thread's
+ * socket is closed once the thread has ended, when the next thread opens one, so short-lived threads do not leave
+ * sockets behind; a pool of long-lived threads keeps one each until this is closed.
+ * <p>
+ * A REQ socket is only usable again once the reply to its last request has been received, so if a request fails part
+ * way the thread's socket is thrown away, and the next request gets a fresh one.
+ *
+ * @see UploaderCache
+ * @see UploaderService
+ */
+final class UploaderSockets implements Closeable {
+
+  /**
+   * How long a thread waits on its socket at a time, before checking whether this has been closed.
+   */
+  private static final int WAIT_MILLIS = 100;
+
+  private final ZContext context;
+  private final String address;
+  private final int type;
+
+  /**
+   * The socket of each thread that has one.
+   */
+  private final Map<Thread, ZMQ.Socket> sockets = new ConcurrentHashMap<>();
+
+  /**
+   * Held while a thread uses its socket, and to close them, so no socket is closed while it is being used.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Set before the sockets are closed, so threads waiting on theirs give up and let them be.
+   */
+  private volatile boolean closed = false;
+
+  /**
+   * @param context
+   *     The context to create sockets in.
+   * @param address
+   *     The address to connect them to.
+   * @param type
+   *     The socket type, like {@link ZMQ#REQ}.
+   */
+  UploaderSockets(final ZContext context, final String address, final int type) {
+    this.context = context;
+    this.address = address;
+    this.type = type;
+  }
+
+  /**
+   * Send a message on the calling thread's socket.
+   *
+   * @param flags
+   *     {@link ZMQ#DONTWAIT} to give up at once if the message can not be sent, or <code>0</code> to wait.
+   * @param frames
+   *     The message's frames.
+   * @return If the message was sent. It always is unless <code>flags</code> is {@link ZMQ#DONTWAIT}.
+   * @throws IllegalStateException
+   *     If this is closed, or is closed while waiting to send.
+   */
+  boolean send(final int flags, final byte[]... frames) {
+    this.lock.readLock().lock();
+    try {
+      return send(socket(), flags, frames);
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Send a request on the calling thread's REQ socket, and wait for the reply.
+   *
+   * @param request
+   *     The request.
+   * @return The reply.
+   * @throws IllegalStateException
+   *     If this is closed, or is closed while waiting for the reply.
+   */
+  byte[] request(final byte[] request) {
+    this.lock.readLock().lock();
+    try {
+      final ZMQ.Socket sock = socket();
+      boolean answered = false;
+      try {
+        send(sock, 0, request);
+        byte[] reply;
+        while ((reply = sock.recv()) == null)
+          checkOpen();
+        answered = true;
+        return reply;
+      } finally {
+        if (!answered)
+          discard(Thread.currentThread(), sock);
+      }
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  private boolean send(final ZMQ.Socket sock, final int flags, final byte[]... frames) {
+    for (int i = 0; i < frames.length; i++) {
+      final int more = i < frames.length - 1 ? ZMQ.SNDMORE : 0;
+      while (!sock.send(frames[i], flags | more)) {
+        // Once the first frame is taken, so are the rest.
+        if ((flags & ZMQ.DONTWAIT) != 0)
+          return false;
+        checkOpen();
+      }
+    }
+    return true;
+  }
+
+  private void checkOpen() {
+    if (this.closed)
+      throw new IllegalStateException("Sockets to " + this.address + " are closed");
+  }
+
+  /**
+   * @return The calling thread's socket. The read lock must be held.
+   */
+  private ZMQ.Socket socket() {
+    checkOpen();
+
+    final Thread thread = Thread.currentThread();
+    ZMQ.Socket sock = this.sockets.get(thread);
+    if (sock == null) {
+      for (Map.Entry<Thread, ZMQ.Socket> e : this.sockets.entrySet())
+        if (!e.getKey().isAlive())
+          discard(e.getKey(), e.getValue());
+
+      sock = this.context.createSocket(this.type);
+      sock.setSendTimeOut(WAIT_MILLIS);
+      sock.setReceiveTimeOut(WAIT_MILLIS);
+      sock.connect(this.address);
+      this.sockets.put(thread, sock);
+      Logger.getLogger(UploaderSockets.class.getName()).log(
+          UploaderService.SOCKET_LOGGING_LEVEL,
+          "Opened socket to " + this.address + " for " + thread.getName());
+    }
+    return sock;
+  }
+
+  /**
+   * Close a thread's socket, if no one else has. The thread must not be using it.
+   */
+  private void discard(final Thread thread, final ZMQ.Socket sock) {
+    if (this.sockets.remove(thread, sock))
+      this.context.destroySocket(sock);
+  }
+
+  /**
+   * Close every thread's socket, once the threads using theirs are done. Threads waiting to send or for a reply give up,
+   * and later calls fail.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.lock.writeLock().lock();
+    try {
+      for (Map.Entry<Thread, ZMQ.Socket> e : this.sockets.entrySet())
+        discard(e.getKey(), e.getValue());
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+}
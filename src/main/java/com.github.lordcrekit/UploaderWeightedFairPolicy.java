@@ -0,0 +1,94 @@
+package com.github.lordcrekit;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Start time fair queuing between directory trees.
+ * <p>
+ * Each tree has a finish tag: how far along it would be if it had been served at its fair share all along. A request
+ * is ranked at its tree's finish tag, or at the rank of the last request served if the tree has been idle, and moves
+ * the tree's tag on by its size over the tree's weight. Serving requests lowest rank first then gives each busy tree
+ * its share of the bytes uploaded. A request that turns out to be up to date moves the tag back, since nothing was
+ * uploaded for it.
+ *
+ * @see UploaderSchedulingPolicy#weightedFair(Map)
+ */
+final class UploaderWeightedFairPolicy implements UploaderSchedulingPolicy {
+
+  private final Map<Path, Integer> weights;
+
+  /**
+   * The finish tag of each tree, keyed by its root, or <code>null</code> for files under no root.
+   */
+  private final Map<Path, Long> finishTags = new HashMap<>();
+
+  /**
+   * How far each waiting request moved its tree's finish tag. The service only keeps one waiting request for a file
+   * and destination.
+   */
+  private final Map<Map.Entry<Path, URI>, Long> charges = new HashMap<>();
+
+  /**
+   * The rank of the last request served.
+   */
+  private long virtualTime = 0;
+
+  UploaderWeightedFairPolicy(final Map<Path, Integer> weights) {
+    this.weights = new LinkedHashMap<>();
+    for (Map.Entry<Path, Integer> e : weights.entrySet()) {
+      if (e.getValue() <= 0)
+        throw new IllegalArgumentException("Weight of " + e.getKey() + " must be positive: " + e.getValue());
+      this.weights.put(e.getKey().normalize(), e.getValue());
+    }
+  }
+
+  @Override
+  public long rank(final Path file, final URI destination) {
+    final Path root = rootOf(file);
+    final int weight = root == null ? 1 : this.weights.get(root);
+
+    long size;
+    try {
+      size = Files.size(file);
+    } catch (IOException e) {
+      size = 0;
+    }
+
+    final long start = Math.max(this.virtualTime, this.finishTags.getOrDefault(root, 0L));
+    final long charge = Math.max(1, size / weight);
+    this.finishTags.put(root, start + charge);
+    this.charges.put(new AbstractMap.SimpleImmutableEntry<>(file, destination), charge);
+    return start;
+  }
+
+  @Override
+  public void started(final Path file, final URI destination, final long rank) {
+    this.charges.remove(new AbstractMap.SimpleImmutableEntry<>(file, destination));
+    this.virtualTime = Math.max(this.virtualTime, rank);
+  }
+
+  @Override
+  public void skipped(final Path file, final URI destination, final long rank) {
+    final Long charge = this.charges.remove(new AbstractMap.SimpleImmutableEntry<>(file, destination));
+    if (charge != null)
+      this.finishTags.computeIfPresent(rootOf(file), (Path root, Long tag) -> tag - charge);
+  }
+
+  /**
+   * @return The deepest root the file is under, or <code>null</code> if it is under none.
+   */
+  private Path rootOf(final Path file) {
+    Path best = null;
+    for (Path root : this.weights.keySet())
+      if (file.startsWith(root) && (best == null || root.getNameCount() > best.getNameCount()))
+        best = root;
+    return best;
+  }
+}
@@ -0,0 +1,119 @@
+package com.github.lordcrekit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingUploaderRouterTest {
+
+  private static final Path ROOT = Paths.get("/data/project");
+
+  /**
+   * Mirrors files into two places, the way a rule table that maps a tree onto a few buckets would.
+   */
+  private static final class MirrorRouter implements UploaderRouter {
+    final AtomicInteger Calls = new AtomicInteger();
+    String Bucket = "bucket";
+
+    @Override
+    public List<URI> route(final Path path) {
+      this.Calls.incrementAndGet();
+      final String below = ROOT.relativize(path).toString().replace('\\', '/');
+      try {
+        return Arrays.asList(
+            new URI("s3", this.Bucket, "/project/" + below, null),
+            URI.create("sftp://backup/nightly/"));
+      } catch (URISyntaxException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+  }
+
+  @Test
+  public void testRoute() {
+    System.out.println("Test route(PATH)");
+
+    final MirrorRouter router = new MirrorRouter();
+    final CachingUploaderRouter caching = new CachingUploaderRouter(router, 16);
+
+    for (String name : new String[]{"a.txt", "b.txt", "with space.txt"}) {
+      final Path file = ROOT.resolve("docs").resolve(name);
+      Assert.assertEquals(router.route(file), caching.route(file));
+    }
+    // The first file of the directory is routed by the wrapped router, the rest are not.
+    Assert.assertEquals(3 + 1, router.Calls.get());
+    Assert.assertEquals(2, caching.getHits());
+    Assert.assertEquals(1, caching.getMisses());
+    Assert.assertEquals(2.0 / 3, caching.getHitRate(), 1e-9);
+
+    final Path other = ROOT.resolve("src").resolve("Main.java");
+    Assert.assertEquals(router.route(other), caching.route(other));
+    Assert.assertEquals(2, caching.getMisses());
+  }
+
+  @Test
+  public void testPrefixKey() {
+    System.out.println("Test route(PATH) with a prefix key");
+
+    final MirrorRouter router = new MirrorRouter();
+    final CachingUploaderRouter caching = new CachingUploaderRouter(router, 16,
+        (Path file) -> file.startsWith(ROOT) ? ROOT : null);
+
+    final Path first = ROOT.resolve("docs").resolve("a.txt");
+    final Path deeper = ROOT.resolve("src").resolve("main").resolve("Main.java");
+    caching.route(first);
+    Assert.assertEquals(router.route(deeper), caching.route(deeper));
+    Assert.assertEquals(1, caching.getHits());
+
+    // Files outside every key are routed, but not remembered.
+    final Path outside = Paths.get("/tmp/x");
+    Assert.assertEquals(router.route(outside), caching.route(outside));
+    Assert.assertEquals(1, caching.getMisses());
+  }
+
+  @Test
+  public void testInvalidate() {
+    System.out.println("Test invalidate()");
+
+    final MirrorRouter router = new MirrorRouter();
+    final CachingUploaderRouter caching = new CachingUploaderRouter(router, 16);
+    final Path docs = ROOT.resolve("docs").resolve("a.txt");
+    final Path src = ROOT.resolve("src").resolve("Main.java");
+    caching.route(docs);
+    caching.route(src);
+
+    router.Bucket = "moved";
+    Assert.assertNotEquals(router.route(docs), caching.route(docs));
+
+    caching.invalidate(ROOT.resolve("docs"));
+    Assert.assertEquals(router.route(docs), caching.route(docs));
+    Assert.assertNotEquals(router.route(src), caching.route(src));
+
+    caching.invalidate();
+    Assert.assertEquals(router.route(src), caching.route(src));
+  }
+
+  @Test
+  public void testCapacity() {
+    System.out.println("Test route(PATH) over capacity");
+
+    final MirrorRouter router = new MirrorRouter();
+    final CachingUploaderRouter caching = new CachingUploaderRouter(router, 2);
+    for (String dir : new String[]{"a", "b", "c", "a"})
+      caching.route(ROOT.resolve(dir).resolve("file"));
+    // The least recently used directory was forgotten to make room.
+    Assert.assertEquals(0, caching.getHits());
+    Assert.assertEquals(4, caching.getMisses());
+
+    Assert.assertEquals(Collections.emptyList(), new CachingUploaderRouter(
+        (Path path) -> Collections.<URI>emptyList(), 1).route(ROOT.resolve("file")));
+  }
+}
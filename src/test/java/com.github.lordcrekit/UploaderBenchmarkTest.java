@@ -0,0 +1,220 @@
+package com.github.lordcrekit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Rough timings of the hot paths. These print their results rather than assert on them, since timings depend on the
+ * machine; they only fail if the optimised path gives a different answer than the simple one.
+ */
+public class UploaderBenchmarkTest {
+
+  /**
+   * How many files the upload benchmarks upload, and how long their strategy waits for each, in milliseconds.
+   */
+  private static final int UPLOADS = 400;
+  private static final long LATENCY = 50;
+
+  /**
+   * Lookup cost of {@link UploaderCacheInformation#isFrozen} as the number of frozen patterns grows, against trying
+   * each pattern in turn.
+   */
+  @Test
+  public void benchmarkFrozenLookup() {
+    System.out.println("Benchmark frozen pattern lookup");
+
+    final String[] paths = new String[256];
+    for (int i = 0; i < paths.length; i++)
+      paths[i] = "/data/projects/p" + (i % 37) + "/src/module" + (i % 11) + "/File" + i + (i % 3 == 0 ? ".java" : ".txt");
+
+    for (int rules : new int[]{10, 100, 1000}) {
+      final UploaderCacheInformation info = new UploaderCacheInformation();
+      final Map<Pattern, Long> naive = new LinkedHashMap<>();
+      for (int i = 0; i < rules; i++) {
+        final Pattern p = Pattern.compile(i % 2 == 0
+            ? "/data/projects/p" + i + "/.*"
+            : ".*/module" + i + "/.*\\.java");
+        info.FrozenPatterns.put(p, (long) i);
+        naive.put(p, (long) i);
+      }
+
+      final int rounds = Math.max(1, 2000 / rules);
+      long naiveNanos = 0;
+      long indexNanos = 0;
+      for (int round = 0; round < rounds; round++) {
+        for (String path : paths) {
+          long start = System.nanoTime();
+          long expected = -1;
+          for (Map.Entry<Pattern, Long> e : naive.entrySet())
+            if (e.getKey().matcher(path).matches()) {
+              expected = e.getValue();
+              break;
+            }
+          naiveNanos += System.nanoTime() - start;
+
+          start = System.nanoTime();
+          final long actual = info.FrozenPatterns.firstMatch(path);
+          indexNanos += System.nanoTime() - start;
+
+          Assert.assertEquals(expected, actual);
+        }
+      }
+
+      final long lookups = (long) rounds * paths.length;
+      System.out.println("\t" + rules + " frozen patterns: "
+          + (naiveNanos / lookups) + "ns per lookup trying each pattern, "
+          + (indexNanos / lookups) + "ns per lookup with the index");
+    }
+  }
+
+  /**
+   * Latency of a file information request: creating, connecting and destroying a socket for every request, reusing one
+   * socket, and reading the cache directly as {@link UploaderCache#getFileInformation(Path)} does.
+   */
+  @Test
+  public void benchmarkCacheRequests() throws IOException {
+    System.out.println("Benchmark cache requests");
+
+    final ZContext context = new ZContext();
+    final Path cacheFile = Files.createTempFile("", "");
+    final Path file = Paths.get("/data/projects/p1/src/File.java");
+    final int requests = 2000;
+    try (final UploaderCache cache = new UploaderCache(context, cacheFile)) {
+      final String address = cache.getAddress();
+      final byte[] msg = new UploaderMessage(UploaderCacheThread.GET_FILE_STATUS, UploaderCacheSettings.Protocol.BINARY)
+          .put('f', file.toString())
+          .encode();
+
+      // Warm up the cache thread.
+      for (int i = 0; i < requests / 10; i++)
+        cache.getFileInformation(file);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        final ZMQ.Socket sock = context.createSocket(ZMQ.REQ);
+        try {
+          sock.connect(address);
+          sock.send(msg);
+          Assert.assertNotNull(sock.recv());
+        } finally {
+          context.destroySocket(sock);
+        }
+      }
+      final long freshNanos = System.nanoTime() - start;
+
+      final long reusedNanos;
+      try (final UploaderSockets sockets = new UploaderSockets(context, address, ZMQ.REQ)) {
+        start = System.nanoTime();
+        for (int i = 0; i < requests; i++)
+          Assert.assertEquals(-1, UploaderCacheFileInfo.decode(sockets.request(msg)).TimeUploaded);
+        reusedNanos = System.nanoTime() - start;
+      }
+
+      start = System.nanoTime();
+      for (int i = 0; i < requests; i++)
+        Assert.assertEquals(-1, cache.getFileInformation(file).TimeUploaded);
+      final long directNanos = System.nanoTime() - start;
+
+      System.out.println("\t" + (freshNanos / requests / 1000) + "us per request with a new socket, "
+          + (reusedNanos / requests / 1000) + "us reusing a socket, "
+          + (directNanos / requests) + "ns reading directly");
+    } finally {
+      context.destroy();
+      Files.delete(cacheFile);
+    }
+  }
+
+  /**
+   * Time to upload many files with a strategy that only waits, like one blocked on a slow network, on a fixed pool of
+   * platform threads.
+   */
+  @Test
+  public void benchmarkUploadPlatformThreads() throws IOException, InterruptedException {
+    System.out.println("Benchmark uploads on platform threads");
+
+    final long elapsed = timeUploads(new UploaderServiceSettings().setWorkers(64));
+    System.out.println("\t" + elapsed + "ms for " + UPLOADS + " uploads of " + LATENCY + "ms on 64 platform threads");
+  }
+
+  /**
+   * Time to upload many files with a strategy that only waits, like one blocked on a slow network, on a virtual thread
+   * for each upload. Needs Java 21 or later, and is skipped on older JVMs.
+   */
+  @Test
+  public void benchmarkUploadVirtualThreads() throws IOException, InterruptedException {
+    Assume.assumeTrue(UploaderServiceSettings.isVirtualThreadSupported());
+    System.out.println("Benchmark uploads on virtual threads");
+
+    final long elapsed = timeUploads(new UploaderServiceSettings().setVirtualThreads(true));
+    System.out.println("\t" + elapsed + "ms for " + UPLOADS + " uploads of " + LATENCY + "ms on virtual threads");
+  }
+
+  /**
+   * Upload {@link #UPLOADS} new files with a strategy that sleeps {@link #LATENCY} milliseconds for each.
+   *
+   * @return How long the uploads took, in milliseconds.
+   */
+  private static long timeUploads(final UploaderServiceSettings settings) throws IOException, InterruptedException {
+    final UploaderStrategy strategy = (Path file, URI destination) -> {
+      try {
+        Thread.sleep(LATENCY);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Files.getLastModifiedTime(file).toMillis();
+    };
+
+    final ZContext context = new ZContext();
+    final Path root = Files.createTempDirectory("");
+    final List<Path> paths = new ArrayList<>();
+    try {
+      for (int i = 0; i < UPLOADS; i++)
+        paths.add(Files.createFile(root.resolve("file" + i)));
+      return timeUploads(context, paths, strategy, settings);
+    } finally {
+      context.destroy();
+      for (Path p : paths)
+        Files.delete(p);
+      Files.delete(root);
+    }
+  }
+
+  private static long timeUploads(final ZContext context,
+                                  final List<Path> paths,
+                                  final UploaderStrategy strategy,
+                                  final UploaderServiceSettings settings) throws IOException, InterruptedException {
+    final Path cacheFile = Files.createTempFile("", "");
+    try (final UploaderCache cache = new UploaderCache(context, cacheFile)) {
+      final long start = System.currentTimeMillis();
+      try (final UploaderService service = new UploaderService(
+          context, cache, (Path p) -> Collections.singletonList(p.toUri()), strategy, settings)) {
+        for (Path p : paths)
+          service.queueUpload(p);
+        service.terminate();
+        service.awaitTermination();
+      }
+      final long elapsed = System.currentTimeMillis() - start;
+
+      for (Path p : paths)
+        Assert.assertTrue(cache.getFileInformation(p).TimeUploaded >= 0);
+      return elapsed;
+    } finally {
+      Files.delete(cacheFile);
+    }
+  }
+}
@@ -4,11 +4,17 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class UploaderCacheInformationTest {
 
@@ -44,9 +50,57 @@ public class UploaderCacheInformationTest {
     }
   }
 
+  @Test
+  public void testFindFrozenTimestamps() throws IOException {
+    System.out.println("Test findFrozenTimestamps()");
+
+    final Path root = Files.createTempDirectory(UploaderCacheInformation.class.getName());
+    try {
+      for (String dir : new String[]{"a", "a/b", "a/b/c", "d", "d/a"}) {
+        Files.createDirectories(root.resolve(dir));
+        for (String name : new String[]{"x.freeze", "y.txt"})
+          Files.createFile(root.resolve(dir).resolve(name));
+      }
+
+      final String[] patterns = {
+          ".*\\.freeze",
+          Pattern.quote(root.toString()) + "/a/.*",
+          Pattern.quote(root.toString()) + "/a/b",
+          Pattern.quote(root.toString()) + "/(a|d)/[^/]*\\.freeze",
+          ".*/a/y\\.txt",
+          "nothing/.*"};
+      for (String source : patterns) {
+        final Pattern pattern = Pattern.compile(source);
+        final Map<Path, Long> expected = new HashMap<>();
+        try (final Stream<Path> walk = Files.walk(root)) {
+          walk.filter((Path p) -> pattern.matcher(p.toString()).matches()).forEach((Path p) -> {
+            try {
+              expected.put(p, Files.getLastModifiedTime(p).toMillis());
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+        }
+        Assert.assertEquals(source, expected, UploaderCacheInformation.findFrozenTimestamps(root, pattern));
+      }
+    } finally {
+      try (final Stream<Path> walk = Files.walk(root)) {
+        walk.sorted(Comparator.reverseOrder()).forEach((Path p) -> p.toFile().delete());
+      }
+    }
+  }
+
   @Test
   public void testIsIgnored() {
     UploaderCacheInformation info = new UploaderCacheInformation();
+    Assert.assertFalse(info.isIgnored(Paths.get("lol/tmp/file.ignore")));
+
+    info.IgnoredPatterns.add(Pattern.compile(".*\\.ignore"));
+    info.IgnoredPatterns.add(Pattern.compile("lol/skip/.*"));
+
+    Assert.assertTrue(info.isIgnored(Paths.get("lol/tmp/file.ignore")));
+    Assert.assertTrue(info.isIgnored(Paths.get("lol/skip/file")));
+    Assert.assertFalse(info.isIgnored(Paths.get("lol/tmp/file")));
   }
 
   @Test
@@ -166,4 +220,68 @@ public class UploaderCacheInformationTest {
     Assert.assertEquals(o1, o2);
     // </editor-fold>
   }
+
+  @Test
+  public void testBinaryIO() throws IOException {
+    System.out.println("Test binary IO");
+
+    final Path file = Files.createTempFile(UploaderCacheInformationTest.class.getName(), ".cache");
+    try {
+      final UploaderCacheInformation o1 = new UploaderCacheInformation();
+      o1.write(file, UploaderCacheSettings.Format.BINARY, false);
+      Assert.assertTrue(UploaderCacheBinaryFormat.isBinary(file));
+      Assert.assertEquals(o1, UploaderCacheInformation.read(file));
+
+      o1.IgnoredPatterns.add(Pattern.compile(".*\\.ignore"));
+      o1.FrozenPatterns.put(Pattern.compile("[a-z]*"), (long) 60);
+      o1.TimestampsWhenFrozen.put(Paths.get("frozen"), (long) 40);
+      o1.TimestampsWhenFrozen.put(Paths.get("both"), (long) 50);
+      o1.Timestamps.put(Paths.get("both"), (long) 70);
+      o1.Timestamps.put(Paths.get("dir/nested"), (long) 80);
+      o1.write(file, UploaderCacheSettings.Format.BINARY, true);
+      Assert.assertEquals(o1, UploaderCacheInformation.read(file));
+
+      // Timestamps from before 1970 are negative, and are still kept.
+      o1.Timestamps.put(Paths.get("old"), (long) -1);
+      o1.TimestampsWhenFrozen.put(Paths.get("older"), (long) -86400000);
+      o1.write(file, UploaderCacheSettings.Format.BINARY, false);
+      final UploaderCacheInformation o2 = UploaderCacheInformation.read(file);
+      Assert.assertEquals(o1, o2);
+      Assert.assertTrue(o2.Timestamps.containsKey(Paths.get("old")));
+      Assert.assertFalse(o2.TimestampsWhenFrozen.containsKey(Paths.get("old")));
+
+      // JSON files are still read, so they can be imported.
+      o1.write(file, UploaderCacheSettings.Format.JSON, false);
+      Assert.assertFalse(UploaderCacheBinaryFormat.isBinary(file));
+      Assert.assertEquals(o1, UploaderCacheInformation.read(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testDestinationTimestampsIO() throws IOException {
+    System.out.println("Test destination timestamps IO");
+
+    final Path file = Files.createTempFile(UploaderCacheInformationTest.class.getName(), ".cache");
+    try {
+      final UploaderCacheInformation o1 = new UploaderCacheInformation();
+      o1.Timestamps.put(Paths.get("both"), (long) 70);
+      o1.DestinationTimestamps.putLong(Paths.get("both"), URI.create("sftp://a/"), 70);
+      o1.DestinationTimestamps.putLong(Paths.get("both"), URI.create("sftp://b/"), 60);
+      // A path only uploaded to a destination still gets a place in the binary path table.
+      o1.DestinationTimestamps.putLong(Paths.get("dir/only"), URI.create("sftp://b/"), 80);
+
+      Assert.assertEquals(o1, new UploaderCacheInformation(o1.toJSON()));
+
+      o1.write(file, UploaderCacheSettings.Format.BINARY, false);
+      final UploaderCacheInformation o2 = UploaderCacheInformation.read(file);
+      Assert.assertEquals(o1, o2);
+      Assert.assertEquals(2, o2.DestinationTimestamps.size());
+      Assert.assertEquals(60, o2.DestinationTimestamps.getLong(Paths.get("both"), URI.create("sftp://b/"), -1));
+      Assert.assertEquals(-1, o2.DestinationTimestamps.getLong(Paths.get("dir/only"), URI.create("sftp://a/"), -1));
+    } finally {
+      Files.delete(file);
+    }
+  }
 }
@@ -0,0 +1,178 @@
+package com.github.lordcrekit;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.regex.Pattern;
+
+public class UploaderCacheJournalTest {
+
+  private static JSONObject update(final String path, final long timestamp) {
+    final JSONObject change = new JSONObject();
+    change.put("c", UploaderCacheThread.UPDATE_COMMAND);
+    change.put("f", path);
+    change.put("t", timestamp);
+    return change;
+  }
+
+  private static void deleteAll(final Path cacheFile) throws IOException {
+    for (Path seg : UploaderCacheJournal.segments(cacheFile, Long.MAX_VALUE))
+      Files.delete(seg);
+    Files.deleteIfExists(cacheFile);
+  }
+
+  @Test
+  public void testReplay() throws IOException {
+    System.out.println("Test replay");
+
+    final Path root = Files.createTempDirectory(UploaderCacheJournalTest.class.getName());
+    final Path cacheFile = root.resolve("cache");
+    try {
+      final UploaderCacheInformation expected = new UploaderCacheInformation();
+      try (final UploaderCacheJournal journal = new UploaderCacheJournal(
+          cacheFile, UploaderCacheSettings.Format.JSON, 1000)) {
+        final UploaderCacheInformation info = journal.open();
+        for (int i = 0; i < 10; i++) {
+          final JSONObject change = update("file" + i, i);
+          info.apply(change);
+          expected.apply(change);
+          journal.append(change);
+        }
+      }
+
+      // Nothing was compacted, so it all comes from the journal.
+      Assert.assertFalse(Files.exists(cacheFile));
+      try (final UploaderCacheJournal journal = new UploaderCacheJournal(
+          cacheFile, UploaderCacheSettings.Format.JSON, 1000)) {
+        Assert.assertEquals(expected, journal.open());
+      }
+    } finally {
+      deleteAll(cacheFile);
+      Files.delete(root);
+    }
+  }
+
+  @Test
+  public void testGlobCharactersInName() throws IOException {
+    System.out.println("Test segments(PATH, LONG) with glob characters in the name");
+
+    final Path root = Files.createTempDirectory(UploaderCacheJournalTest.class.getName());
+    final Path cacheFile = root.resolve("cache[1]*");
+    // A glob built from the name would match these.
+    final Path decoy = Files.createFile(root.resolve("cache1x.journal.0"));
+    final Path serviceDecoy = Files.createFile(root.resolve("cache1x.queue.0"));
+    final Path notNumbered = Files.createFile(root.resolve("cache[1]*.journal.x"));
+    try {
+      try (final UploaderCacheJournal journal = new UploaderCacheJournal(
+          cacheFile, UploaderCacheSettings.Format.JSON, 1000)) {
+        journal.open();
+        journal.append(update("file", 1));
+      }
+      Assert.assertEquals(1, UploaderCacheJournal.segments(cacheFile, Long.MAX_VALUE).size());
+      Assert.assertEquals(root.resolve("cache[1]*.journal.0"),
+          UploaderCacheJournal.segments(cacheFile, Long.MAX_VALUE).get(0));
+      Assert.assertTrue(UploaderServiceJournal.segments(cacheFile).isEmpty());
+    } finally {
+      deleteAll(cacheFile);
+      Files.delete(decoy);
+      Files.delete(serviceDecoy);
+      Files.delete(notNumbered);
+      Files.delete(root);
+    }
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    System.out.println("Test compaction");
+
+    final Path root = Files.createTempDirectory(UploaderCacheJournalTest.class.getName());
+    final Path cacheFile = root.resolve("cache");
+    try {
+      final UploaderCacheInformation expected = new UploaderCacheInformation();
+      try (final UploaderCacheJournal journal = new UploaderCacheJournal(
+          cacheFile, UploaderCacheSettings.Format.BINARY, 4)) {
+        final UploaderCacheInformation info = journal.open();
+        for (int i = 0; i < 10; i++) {
+          final JSONObject change = update("file" + i, i);
+          info.apply(change);
+          expected.apply(change);
+          journal.append(change);
+        }
+      }
+
+      // Two full segments were folded, the last two records are still in the journal.
+      Assert.assertTrue(UploaderCacheBinaryFormat.isBinary(cacheFile));
+      Assert.assertEquals(1, UploaderCacheJournal.segments(cacheFile, Long.MAX_VALUE).size());
+      Assert.assertEquals(8, UploaderCacheInformation.read(cacheFile).Timestamps.size());
+      try (final UploaderCacheJournal journal = new UploaderCacheJournal(
+          cacheFile, UploaderCacheSettings.Format.BINARY, 4)) {
+        Assert.assertEquals(expected, journal.open());
+      }
+    } finally {
+      deleteAll(cacheFile);
+      Files.delete(root);
+    }
+  }
+
+  @Test
+  public void testReplayIsIdempotent() {
+    System.out.println("Test replaying a change twice");
+
+    final JSONObject ignore = new JSONObject();
+    ignore.put("c", UploaderCacheThread.IGNORE_COMMAND);
+    ignore.put("p", ".*\\.ignore");
+
+    final JSONObject freeze = new JSONObject();
+    freeze.put("c", UploaderCacheThread.FREEZE_COMMAND);
+    freeze.put("p", ".*\\.freeze");
+    freeze.put("t", 50);
+    freeze.put("ft", new JSONObject().put("a.freeze", 40));
+
+    final UploaderCacheInformation info = new UploaderCacheInformation();
+    for (int i = 0; i < 2; i++) {
+      info.apply(ignore);
+      info.apply(freeze);
+      info.apply(update("a", 60));
+    }
+
+    Assert.assertEquals(1, info.IgnoredPatterns.size());
+    Assert.assertEquals(1, info.FrozenPatterns.size());
+    Assert.assertEquals(40, (long) info.TimestampsWhenFrozen.get(Paths.get("a.freeze")));
+    Assert.assertEquals(60, (long) info.Timestamps.get(Paths.get("a")));
+  }
+
+  @Test
+  public void testJournaledCache() throws IOException {
+    System.out.println("Test journaled UploaderCache");
+
+    final Path root = Files.createTempDirectory(UploaderCacheJournalTest.class.getName());
+    final Path cacheFile = root.resolve("cache");
+    final Path uploadFile = Files.createTempFile(root, "upload", "");
+    final ZContext context = new ZContext();
+    try {
+      final UploaderCacheSettings settings = new UploaderCacheSettings().setJournaled(true).setCompactionThreshold(3);
+      try (final UploaderCache cache = new UploaderCache(context, cacheFile, settings)) {
+        cache.ignore(Pattern.compile(".*\\.ignore"));
+        for (int i = 1; i <= 5; i++)
+          cache.update(uploadFile, i * 10);
+      }
+
+      try (final UploaderCache cache = new UploaderCache(context, cacheFile, settings)) {
+        final UploaderCacheInformation info = cache.getCacheInformation();
+        Assert.assertEquals(1, info.IgnoredPatterns.size());
+        Assert.assertEquals(50, (long) info.Timestamps.get(uploadFile));
+      }
+    } finally {
+      context.destroy();
+      deleteAll(cacheFile);
+      Files.delete(uploadFile);
+      Files.delete(root);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package com.github.lordcrekit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class UploaderCachePathTrieTest {
+
+  @Test
+  public void testPutGet() {
+    System.out.println("Test put() and get()");
+
+    final UploaderCachePathTrie trie = new UploaderCachePathTrie();
+    Assert.assertEquals(-1, trie.getLong(Paths.get("/a/b"), -1));
+
+    trie.putLong(Paths.get("/a/b"), 50);
+    trie.put(Paths.get("/a/b/c"), (long) 60);
+    trie.put(Paths.get("a/b"), (long) 70);
+    Assert.assertEquals(3, trie.size());
+
+    Assert.assertEquals(50, trie.getLong(Paths.get("/a/b"), -1));
+    Assert.assertEquals(60, (long) trie.get(Paths.get("/a/b/c")));
+    Assert.assertEquals(70, (long) trie.get(Paths.get("a/b")));
+
+    // Directories on the way to a path are not entries.
+    Assert.assertFalse(trie.containsKey(Paths.get("/a")));
+    Assert.assertNull(trie.get(Paths.get("/a")));
+
+    Assert.assertEquals(50, (long) trie.put(Paths.get("/a/b"), (long) 55));
+    Assert.assertEquals(55, trie.getLong(Paths.get("/a/b"), -1));
+    Assert.assertEquals(3, trie.size());
+
+    Assert.assertEquals(55, (long) trie.remove(Paths.get("/a/b")));
+    Assert.assertNull(trie.remove(Paths.get("/a/b")));
+    Assert.assertEquals(60, (long) trie.get(Paths.get("/a/b/c")));
+    Assert.assertEquals(2, trie.size());
+  }
+
+  @Test
+  public void testEquals() {
+    System.out.println("Test equals()");
+
+    final UploaderCachePathTrie trie = new UploaderCachePathTrie();
+    final Map<Path, Long> map = new HashMap<>();
+    for (String s : new String[]{"/x/y/z", "/x/y", "/x/q", "rel/a", "rel"}) {
+      trie.put(Paths.get(s), (long) s.length());
+      map.put(Paths.get(s), (long) s.length());
+    }
+
+    Assert.assertEquals(map, trie);
+    Assert.assertEquals(trie, map);
+    Assert.assertEquals(map.hashCode(), trie.hashCode());
+    Assert.assertEquals(map, new HashMap<>(trie));
+  }
+
+  @Test
+  public void testIterationOrder() {
+    System.out.println("Test iteration order");
+
+    final UploaderCachePathTrie trie = new UploaderCachePathTrie();
+    trie.putLong(Paths.get("/b/x"), 1);
+    trie.putLong(Paths.get("/a"), 2);
+    trie.putLong(Paths.get("/b"), 3);
+    trie.putLong(Paths.get("/a/z"), 4);
+
+    final List<Path> order = new ArrayList<>();
+    for (Map.Entry<Path, Long> e : trie.entrySet())
+      order.add(e.getKey());
+
+    Assert.assertEquals(
+        Arrays.asList(Paths.get("/a"), Paths.get("/a/z"), Paths.get("/b"), Paths.get("/b/x")),
+        order);
+  }
+
+  @Test
+  public void testSubtrees() {
+    System.out.println("Test subtree operations");
+
+    final UploaderCachePathTrie trie = new UploaderCachePathTrie();
+    trie.putLong(Paths.get("/data/projects/x/1"), 1);
+    trie.putLong(Paths.get("/data/projects/x/sub/2"), 2);
+    trie.putLong(Paths.get("/data/projects/xy"), 3);
+    trie.putLong(Paths.get("/data/other"), 4);
+
+    Assert.assertEquals(2, trie.countUnder(Paths.get("/data/projects/x")));
+    Assert.assertEquals(3, trie.countUnder(Paths.get("/data/projects")));
+    Assert.assertEquals(0, trie.countUnder(Paths.get("/nothing")));
+
+    long sum = 0;
+    for (Map.Entry<Path, Long> e : trie.entriesUnder(Paths.get("/data/projects/x"))) {
+      Assert.assertTrue(e.getKey().startsWith(Paths.get("/data/projects/x")));
+      sum += e.getValue();
+    }
+    Assert.assertEquals(3, sum);
+
+    Assert.assertEquals(2, trie.removeUnder(Paths.get("/data/projects/x")));
+    Assert.assertEquals(2, trie.size());
+    Assert.assertFalse(trie.containsKey(Paths.get("/data/projects/x/1")));
+    Assert.assertTrue(trie.containsKey(Paths.get("/data/projects/xy")));
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    System.out.println("Test removing while iterating");
+
+    final UploaderCachePathTrie trie = new UploaderCachePathTrie();
+    for (int i = 0; i < 10; i++)
+      trie.putLong(Paths.get("/d/" + i), i);
+
+    for (Iterator<Map.Entry<Path, Long>> it = trie.entrySet().iterator(); it.hasNext(); )
+      if (it.next().getValue() % 2 == 0)
+        it.remove();
+
+    Assert.assertEquals(5, trie.size());
+    Assert.assertFalse(trie.containsKey(Paths.get("/d/4")));
+    Assert.assertTrue(trie.containsKey(Paths.get("/d/5")));
+  }
+
+  @Test
+  public void testEntriesAfter() {
+    System.out.println("Test entriesAfter(PATH, PATH)");
+
+    final UploaderCachePathTrie trie = new UploaderCachePathTrie();
+    for (String s : new String[]{"/a", "/a/b", "/a/b/c", "/a-c", "/a/d", "/b", "rel/x"})
+      trie.putLong(Paths.get(s), s.length());
+
+    // Resuming after every path gives back the rest of a full walk.
+    final List<Path> all = new ArrayList<>();
+    for (Iterator<Map.Entry<Path, Long>> it = trie.entriesAfter(null, null); it.hasNext(); )
+      all.add(it.next().getKey());
+    Assert.assertEquals(trie.size(), all.size());
+    for (int i = 0; i < all.size(); i++) {
+      Assert.assertTrue(UploaderCachePathTrie.compare(all.get(i), all.get(Math.max(i - 1, 0))) >= 0);
+      final List<Path> rest = new ArrayList<>();
+      for (Iterator<Map.Entry<Path, Long>> it = trie.entriesAfter(null, all.get(i)); it.hasNext(); )
+        rest.add(it.next().getKey());
+      Assert.assertEquals(all.subList(i + 1, all.size()), rest);
+    }
+
+    // A subtree, resumed after a path that has since been removed.
+    trie.remove(Paths.get("/a/b"));
+    trie.remove(Paths.get("/a/b/c"));
+    final Iterator<Map.Entry<Path, Long>> it = trie.entriesAfter(Paths.get("/a"), Paths.get("/a/b"));
+    Assert.assertEquals(Paths.get("/a/d"), it.next().getKey());
+    Assert.assertFalse(it.hasNext());
+    Assert.assertFalse(trie.entriesAfter(Paths.get("/a"), Paths.get("/b")).hasNext());
+    Assert.assertEquals(Paths.get("/a"), trie.entriesAfter(Paths.get("/a"), Paths.get("/")).next().getKey());
+  }
+}
@@ -0,0 +1,112 @@
+package com.github.lordcrekit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class UploaderCachePatternIndexTest {
+
+  private static final String[] PATTERNS = {
+      ".*\\.tmp",
+      "/home/user/cache/.*",
+      ".*/build/.*\\.class",
+      "(?i).*\\.BAK",
+      ".*~",
+      "[a-z]+\\.log",
+      "/var/.*/lock",
+      ".*/\\.git/.*",
+      ".*\\.(swp|swo)",
+      "(a)\\1.*",
+      "/exact/file\\.txt",
+      ".*",
+  };
+
+  private static final String[] PATHS = {
+      "/home/user/file.tmp",
+      "/home/user/cache/x",
+      "/project/build/A.class",
+      "/project/build/A.java",
+      "/docs/notes.bak",
+      "/docs/notes~",
+      "server.log",
+      "Server.log",
+      "/var/run/lock",
+      "/var/run/locked",
+      "/src/.git/HEAD",
+      "/src/main.swo",
+      "aab",
+      "/exact/file.txt",
+      "/exact/fileXtxt",
+      "",
+  };
+
+  @Test
+  public void testLiterals() {
+    System.out.println("Test literals()");
+
+    Assert.assertArrayEquals(new String[]{"", ".tmp"}, UploaderCachePatternIndex.literals(Pattern.compile(".*\\.tmp")));
+    Assert.assertArrayEquals(new String[]{"/home/", ""}, UploaderCachePatternIndex.literals(Pattern.compile("/home/.*")));
+    Assert.assertArrayEquals(new String[]{"/a", "b"}, UploaderCachePatternIndex.literals(Pattern.compile("/a[0-9]*b")));
+    Assert.assertArrayEquals(new String[]{"/a", ""}, UploaderCachePatternIndex.literals(Pattern.compile("/ab?")));
+    Assert.assertArrayEquals(new String[]{"", "c"}, UploaderCachePatternIndex.literals(Pattern.compile("(ab)+c")));
+
+    Assert.assertNull(UploaderCachePatternIndex.literals(Pattern.compile(".*")));
+    Assert.assertNull(UploaderCachePatternIndex.literals(Pattern.compile("abc|def")));
+    Assert.assertNull(UploaderCachePatternIndex.literals(Pattern.compile("(?i)abc")));
+    Assert.assertNull(UploaderCachePatternIndex.literals(Pattern.compile("abc", Pattern.CASE_INSENSITIVE)));
+    Assert.assertNull(UploaderCachePatternIndex.literals(Pattern.compile("\\x41bc")));
+  }
+
+  /**
+   * Every subset of the patterns (as a prefix of the list) must give the same answers as trying each pattern.
+   */
+  @Test
+  public void testMatchesNaive() {
+    System.out.println("Test anyMatch() and firstMatch()");
+
+    final UploaderCachePatternIndex index = new UploaderCachePatternIndex();
+    final List<Pattern> patterns = new ArrayList<>();
+    for (String src : PATTERNS) {
+      final Pattern p = Pattern.compile(src);
+      patterns.add(p);
+      index.add(p);
+
+      for (String path : PATHS) {
+        int expected = -1;
+        for (int i = 0; i < patterns.size() && expected < 0; i++)
+          if (patterns.get(i).matcher(path).matches())
+            expected = i;
+
+        Assert.assertEquals(src + " / " + path, expected, index.firstMatch(path));
+        Assert.assertEquals(src + " / " + path, expected >= 0, index.anyMatch(path));
+      }
+    }
+  }
+
+  @Test
+  public void testPatternList() {
+    System.out.println("Test UploaderCachePatternList");
+
+    final UploaderCachePatternList list = new UploaderCachePatternList();
+    list.add(Pattern.compile(".*\\.tmp"));
+    list.add(Pattern.compile(".*\\.log"));
+    Assert.assertTrue(list.anyMatch("a.log"));
+    Assert.assertEquals(1, list.firstMatch("a.log"));
+
+    // Changes other than appending rebuild the index.
+    list.remove(0);
+    Assert.assertFalse(list.anyMatch("a.tmp"));
+    Assert.assertEquals(0, list.firstMatch("a.log"));
+
+    list.add(0, Pattern.compile(".*"));
+    Assert.assertEquals(0, list.firstMatch("a.log"));
+
+    list.clear();
+    Assert.assertFalse(list.anyMatch("a.log"));
+    list.add(Pattern.compile(".*\\.log"));
+    Assert.assertTrue(list.anyMatch("a.log"));
+  }
+}
@@ -7,13 +7,32 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 public class UploaderCacheTest {
@@ -142,4 +161,551 @@ public class UploaderCacheTest {
       Files.delete(tempfile);
     }
   }
+
+  @Test
+  public void testGroupCommit() throws IOException, InterruptedException {
+    System.out.println("Test group commit");
+
+    final Path tempfile = Files.createTempFile("", "");
+    final Path[] uploadFiles = new Path[8];
+    try {
+      for (int i = 0; i < uploadFiles.length; i++)
+        uploadFiles[i] = Paths.get("groupCommit" + i).toAbsolutePath();
+
+      final UploaderCacheSettings settings = new UploaderCacheSettings()
+          .setDurability(UploaderCacheSettings.Durability.GROUP_COMMIT)
+          .setCommitWindow(50, 4);
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile, settings)) {
+        // Concurrent updates are acknowledged together.
+        final Thread[] threads = new Thread[uploadFiles.length];
+        for (int i = 0; i < threads.length; i++) {
+          final Path p = uploadFiles[i];
+          final long t = 10 * (i + 1);
+          threads[i] = new Thread(() -> cache.update(p, t));
+          threads[i].start();
+        }
+        for (Thread t : threads)
+          t.join();
+
+        Assert.assertEquals(uploadFiles.length, cache.getCacheInformation().Timestamps.size());
+      }
+
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        final UploaderCacheInformation info = cache.getCacheInformation();
+        for (int i = 0; i < uploadFiles.length; i++)
+          Assert.assertEquals(10 * (i + 1), (long) info.Timestamps.get(uploadFiles[i]));
+      }
+    } finally {
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testRelaxedCommit() throws IOException {
+    System.out.println("Test relaxed commit");
+
+    final Path tempUploadFile = Files.createTempFile("", "");
+    final Path tempfile = Files.createTempFile("", "");
+    try {
+      final UploaderCacheSettings settings = new UploaderCacheSettings()
+          .setDurability(UploaderCacheSettings.Durability.RELAXED)
+          .setCommitWindow(1000, 1000);
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile, settings)) {
+        cache.update(tempUploadFile, 50);
+        Assert.assertEquals(50, cache.getFileInformation(tempUploadFile).TimeUploaded);
+      }
+
+      // Closing flushes whatever the timer had not.
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        Assert.assertEquals(50, cache.getFileInformation(tempUploadFile).TimeUploaded);
+      }
+    } finally {
+      Files.delete(tempUploadFile);
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testRelaxedCommitCount() throws IOException, InterruptedException {
+    System.out.println("Test relaxed commit count");
+
+    final Path tempfile = Files.createTempFile("", "");
+    try {
+      // The window is far longer than the test, so only the count can cause a commit.
+      final UploaderCacheSettings settings = new UploaderCacheSettings()
+          .setDurability(UploaderCacheSettings.Durability.RELAXED)
+          .setCommitWindow(60000, 3);
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile, settings)) {
+        for (int i = 0; i < 3; i++)
+          cache.update(Paths.get("dir", "file" + i), 50);
+
+        // Relaxed changes are acknowledged before they are committed, so wait for the write.
+        final long start = System.currentTimeMillis();
+        while (UploaderCacheInformation.read(tempfile).Timestamps.size() < 3
+            && System.currentTimeMillis() - start < 5000)
+          Thread.sleep(10);
+        Assert.assertEquals(3, UploaderCacheInformation.read(tempfile).Timestamps.size());
+      }
+    } finally {
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testDecisionCache() throws IOException {
+    System.out.println("Test decision cache");
+
+    final Path tempUploadFile = Files.createTempFile("", ".tmp");
+    final Path tempfile = Files.createTempFile("", "");
+    try {
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        Assert.assertFalse(cache.getFileInformation(tempUploadFile).Ignored);
+        Assert.assertFalse(cache.getFileInformation(tempUploadFile).Ignored);
+        Assert.assertEquals(1, cache.getDecisionCacheMisses());
+        Assert.assertEquals(1, cache.getDecisionCacheHits());
+
+        // Ignoring a pattern makes the remembered decision stale.
+        cache.ignore(Pattern.compile(".*\\.tmp"));
+        Assert.assertTrue(cache.getFileInformation(tempUploadFile).Ignored);
+        Assert.assertEquals(2, cache.getDecisionCacheMisses());
+
+        // Uploads do not change decisions, and are still seen.
+        cache.update(tempUploadFile, 50);
+        final UploaderCacheFileInfo info = cache.getFileInformation(tempUploadFile);
+        Assert.assertTrue(info.Ignored);
+        Assert.assertEquals(50, info.TimeUploaded);
+        Assert.assertEquals(2, cache.getDecisionCacheHits());
+      }
+
+      final UploaderCacheSettings settings = new UploaderCacheSettings().setDecisionCacheSize(0);
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile, settings)) {
+        Assert.assertTrue(cache.getFileInformation(tempUploadFile).Ignored);
+        Assert.assertEquals(0, cache.getDecisionCacheHits() + cache.getDecisionCacheMisses());
+      }
+    } finally {
+      Files.delete(tempUploadFile);
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testFreezeAsync() throws Exception {
+    System.out.println("Test freezeAsync(PATH)");
+
+    final Path root = Files.createTempDirectory(UploaderCacheTest.class.getName());
+    final Path frozenFile = Files.createTempFile(root, "", ".freeze");
+    final Path tempfile = Files.createTempFile("", "");
+    try {
+      Files.setLastModifiedTime(frozenFile, FileTime.fromMillis(40));
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        final CompletableFuture<Void> freeze = cache.freezeAsync(root, Pattern.compile(".*\\.freeze"), 50);
+        cache.update(frozenFile, 30);
+        freeze.get(10, TimeUnit.SECONDS);
+
+        final UploaderCacheFileInfo info = cache.getFileInformation(frozenFile);
+        Assert.assertEquals(50, info.TimeFrozen);
+        Assert.assertEquals(40, info.TimestampWhenFrozen);
+        Assert.assertEquals(30, info.TimeUploaded);
+      }
+    } finally {
+      Files.delete(tempfile);
+      Files.delete(frozenFile);
+      Files.delete(root);
+    }
+  }
+
+  @Test
+  public void testBatch() throws IOException {
+    System.out.println("Test updateAll(MAP) and getFileInformation(COLLECTION)");
+
+    final Path tempfile = Files.createTempFile("", "");
+    try {
+      final Map<Path, Long> timestamps = new LinkedHashMap<>();
+      for (int i = 0; i < 100; i++)
+        timestamps.put(Paths.get("dir", "file" + i), (long) i + 1);
+
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        cache.ignore(Pattern.compile(".*/file1"));
+        cache.updateAll(timestamps);
+      }
+
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        final List<Path> paths = new ArrayList<>(timestamps.keySet());
+        paths.add(Paths.get("dir", "missing"));
+        final Map<Path, UploaderCacheFileInfo> infos = cache.getFileInformation(paths);
+        Assert.assertEquals(paths, new ArrayList<>(infos.keySet()));
+        for (Map.Entry<Path, Long> e : timestamps.entrySet())
+          Assert.assertEquals((long) e.getValue(), infos.get(e.getKey()).TimeUploaded);
+        Assert.assertTrue(infos.get(Paths.get("dir", "file1")).Ignored);
+        Assert.assertEquals(-1, infos.get(Paths.get("dir", "missing")).TimeUploaded);
+      }
+    } finally {
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testFailedChange() throws IOException {
+    System.out.println("Test changes the cache fails to persist");
+
+    final Path root = Files.createTempDirectory(UploaderCacheTest.class.getName());
+    final Path cacheFile = Files.createTempFile(root, "", "");
+    final Path blocker = cacheFile.resolve("blocker");
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      // Once the cache is read, a directory that is not empty takes the place of its file, so it can not be written.
+      cache.getFileInformation(Paths.get("file"));
+      Files.delete(cacheFile);
+      Files.createDirectories(blocker);
+
+      try {
+        cache.updateAll(Collections.singletonMap(Paths.get("file"), 1L));
+        Assert.fail("updateAll(MAP) did not report the failure");
+      } catch (UncheckedIOException e) {
+      }
+      try {
+        cache.update(Paths.get("file"), 1);
+        Assert.fail("update(PATH, long) did not report the failure");
+      } catch (UncheckedIOException e) {
+      }
+      try {
+        cache.update(Paths.get("file"), URI.create("sftp://host/"), 1);
+        Assert.fail("update(PATH, URI, long) did not report the failure");
+      } catch (UncheckedIOException e) {
+      }
+      try {
+        cache.updateDestinations(Collections.singletonMap(
+            URI.create("sftp://host/"), Collections.singletonMap(Paths.get("file"), 1L)));
+        Assert.fail("updateDestinations(MAP) did not report the failure");
+      } catch (UncheckedIOException e) {
+      }
+      try {
+        cache.ignore(Pattern.compile(".*\\.ignore"));
+        Assert.fail("ignore(PATTERN) did not report the failure");
+      } catch (UncheckedIOException e) {
+      }
+    } finally {
+      Files.delete(blocker);
+      Files.delete(cacheFile);
+      Files.delete(root);
+    }
+  }
+
+  @Test
+  public void testUpdateDestinations() throws IOException {
+    System.out.println("Test update(PATH, URI, LONG) and updateDestinations(MAP)");
+
+    final URI a = URI.create("sftp://a/");
+    final URI b = URI.create("sftp://b/");
+    final Path file = Paths.get("dir", "file");
+    final Path other = Paths.get("dir", "other");
+    final Path tempfile = Files.createTempFile("", "");
+    try {
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        cache.update(file, a, 50);
+        final UploaderCacheFileInfo info = cache.getFileInformation(file);
+        Assert.assertEquals(50, info.TimeUploaded);
+        Assert.assertEquals(50, info.timeUploadedTo(a));
+        Assert.assertEquals(-1, info.timeUploadedTo(b));
+
+        final Map<URI, Map<Path, Long>> timestamps = new LinkedHashMap<>();
+        timestamps.computeIfAbsent(b, (URI d) -> new LinkedHashMap<>()).put(file, 60L);
+        timestamps.computeIfAbsent(b, (URI d) -> new LinkedHashMap<>()).put(other, 70L);
+        timestamps.computeIfAbsent(a, (URI d) -> new LinkedHashMap<>()).put(other, 30L);
+        cache.updateDestinations(timestamps);
+      }
+
+      // Each destination's times survive reloading the cache.
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        final UploaderCacheFileInfo info = cache.getFileInformation(file);
+        Assert.assertEquals(50, info.timeUploadedTo(a));
+        Assert.assertEquals(60, info.timeUploadedTo(b));
+        Assert.assertEquals(60, info.TimeUploaded);
+        Assert.assertEquals(30, cache.getFileInformation(other).timeUploadedTo(a));
+        Assert.assertEquals(70, cache.getFileInformation(other).timeUploadedTo(b));
+        Assert.assertEquals(2, cache.getCacheInformation().DestinationTimestamps.size());
+
+        // Without a destination, every destination the file has a time for is updated.
+        cache.update(file, 80);
+        cache.updateAll(Collections.singletonMap(other, 90L));
+        cache.update(other, b, -5);
+      }
+
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+        Assert.assertEquals(80, cache.getFileInformation(file).timeUploadedTo(a));
+        Assert.assertEquals(80, cache.getFileInformation(file).timeUploadedTo(b));
+        Assert.assertEquals(90, cache.getFileInformation(other).timeUploadedTo(a));
+        Assert.assertEquals(-5, cache.getFileInformation(other).timeUploadedTo(b));
+      }
+    } finally {
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    System.out.println("Test concurrent reads");
+
+    final Path tempfile = Files.createTempFile("", "");
+    final ExecutorService readers = Executors.newFixedThreadPool(4);
+    try {
+      final UploaderCacheSettings settings = new UploaderCacheSettings()
+          .setDurability(UploaderCacheSettings.Durability.RELAXED);
+      try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile, settings)) {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final List<Future<?>> results = new ArrayList<>();
+        for (int r = 0; r < 4; r++)
+          results.add(readers.submit(() -> {
+            // Each file's timestamp only ever grows.
+            final long[] seen = new long[50];
+            Arrays.fill(seen, -1);
+            while (!done.get())
+              for (int i = 0; i < seen.length; i++) {
+                final long t = cache.getFileInformation(Paths.get("dir", "file" + i)).TimeUploaded;
+                Assert.assertTrue(t >= seen[i]);
+                seen[i] = t;
+              }
+          }));
+
+        for (int round = 1; round <= 20; round++) {
+          for (int i = 0; i < 50; i++)
+            cache.update(Paths.get("dir", "file" + i), round);
+          cache.ignore(Pattern.compile(".*/file" + round));
+        }
+        done.set(true);
+        for (Future<?> f : results)
+          f.get(10, TimeUnit.SECONDS);
+
+        final UploaderCacheFileInfo info = cache.getFileInformation(Paths.get("dir", "file7"));
+        Assert.assertEquals(20, info.TimeUploaded);
+        Assert.assertTrue(info.Ignored);
+      }
+    } finally {
+      readers.shutdown();
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testPipelinedUpdates() throws Exception {
+    System.out.println("Test updateAsync(PATH, LONG)");
+
+    final Path tempfile = Files.createTempFile("", "");
+    try {
+      final UploaderCacheSettings settings = new UploaderCacheSettings()
+          .setDurability(UploaderCacheSettings.Durability.GROUP_COMMIT);
+      final UploaderCache cache = new UploaderCache(CONTEXT, tempfile, settings);
+      try {
+        final List<CompletableFuture<Void>> updates = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++)
+          updates.add(cache.updateAsync(Paths.get("dir", "file" + (i % 10)), i));
+        updates.add(cache.ignoreAsync(Pattern.compile(".*/file0")));
+        CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        // Applied in the order they were made.
+        for (int i = 0; i < 10; i++)
+          Assert.assertEquals(990 + (i == 0 ? 10 : i), cache.getFileInformation(Paths.get("dir", "file" + i)).TimeUploaded);
+        Assert.assertTrue(cache.getFileInformationAsync(Paths.get("dir", "file0")).get().Ignored);
+      } finally {
+        cache.close();
+      }
+
+      try {
+        cache.updateAsync(Paths.get("dir", "file0"), 0).join();
+        Assert.fail("Updated a closed cache");
+      } catch (CompletionException e) {
+        Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    } finally {
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testUpdatesRacingClose() throws Exception {
+    System.out.println("Test updateAsync(PATH, LONG) while closing");
+
+    final Path tempfile = Files.createTempFile("", "");
+    final ExecutorService writers = Executors.newFixedThreadPool(4);
+    try {
+      final UploaderCache cache = new UploaderCache(CONTEXT, tempfile);
+      final List<CompletableFuture<Void>> updates = Collections.synchronizedList(new ArrayList<>());
+      final AtomicBoolean done = new AtomicBoolean(false);
+      final List<Future<?>> results = new ArrayList<>();
+      for (int w = 0; w < 4; w++) {
+        final int writer = w;
+        results.add(writers.submit(() -> {
+          for (int i = 0; !done.get(); i++)
+            updates.add(cache.updateAsync(Paths.get("dir", "file" + writer), i));
+        }));
+      }
+
+      Thread.sleep(50);
+      cache.close();
+      done.set(true);
+      for (Future<?> f : results)
+        f.get(10, TimeUnit.SECONDS);
+
+      // Every request either went through or failed; none is left waiting.
+      for (CompletableFuture<Void> f : updates) {
+        try {
+          f.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+      }
+    } finally {
+      writers.shutdown();
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testShortLivedThreads() throws Exception {
+    System.out.println("Test requests from short-lived threads");
+
+    final Path tempfile = Files.createTempFile("", "");
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+      cache.update(Paths.get("file"), 1);
+      final int before = CONTEXT.getSockets().size();
+
+      // Each thread opens a socket of its own, which is closed once the thread has ended.
+      for (int i = 0; i < 50; i++) {
+        final Thread t = new Thread(() -> cache.update(Paths.get("file"), 2));
+        t.start();
+        t.join();
+      }
+      Assert.assertTrue(CONTEXT.getSockets().size() <= before + 1);
+      Assert.assertEquals(2, cache.getFileInformation(Paths.get("file")).TimeUploaded);
+    } finally {
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testSocketsClosedWhileWaiting() throws Exception {
+    System.out.println("Test closing sockets a thread is waiting on");
+
+    // Nothing ever replies, so the request waits until the sockets are closed.
+    final ZMQ.Socket silent = CONTEXT.createSocket(ZMQ.ROUTER);
+    final String address = UploaderService.makeAddress("testSocketsClosedWhileWaiting");
+    silent.bind(address);
+    final ExecutorService requester = Executors.newSingleThreadExecutor();
+    try {
+      final UploaderSockets sockets = new UploaderSockets(CONTEXT, address, ZMQ.REQ);
+      final Future<byte[]> reply = requester.submit(() -> sockets.request(new byte[]{1}));
+      Assert.assertNotNull(silent.recv()); // The request has been sent.
+
+      sockets.close();
+      try {
+        reply.get(10, TimeUnit.SECONDS);
+        Assert.fail("The request was answered");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    } finally {
+      requester.shutdown();
+      CONTEXT.destroySocket(silent);
+    }
+  }
+
+  @Test
+  public void testEntries() throws IOException {
+    System.out.println("Test getEntries(PATH, BOOLEAN, BOOLEAN)");
+
+    final Path tempfile = Files.createTempFile("", "");
+    final Path root = Files.createTempDirectory("");
+    final Path frozen = Files.createFile(root.resolve("frozen"));
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+      final Map<Path, Long> timestamps = new LinkedHashMap<>();
+      for (int i = 0; i < 2500; i++)
+        timestamps.put(root.resolve("dir" + (i % 3)).resolve("file" + i), (long) i + 1);
+      timestamps.put(frozen, 7L);
+      cache.updateAll(timestamps);
+      cache.freeze(root, Pattern.compile(".*/frozen"), 100);
+
+      final Map<Path, Long> read = new LinkedHashMap<>();
+      for (UploaderCacheEntry e : cache.getEntries()) {
+        Assert.assertNull(read.put(e.File, e.TimeUploaded));
+        if (e.File.equals(frozen))
+          Assert.assertEquals(Files.getLastModifiedTime(frozen).toMillis(), e.TimestampWhenFrozen);
+        else
+          Assert.assertEquals(-1, e.TimestampWhenFrozen);
+      }
+      Assert.assertEquals(timestamps, new HashMap<>(read));
+
+      int count = 0;
+      for (UploaderCacheEntry e : cache.getEntries(root.resolve("dir1"), true, false)) {
+        Assert.assertTrue(e.File.startsWith(root.resolve("dir1")));
+        count++;
+      }
+      Assert.assertEquals(833, count);
+
+      final List<UploaderCacheEntry> onlyFrozen = new ArrayList<>();
+      for (UploaderCacheEntry e : cache.getEntries(null, false, true))
+        onlyFrozen.add(e);
+      Assert.assertEquals(1, onlyFrozen.size());
+      Assert.assertEquals(-1, onlyFrozen.get(0).TimeUploaded);
+
+      // The same pages over the socket, in both protocols.
+      final UploaderSockets sockets = new UploaderSockets(CONTEXT, cache.getAddress(), ZMQ.REQ);
+      try {
+        for (UploaderCacheSettings.Protocol protocol : UploaderCacheSettings.Protocol.values()) {
+          final Iterator<UploaderCacheEntry> it = new UploaderCacheCursor((Path after, Integer limit) ->
+              UploaderCacheEntry.decodePage(sockets.request(
+                  new UploaderMessage(UploaderCacheThread.GET_ENTRIES, protocol)
+                      .put('r', root.toString())
+                      .put('a', after == null ? "" : after.toString())
+                      .put('w', "uf")
+                      .put('n', limit)
+                      .encode())), 100);
+          for (UploaderCacheEntry e : cache.getEntries(root, true, true))
+            Assert.assertEquals(e, it.next());
+          Assert.assertFalse(it.hasNext());
+        }
+      } finally {
+        sockets.close();
+      }
+    } finally {
+      Files.delete(frozen);
+      Files.delete(root);
+      Files.delete(tempfile);
+    }
+  }
+
+  @Test
+  public void testEntriesLargePages() throws IOException {
+    System.out.println("Test getEntries() with pages larger than the cache replies with");
+
+    final Path tempfile = Files.createTempFile("", "");
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, tempfile)) {
+      final int count = UploaderCacheThread.MAX_PAGE_SIZE * 2 + 10;
+      final Map<Path, Long> timestamps = new LinkedHashMap<>();
+      for (int i = 0; i < count; i++)
+        timestamps.put(Paths.get("dir", "file" + i), (long) i + 1);
+      cache.updateAll(timestamps);
+
+      final UploaderSockets sockets = new UploaderSockets(CONTEXT, cache.getAddress(), ZMQ.REQ);
+      try {
+        final Iterator<UploaderCacheEntry> it = new UploaderCacheCursor((Path after, Integer limit) ->
+            UploaderCacheEntry.decodePage(sockets.request(
+                new UploaderMessage(UploaderCacheThread.GET_ENTRIES, UploaderCacheSettings.Protocol.BINARY)
+                    .put('r', "")
+                    .put('a', after == null ? "" : after.toString())
+                    .put('w', "uf")
+                    .put('n', limit)
+                    .encode())), Integer.MAX_VALUE);
+        final Map<Path, Long> read = new HashMap<>();
+        while (it.hasNext()) {
+          final UploaderCacheEntry e = it.next();
+          Assert.assertNull(read.put(e.File, e.TimeUploaded));
+        }
+        Assert.assertEquals(count, read.size());
+        Assert.assertEquals(timestamps, read);
+      } finally {
+        sockets.close();
+      }
+    } finally {
+      Files.delete(tempfile);
+    }
+  }
 }
@@ -0,0 +1,123 @@
+package com.github.lordcrekit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class UploaderMessageTest {
+
+  @Test
+  public void testRoundTrip() {
+    System.out.println("Test message round trip");
+
+    for (UploaderCacheSettings.Protocol protocol : UploaderCacheSettings.Protocol.values()) {
+      final UploaderMessage freeze = UploaderMessage.decode(
+          new UploaderMessage(UploaderCacheThread.FREEZE_COMMAND, protocol)
+              .put('r', "/home/\u00e9t\u00e9")
+              .put('p', ".*\\.freeze")
+              .put('t', Long.MIN_VALUE + 1)
+              .encode());
+      Assert.assertEquals(UploaderCacheThread.FREEZE_COMMAND, freeze.Command);
+      Assert.assertEquals(protocol == UploaderCacheSettings.Protocol.BINARY, freeze.Binary);
+      Assert.assertEquals("/home/\u00e9t\u00e9", freeze.getString('r'));
+      Assert.assertEquals(".*\\.freeze", freeze.getString('p'));
+      Assert.assertEquals(Long.MIN_VALUE + 1, freeze.getLong('t'));
+
+      final UploaderMessage queue = UploaderMessage.decode(
+          new UploaderMessage(UploaderServiceThread.QUEUE_COMMAND, protocol)
+              .put('f', "")
+              .put('U', Arrays.asList("file:///tmp", "sftp://host/"))
+              .put('J', new long[]{7, -1})
+              .encode());
+      Assert.assertEquals("", queue.getString('f'));
+      Assert.assertEquals(Arrays.asList("file:///tmp", "sftp://host/"), queue.getStrings('U'));
+      Assert.assertArrayEquals(new long[]{7, -1}, queue.getLongs('J'));
+
+      final UploaderMessage updateAll = UploaderMessage.decode(
+          new UploaderMessage(UploaderCacheThread.UPDATE_ALL_COMMAND, protocol)
+              .put('F', Arrays.asList("a", "b/c"))
+              .put('T', new long[]{1, -1})
+              .encode());
+      Assert.assertEquals(Arrays.asList("a", "b/c"), updateAll.getStrings('F'));
+      Assert.assertArrayEquals(new long[]{1, -1}, updateAll.getLongs('T'));
+
+      final UploaderMessage terminate = UploaderMessage.decode(
+          new UploaderMessage(UploaderCacheThread.TERMINATE_COMMAND, protocol).encode());
+      Assert.assertEquals(UploaderCacheThread.TERMINATE_COMMAND, terminate.Command);
+    }
+  }
+
+  @Test
+  public void testFileInfoRoundTrip() {
+    System.out.println("Test file info round trip");
+
+    final UploaderCacheFileInfo info = new UploaderCacheFileInfo(true, 50, 40, 60);
+    Assert.assertEquals(info, UploaderCacheFileInfo.decode(info.toBytes()));
+    Assert.assertEquals(info, UploaderCacheFileInfo.decode(info.toJSON().toString().getBytes()));
+
+    final List<UploaderCacheFileInfo> infos = Arrays.asList(info, new UploaderCacheFileInfo(false, -1, -1, 7));
+    Assert.assertEquals(infos, UploaderCacheFileInfo.decodeAll(UploaderCacheFileInfo.encodeAll(infos, true)));
+    Assert.assertEquals(infos, UploaderCacheFileInfo.decodeAll(UploaderCacheFileInfo.encodeAll(infos, false)));
+  }
+
+  @Test
+  public void testDestinationFileInfoRoundTrip() {
+    System.out.println("Test file info with destinations round trip");
+
+    final Map<URI, Long> times = new LinkedHashMap<>();
+    times.put(URI.create("sftp://a/dir"), 50L);
+    times.put(URI.create("s3://bucket/"), 40L);
+    final UploaderCacheFileInfo info = new UploaderCacheFileInfo(false, -1, -1, 50, times);
+    Assert.assertEquals(info, UploaderCacheFileInfo.decode(info.toBytes()));
+    Assert.assertEquals(info, UploaderCacheFileInfo.decode(info.toJSON().toString().getBytes()));
+
+    final List<UploaderCacheFileInfo> infos = Arrays.asList(info, new UploaderCacheFileInfo(false, -1, -1, 7), info);
+    Assert.assertEquals(infos, UploaderCacheFileInfo.decodeAll(UploaderCacheFileInfo.encodeAll(infos, true)));
+    Assert.assertEquals(infos, UploaderCacheFileInfo.decodeAll(UploaderCacheFileInfo.encodeAll(infos, false)));
+
+    Assert.assertEquals(40, info.timeUploadedTo(URI.create("s3://bucket/")));
+    Assert.assertEquals(-1, info.timeUploadedTo(URI.create("s3://other/")));
+    // Times recorded without a destination stand for every destination.
+    Assert.assertEquals(7, infos.get(1).timeUploadedTo(URI.create("s3://other/")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncated() {
+    System.out.println("Test truncated message");
+
+    final byte[] bytes = new UploaderMessage(UploaderCacheThread.UPDATE_COMMAND, UploaderCacheSettings.Protocol.BINARY)
+        .put('f', "file")
+        .put('t', 50)
+        .encode();
+    UploaderMessage.decode(Arrays.copyOf(bytes, bytes.length - 1));
+  }
+
+  @Test
+  public void testJSONProtocol() throws IOException {
+    System.out.println("Test UploaderCache over the JSON protocol");
+
+    final Path tempUploadFile = Files.createTempFile("", "");
+    final Path tempfile = Files.createTempFile("", "");
+    final ZContext context = new ZContext();
+    try {
+      final UploaderCacheSettings settings = new UploaderCacheSettings().setProtocol(UploaderCacheSettings.Protocol.JSON);
+      try (final UploaderCache cache = new UploaderCache(context, tempfile, settings)) {
+        cache.update(tempUploadFile, 50);
+        Assert.assertEquals(50, cache.getFileInformation(tempUploadFile).TimeUploaded);
+      }
+    } finally {
+      context.destroy();
+      Files.delete(tempUploadFile);
+      Files.delete(tempfile);
+    }
+  }
+}
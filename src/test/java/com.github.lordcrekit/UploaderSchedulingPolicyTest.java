@@ -0,0 +1,96 @@
+package com.github.lordcrekit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class UploaderSchedulingPolicyTest {
+
+  @Test
+  public void testWeightedFair() throws IOException {
+    System.out.println("Test weightedFair(MAP)");
+
+    final Path root = Files.createTempDirectory(UploaderSchedulingPolicyTest.class.getName());
+    final Path heavy = Files.createDirectory(root.resolve("heavy"));
+    final Path light = Files.createDirectory(root.resolve("light"));
+    final List<Path> files = new ArrayList<>();
+    try {
+      for (int i = 0; i < 12; i++) {
+        files.add(Files.write(heavy.resolve("file" + i), new byte[1000]));
+        files.add(Files.write(light.resolve("file" + i), new byte[1000]));
+      }
+
+      final Map<Path, Integer> weights = new LinkedHashMap<>();
+      weights.put(heavy, 3);
+      weights.put(light, 1);
+      final UploaderSchedulingPolicy policy = UploaderSchedulingPolicy.weightedFair(weights);
+
+      // Everything from the heavy tree is queued first, but the light tree still gets a quarter of the uploads.
+      final List<long[]> ranked = new ArrayList<>();
+      for (int i = 0; i < files.size(); i++) {
+        final Path p = files.get(i % 2 == 0 ? i / 2 : 12 + i / 2);
+        ranked.add(new long[]{policy.rank(p, URI.create("sftp://host/")), p.startsWith(heavy) ? 1 : 0, i});
+      }
+      ranked.sort(Comparator.comparingLong((long[] r) -> r[0]));
+
+      int heavyServed = 0;
+      for (int i = 0; i < 8; i++) {
+        final int queued = (int) ranked.get(i)[2];
+        policy.started(files.get(queued % 2 == 0 ? queued / 2 : 12 + queued / 2), URI.create("sftp://host/"),
+            ranked.get(i)[0]);
+        heavyServed += ranked.get(i)[1];
+      }
+      Assert.assertEquals(6, heavyServed);
+
+      // A tree that was idle starts at the current time, rather than with credit for the time it was idle.
+      final Path late = Files.write(root.resolve("late"), new byte[1000]);
+      files.add(late);
+      Assert.assertEquals(ranked.get(7)[0], policy.rank(late, URI.create("sftp://host/")));
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(heavy);
+      Files.delete(light);
+      Files.delete(root);
+    }
+  }
+
+  @Test
+  public void testWeightedFairSkipped() throws IOException {
+    System.out.println("Test weightedFair(MAP) skipping requests");
+
+    final Path root = Files.createTempDirectory(UploaderSchedulingPolicyTest.class.getName());
+    final Path tree = Files.createDirectory(root.resolve("tree"));
+    final Path first = Files.write(tree.resolve("first"), new byte[1000]);
+    final Path second = Files.write(tree.resolve("second"), new byte[1000]);
+    final URI destination = URI.create("sftp://host/");
+    try {
+      final UploaderSchedulingPolicy policy = UploaderSchedulingPolicy.weightedFair(
+          Collections.singletonMap(tree, 1));
+
+      // A request that was already up to date used none of the tree's share.
+      Assert.assertEquals(0, policy.rank(first, destination));
+      policy.skipped(first, destination, 0);
+      Assert.assertEquals(0, policy.rank(second, destination));
+
+      // One that was uploaded did.
+      policy.started(second, destination, 0);
+      Assert.assertEquals(1000, policy.rank(first, destination));
+    } finally {
+      Files.delete(first);
+      Files.delete(second);
+      Files.delete(tree);
+      Files.delete(root);
+    }
+  }
+}
@@ -9,13 +9,26 @@ import org.zeromq.ZMQ;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -75,10 +88,815 @@ public class UploaderServiceTest {
     }
   }
 
+  /**
+   * Takes a fixed time for each upload, like a high-latency destination, and records how many run at once.
+   */
+  class LatencyStrategy implements UploaderStrategy {
+    final long Latency;
+    final AtomicInteger Count = new AtomicInteger();
+    final AtomicInteger MaxRunning = new AtomicInteger();
+    final Map<String, AtomicInteger> MaxRunningPerHost = new ConcurrentHashMap<>();
+    final List<Path> Order = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final Map<String, AtomicInteger> runningPerHost = new ConcurrentHashMap<>();
+
+    LatencyStrategy(final long latency) {
+      this.Latency = latency;
+    }
+
+    @Override
+    public long upload(Path file, URI destination) throws IOException {
+      final long timestamp = Files.getLastModifiedTime(file).toMillis();
+      this.Order.add(file);
+      final String host = String.valueOf(destination.getAuthority());
+      final AtomicInteger hostRunning = this.runningPerHost.computeIfAbsent(host, (String h) -> new AtomicInteger());
+      max(this.MaxRunning, this.running.incrementAndGet());
+      max(this.MaxRunningPerHost.computeIfAbsent(host, (String h) -> new AtomicInteger()), hostRunning.incrementAndGet());
+      try {
+        Thread.sleep(this.Latency);
+      } catch (InterruptedException e) {
+      } finally {
+        this.running.decrementAndGet();
+        hostRunning.decrementAndGet();
+      }
+      Count.incrementAndGet();
+      return timestamp;
+    }
+
+    private void max(final AtomicInteger max, final int value) {
+      for (int m; (m = max.get()) < value && !max.compareAndSet(m, value); )
+        ;
+    }
+  }
+
   @Test
   public void testQueueUpload() throws IOException {
   }
 
+  @Test
+  public void testWorkerPool() throws IOException, InterruptedException {
+    System.out.println("\tTest uploading with a worker pool");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testWorkerPool");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 8; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+
+    final LatencyStrategy strategy = new LatencyStrategy(300);
+    final UploaderServiceSettings settings = new UploaderServiceSettings().setWorkers(4);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      final long start = System.currentTimeMillis();
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy, settings)) {
+        for (Path p : files)
+          service.queueUpload(p);
+
+        service.terminate();
+        service.awaitTermination();
+      }
+      final long elapsed = System.currentTimeMillis() - start;
+
+      Assert.assertEquals(8, strategy.Count.get());
+      Assert.assertEquals(4, strategy.MaxRunning.get());
+      Assert.assertTrue("Took " + elapsed + "ms", elapsed < 8 * strategy.Latency);
+      for (Path p : files)
+        Assert.assertEquals(Files.getLastModifiedTime(p).toMillis(), cache.getFileInformation(p).TimeUploaded);
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testVirtualThreads() throws IOException, InterruptedException {
+    System.out.println("\tTest uploading on virtual threads");
+
+    if (!UploaderServiceSettings.isVirtualThreadSupported()) {
+      try {
+        new UploaderServiceSettings().setVirtualThreads(true);
+        Assert.fail("Virtual threads enabled without support");
+      } catch (UnsupportedOperationException e) {
+      }
+      return;
+    }
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testVirtualThreads");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 16; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+
+    final LatencyStrategy strategy = new LatencyStrategy(300);
+    final UploaderServiceSettings settings = new UploaderServiceSettings().setVirtualThreads(true);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy, settings)) {
+        for (Path p : files)
+          service.queueUpload(p);
+
+        service.terminate();
+        service.awaitTermination();
+      }
+
+      Assert.assertEquals(16, strategy.Count.get());
+      for (Path p : files)
+        Assert.assertEquals(Files.getLastModifiedTime(p).toMillis(), cache.getFileInformation(p).TimeUploaded);
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testAsyncStrategy() throws IOException, InterruptedException {
+    System.out.println("\tTest uploading with an asynchronous strategy");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testAsyncStrategy");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 32; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+    final Path failing = files.get(0);
+
+    // One timer thread completes every upload, so they can only overlap if nothing waits on them.
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    final AtomicInteger started = new AtomicInteger();
+    final AsyncUploaderStrategy strategy = (Path file, URI destination) -> {
+      started.incrementAndGet();
+      final CompletableFuture<Long> upload = new CompletableFuture<>();
+      timer.schedule(() -> {
+        try {
+          if (file.equals(failing))
+            throw new IOException("Destination refused " + file);
+          upload.complete(Files.getLastModifiedTime(file).toMillis());
+        } catch (IOException e) {
+          upload.completeExceptionally(e);
+        }
+      }, 300, TimeUnit.MILLISECONDS);
+      return upload;
+    };
+
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      final long start = System.currentTimeMillis();
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy,
+          new UploaderServiceSettings())) {
+        for (Path p : files)
+          service.queueUpload(p);
+
+        service.terminate();
+        service.awaitTermination();
+      }
+      final long elapsed = System.currentTimeMillis() - start;
+
+      Assert.assertEquals(32, started.get());
+      Assert.assertTrue("Took " + elapsed + "ms", elapsed < 8 * 300);
+      Assert.assertTrue(cache.getFileInformation(failing).TimeUploaded < 0);
+      for (Path p : files.subList(1, files.size()))
+        Assert.assertEquals(Files.getLastModifiedTime(p).toMillis(), cache.getFileInformation(p).TimeUploaded);
+    } finally {
+      timer.shutdownNow();
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testNegativeResult() throws IOException, InterruptedException {
+    System.out.println("\tTest a strategy reporting a failed upload");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path file = Files.createTempFile(TEST_DIRECTORY, "testNegativeResult", ".txt");
+    final AtomicInteger started = new AtomicInteger();
+    final AsyncUploaderStrategy strategy = (Path p, URI destination) -> {
+      started.incrementAndGet();
+      return CompletableFuture.completedFuture(-1L);
+    };
+
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      cache.update(file, 1000);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(2000));
+
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy,
+          new UploaderServiceSettings())) {
+        service.queueUpload(file);
+        service.terminate();
+        service.awaitTermination();
+      }
+
+      // The failure is not recorded as an upload, so the file still needs one.
+      Assert.assertEquals(1, started.get());
+      Assert.assertEquals(1000, cache.getFileInformation(file).TimeUploaded);
+      Assert.assertEquals(1000, cache.getFileInformation(file).timeUploadedTo(file.toUri()));
+    } finally {
+      Files.delete(file);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testBatchStrategy() throws IOException, InterruptedException {
+    System.out.println("\tTest uploading in batches");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testBatchStrategy");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 10; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+    final Path failing = files.get(9);
+
+    final List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+    final BatchUploaderStrategy strategy = new BatchUploaderStrategy() {
+      @Override
+      public long upload(Path file, URI destination) throws IOException {
+        throw new AssertionError("Uploaded " + file + " on its own");
+      }
+
+      @Override
+      public Map<Path, Long> uploadAll(Map<Path, URI> batch) throws IOException {
+        batches.add(batch.size());
+        final Map<Path, Long> uploaded = new HashMap<>();
+        for (Path p : batch.keySet())
+          if (!p.equals(failing))
+            uploaded.put(p, Files.getLastModifiedTime(p).toMillis());
+        return uploaded;
+      }
+    };
+
+    final UploaderServiceSettings settings = new UploaderServiceSettings().setBatching(4, Long.MAX_VALUE, 1000);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy, settings)) {
+        for (Path p : files)
+          service.queueUpload(p);
+
+        service.terminate();
+        service.awaitTermination();
+      }
+
+      Assert.assertEquals(Arrays.asList(4, 4, 2), batches);
+      Assert.assertTrue(cache.getFileInformation(failing).TimeUploaded < 0);
+      for (Path p : files.subList(0, 9))
+        Assert.assertEquals(Files.getLastModifiedTime(p).toMillis(), cache.getFileInformation(p).TimeUploaded);
+
+      // Without terminating, a batch that never fills goes once its window is up.
+      batches.clear();
+      Files.setLastModifiedTime(files.get(0), FileTime.fromMillis(System.currentTimeMillis() + 60000));
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy,
+          new UploaderServiceSettings().setBatching(4, Long.MAX_VALUE, 100))) {
+        service.queueUpload(files.get(0));
+        final long start = System.currentTimeMillis();
+        while (batches.isEmpty() && System.currentTimeMillis() - start < 5000)
+          Thread.sleep(10);
+        Assert.assertEquals(Arrays.asList(1), batches);
+      }
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testBatchBytes() throws IOException, InterruptedException {
+    System.out.println("\tTest batches keeping to their byte budget");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testBatchBytes");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      files.add(Files.write(root.resolve("file" + i), new byte[40]));
+    files.add(Files.write(root.resolve("large"), new byte[200]));
+    final Path failing = files.get(0);
+
+    final List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+    final BatchUploaderStrategy strategy = new BatchUploaderStrategy() {
+      @Override
+      public long upload(Path file, URI destination) throws IOException {
+        throw new AssertionError("Uploaded " + file + " on its own");
+      }
+
+      @Override
+      public Map<Path, Long> uploadAll(Map<Path, URI> batch) throws IOException {
+        batches.add(batch.size());
+        final Map<Path, Long> uploaded = new HashMap<>();
+        for (Path p : batch.keySet())
+          uploaded.put(p, p.equals(failing) ? -1 : Files.getLastModifiedTime(p).toMillis());
+        return uploaded;
+      }
+    };
+
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      cache.update(failing, 1000);
+      Files.setLastModifiedTime(failing, FileTime.fromMillis(2000));
+
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy,
+          new UploaderServiceSettings().setBatching(10, 100, 1000))) {
+        for (Path p : files)
+          service.queueUpload(p);
+
+        service.terminate();
+        service.awaitTermination();
+      }
+
+      // The third small file would have gone over, and the large one is over on its own.
+      Assert.assertEquals(Arrays.asList(2, 1, 1), batches);
+      Assert.assertEquals(1000, cache.getFileInformation(failing).TimeUploaded);
+      for (Path p : files.subList(1, files.size()))
+        Assert.assertEquals(Files.getLastModifiedTime(p).toMillis(), cache.getFileInformation(p).TimeUploaded);
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testFanOutStrategy() throws IOException, InterruptedException {
+    System.out.println("\tTest uploading a file to every destination from one read");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path file = Files.write(Files.createTempFile(TEST_DIRECTORY, "testFanOutStrategy", ""),
+        "contents".getBytes(StandardCharsets.UTF_8));
+    final URI failing = URI.create("sftp://down/");
+    final UploaderRouter router = (Path path) -> Arrays.asList(
+        URI.create("sftp://a/"), URI.create("sftp://b/"), failing);
+
+    final Map<URI, String> uploaded = new ConcurrentHashMap<>();
+    final FanOutUploaderStrategy strategy = new FanOutUploaderStrategy() {
+      @Override
+      public long upload(Path file, URI destination) throws IOException {
+        throw new AssertionError("Read " + file + " again for " + destination);
+      }
+
+      @Override
+      public long upload(Path file, ByteBuffer contents, URI destination) throws IOException {
+        if (destination.equals(failing))
+          throw new IOException("Destination is down");
+        final byte[] bytes = new byte[contents.remaining()];
+        contents.get(bytes);
+        final long modified = Files.getLastModifiedTime(file).toMillis();
+        if (uploaded.isEmpty()) {
+          // Only a destination that read the file again would see this.
+          Files.write(file, "changed!".getBytes(StandardCharsets.UTF_8));
+          Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+        }
+        uploaded.put(destination, new String(bytes, StandardCharsets.UTF_8));
+        return modified;
+      }
+    };
+
+    // With a single worker, the file's destinations still share it, as one task.
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      try (final UploaderService service = new UploaderService(
+          CONTEXT, cache, router, strategy, new UploaderServiceSettings())) {
+        service.queueUpload(file);
+        service.terminate();
+        service.awaitTermination();
+      }
+
+      // Each destination consumed its own view of the shared contents, and the one that failed did not hold up the rest.
+      Assert.assertEquals(2, uploaded.size());
+      Assert.assertEquals("contents", uploaded.get(URI.create("sftp://a/")));
+      Assert.assertEquals("contents", uploaded.get(URI.create("sftp://b/")));
+      Assert.assertEquals(Files.getLastModifiedTime(file).toMillis(), cache.getFileInformation(file).TimeUploaded);
+    } finally {
+      Files.delete(file);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testFanOutManyFiles() throws IOException, InterruptedException {
+    System.out.println("\tTest uploading many files to every destination from one read each");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testFanOutManyFiles");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 50; i++)
+      files.add(Files.write(root.resolve("file" + i), "contents".getBytes(StandardCharsets.UTF_8)));
+    final UploaderRouter router = (Path path) -> Arrays.asList(
+        URI.create("sftp://a/"), URI.create("sftp://b/"), URI.create("sftp://c/"));
+
+    final Map<Path, List<String>> uploaded = new ConcurrentHashMap<>();
+    final FanOutUploaderStrategy strategy = new FanOutUploaderStrategy() {
+      @Override
+      public long upload(Path file, URI destination) throws IOException {
+        throw new AssertionError("Read " + file + " again for " + destination);
+      }
+
+      @Override
+      public long upload(Path file, ByteBuffer contents, URI destination) throws IOException {
+        final byte[] bytes = new byte[contents.remaining()];
+        contents.get(bytes);
+        final long modified = Files.getLastModifiedTime(file).toMillis();
+        final List<String> seen = uploaded.computeIfAbsent(
+            file, (Path p) -> Collections.synchronizedList(new ArrayList<>()));
+        synchronized (seen) {
+          if (seen.isEmpty()) {
+            // Only a destination that read the file again would see this.
+            Files.write(file, "changed!".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+          }
+          seen.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return modified;
+      }
+    };
+
+    // Each file is queued while the worker is idle, so it would be started as soon as its first destination arrived if
+    // the destinations were not queued to it at once.
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      try (final UploaderService service = new UploaderService(
+          CONTEXT, cache, router, strategy, new UploaderServiceSettings())) {
+        for (Path p : files) {
+          service.queueUpload(p);
+          while (service.getInFlight() > 0 || service.getQueueDepth() > 0)
+            Thread.sleep(1);
+        }
+        service.terminate();
+        service.awaitTermination();
+      }
+
+      for (Path p : files)
+        Assert.assertEquals(p.toString(), Arrays.asList("contents", "contents", "contents"), uploaded.get(p));
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testPerDestination() throws IOException, InterruptedException {
+    System.out.println("\tTest only uploading to destinations that are out of date");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path file = Files.createTempFile(TEST_DIRECTORY, "testPerDestination", "");
+    final URI a = URI.create("sftp://a/");
+    final URI b = URI.create("sftp://b/");
+    final UploaderRouter router = (Path path) -> Arrays.asList(a, b);
+
+    final List<URI> uploaded = Collections.synchronizedList(new ArrayList<>());
+    final AtomicBoolean bIsDown = new AtomicBoolean(true);
+    final UploaderStrategy strategy = (Path p, URI destination) -> {
+      if (destination.equals(b) && bIsDown.get())
+        throw new IOException("Destination is down");
+      uploaded.add(destination);
+      return Files.getLastModifiedTime(p).toMillis();
+    };
+
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      for (int run = 0; run < 2; run++) {
+        try (final UploaderService service = new UploaderService(CONTEXT, cache, router, strategy)) {
+          service.queueUpload(file);
+          service.terminate();
+          service.awaitTermination();
+        }
+        bIsDown.set(false);
+      }
+
+      // The second time, only the destination the first time missed was out of date.
+      Assert.assertEquals(Arrays.asList(a, b), uploaded);
+      final long modified = Files.getLastModifiedTime(file).toMillis();
+      Assert.assertEquals(modified, cache.getFileInformation(file).timeUploadedTo(a));
+      Assert.assertEquals(modified, cache.getFileInformation(file).timeUploadedTo(b));
+    } finally {
+      Files.delete(file);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testJournal() throws IOException, InterruptedException {
+    System.out.println("\tTest replaying the upload journal");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testJournal");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 6; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+
+    final UploaderServiceSettings settings = new UploaderServiceSettings().setJournaled(true);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      // Closed while the first upload is still running, so the rest are left in the journal. The running one is
+      // finished and recorded.
+      final LatencyStrategy slow = new LatencyStrategy(300);
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), slow, settings)) {
+        for (Path p : files)
+          service.queueUpload(p);
+        Thread.sleep(100);
+      }
+      Assert.assertEquals(1, slow.Count.get());
+      Assert.assertFalse(UploaderServiceJournal.segments(cacheFile).isEmpty());
+
+      final LatencyStrategy fast = new LatencyStrategy(0);
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), fast, settings)) {
+        service.terminate();
+        service.awaitTermination();
+      }
+
+      // The upload that was running when the first service closed was recorded, so it does not go again.
+      Assert.assertEquals(5, fast.Count.get());
+      for (Path p : files)
+        Assert.assertEquals(Files.getLastModifiedTime(p).toMillis(), cache.getFileInformation(p).TimeUploaded);
+      Assert.assertTrue(UploaderServiceJournal.segments(cacheFile).isEmpty());
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testCloseWhileUploading() throws IOException, InterruptedException {
+    System.out.println("\tTest closing the service while uploads are running");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path file = Files.createTempFile(TEST_DIRECTORY, "testCloseWhileUploading", ".txt");
+    final Path asyncFile = Files.createTempFile(TEST_DIRECTORY, "testCloseWhileUploading", ".txt");
+    final long timestamp = Files.getLastModifiedTime(file).toMillis();
+    final long asyncTimestamp = Files.getLastModifiedTime(asyncFile).toMillis();
+
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    final UploaderServiceSettings settings = new UploaderServiceSettings().setJournaled(true);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      final CountDownLatch started = new CountDownLatch(1);
+      final UploaderStrategy slow = (Path p, URI destination) -> {
+        started.countDown();
+        try {
+          Thread.sleep(300);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return Files.getLastModifiedTime(p).toMillis();
+      };
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), slow, settings)) {
+        service.queueUpload(file);
+        started.await();
+      }
+      Assert.assertEquals(timestamp, cache.getFileInformation(file).TimeUploaded);
+
+      // An asynchronous upload holds no worker, but is still waited for.
+      final CountDownLatch asyncStarted = new CountDownLatch(1);
+      final AsyncUploaderStrategy async = (Path p, URI destination) -> {
+        asyncStarted.countDown();
+        final CompletableFuture<Long> upload = new CompletableFuture<>();
+        timer.schedule(() -> upload.complete(asyncTimestamp), 300, TimeUnit.MILLISECONDS);
+        return upload;
+      };
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), async, settings)) {
+        service.queueUpload(asyncFile);
+        asyncStarted.await();
+      }
+      Assert.assertEquals(asyncTimestamp, cache.getFileInformation(asyncFile).TimeUploaded);
+
+      // Both were acknowledged, so nothing is left to replay.
+      Assert.assertTrue(UploaderServiceJournal.segments(cacheFile).isEmpty());
+    } finally {
+      timer.shutdownNow();
+      Files.delete(file);
+      Files.delete(asyncFile);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testJournalFailedUpload() throws IOException, InterruptedException {
+    System.out.println("\tTest replaying failed uploads from the upload journal");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testJournalFailedUpload");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+
+    final UploaderServiceSettings settings = new UploaderServiceSettings().setJournaled(true);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      final AtomicInteger failed = new AtomicInteger();
+      final UploaderStrategy failing = (Path file, URI destination) -> {
+        failed.incrementAndGet();
+        return -1;
+      };
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), failing, settings)) {
+        for (Path p : files)
+          service.queueUpload(p);
+        service.terminate();
+        service.awaitTermination();
+      }
+      Assert.assertEquals(3, failed.get());
+      Assert.assertFalse(UploaderServiceJournal.segments(cacheFile).isEmpty());
+
+      // Every upload failed, so every request is tried again after the restart.
+      final LatencyStrategy fast = new LatencyStrategy(0);
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), fast, settings)) {
+        service.terminate();
+        service.awaitTermination();
+      }
+      Assert.assertEquals(3, fast.Count.get());
+      for (Path p : files)
+        Assert.assertEquals(Files.getLastModifiedTime(p).toMillis(), cache.getFileInformation(p).TimeUploaded);
+      Assert.assertTrue(UploaderServiceJournal.segments(cacheFile).isEmpty());
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
+  @Test
+  public void testSchedulingPolicy() throws IOException, InterruptedException {
+    System.out.println("\tTest uploading smallest files first");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testSchedulingPolicy");
+    final List<Path> files = new ArrayList<>();
+    for (int size : new int[]{0, 3000, 2000, 1000}) // The empty file goes first, and keeps the worker busy.
+      files.add(Files.write(root.resolve("file" + size), new byte[size]));
+
+    final LatencyStrategy strategy = new LatencyStrategy(200);
+    final UploaderServiceSettings settings = new UploaderServiceSettings()
+        .setSchedulingPolicy(UploaderSchedulingPolicy.smallestFirst());
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile);
+         final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy, settings)) {
+      for (Path p : files)
+        service.queueUpload(p);
+
+      service.terminate();
+      service.awaitTermination();
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+
+    Assert.assertEquals(Arrays.asList(files.get(0), files.get(3), files.get(2), files.get(1)), strategy.Order);
+  }
+
+  @Test
+  public void testPriority() throws IOException, InterruptedException {
+    System.out.println("\tTest queueing with a priority");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testPriority");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 4; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+
+    final LatencyStrategy strategy = new LatencyStrategy(200);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile);
+         final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy)) {
+      service.queueUpload(files.get(0), 10);
+      service.queueUpload(files.get(1));
+      service.queueUpload(files.get(2));
+      service.queueUpload(files.get(3), 5);
+      // Coalesced into the waiting request, at the higher priority.
+      service.queueUpload(files.get(2), 7);
+
+      service.terminate();
+      service.awaitTermination();
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+
+    Assert.assertEquals(Arrays.asList(files.get(0), files.get(2), files.get(3), files.get(1)), strategy.Order);
+  }
+
+  @Test
+  public void testDestinationConcurrency() throws IOException, InterruptedException {
+    System.out.println("\tTest limiting uploads per destination");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testDestinationConcurrency");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 6; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+
+    final UploaderRouter router = (Path p) -> Arrays.asList(
+        URI.create("sftp://slow.example/" + p.getFileName()),
+        URI.create("sftp://fast.example/" + p.getFileName()));
+    final LatencyStrategy strategy = new LatencyStrategy(200);
+    final UploaderServiceSettings settings = new UploaderServiceSettings()
+        .setWorkers(8)
+        .setDestinationConcurrency(2);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile);
+         final UploaderService service = new UploaderService(CONTEXT, cache, router, strategy, settings)) {
+      for (Path p : files)
+        service.queueUpload(p);
+
+      service.terminate();
+      service.awaitTermination();
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+
+    // The cache does not tell destinations apart, so the second destination of a file may be skipped.
+    Assert.assertTrue(strategy.Count.get() >= 6);
+    Assert.assertEquals(4, strategy.MaxRunning.get());
+    Assert.assertEquals(2, strategy.MaxRunningPerHost.get("slow.example").get());
+    Assert.assertEquals(2, strategy.MaxRunningPerHost.get("fast.example").get());
+  }
+
+  @Test
+  public void testBoundedQueue() throws IOException, InterruptedException {
+    System.out.println("\tTest bounding the queue");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path root = Files.createTempDirectory(TEST_DIRECTORY, "testBoundedQueue");
+    final List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 4; i++)
+      files.add(Files.createFile(root.resolve("file" + i)));
+
+    final LatencyStrategy strategy = new LatencyStrategy(300);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      // <editor-fold defaultstate="collapsed" desc="Reject">
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy,
+          new UploaderServiceSettings().setQueueLimit(2, UploaderServiceSettings.Overflow.REJECT))) {
+        Assert.assertTrue(service.offerUpload(files.get(0), files.get(0).toUri()));
+        Assert.assertTrue(service.offerUpload(files.get(1), files.get(1).toUri()));
+        Assert.assertFalse(service.offerUpload(files.get(2), files.get(2).toUri()));
+
+        Thread.sleep(100);
+        Assert.assertEquals(1, service.getInFlight());
+        Assert.assertEquals(1, service.getQueueDepth());
+
+        service.terminate();
+        service.awaitTermination();
+        Assert.assertEquals(0, service.getInFlight());
+        Assert.assertEquals(0, service.getQueueDepth());
+      }
+      Assert.assertEquals(2, strategy.Count.get());
+      // </editor-fold>
+
+      // <editor-fold defaultstate="collapsed" desc="Timeout">
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy,
+          new UploaderServiceSettings()
+              .setQueueLimit(1, UploaderServiceSettings.Overflow.TIMEOUT)
+              .setOverflowTimeout(50))) {
+        Assert.assertTrue(service.offerUpload(files.get(2), files.get(2).toUri()));
+        Assert.assertFalse(service.offerUpload(files.get(3), files.get(3).toUri()));
+
+        service.terminate();
+        service.awaitTermination();
+      }
+      Assert.assertEquals(3, strategy.Count.get());
+      // </editor-fold>
+
+      // <editor-fold defaultstate="collapsed" desc="Block">
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy,
+          new UploaderServiceSettings().setQueueLimit(1, UploaderServiceSettings.Overflow.BLOCK))) {
+        // Already uploaded, so the first is decided against at once and the second only waits for that.
+        final long start = System.nanoTime();
+        Assert.assertTrue(service.offerUpload(files.get(0), files.get(0).toUri()));
+        Assert.assertTrue(service.offerUpload(files.get(3), files.get(3).toUri()));
+        Assert.assertTrue(service.offerUpload(files.get(1), files.get(1).toUri()));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+
+        service.terminate();
+        service.awaitTermination();
+      }
+      Assert.assertEquals(4, strategy.Count.get());
+      // </editor-fold>
+
+      // <editor-fold defaultstate="collapsed" desc="Partial">
+      // Routed to three destinations with room for two, so it is only queued to the first two.
+      final Path partial = Files.createFile(root.resolve("partial"));
+      files.add(partial);
+      final UploaderRouter router = (Path path) -> Arrays.asList(
+          path.toUri(), URI.create("sftp://b/"), URI.create("sftp://c/"));
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, router, strategy,
+          new UploaderServiceSettings().setQueueLimit(2, UploaderServiceSettings.Overflow.REJECT))) {
+        Assert.assertEquals(Arrays.asList(partial.toUri(), URI.create("sftp://b/")), service.offerUpload(partial));
+
+        service.terminate();
+        service.awaitTermination();
+      }
+      Assert.assertEquals(6, strategy.Count.get());
+      // </editor-fold>
+    } finally {
+      for (Path p : files)
+        Files.delete(p);
+      Files.delete(root);
+      Files.delete(cacheFile);
+    }
+  }
+
   /**
    * If the UploaderService is told to upload a file 5 times, but by the time it's finished the first uploaded the file
    * is on it's fifth iteration, it should only upload one more time and skip the rest.
@@ -127,6 +945,42 @@ public class UploaderServiceTest {
     }
   }
 
+  /**
+   * Requests for a file that is waiting or being uploaded should collapse into a single check once the upload is done.
+   */
+  @Test
+  public void testCoalescing() throws IOException, InterruptedException {
+    System.out.println("\tTest coalescing repeated requests");
+
+    final Path cacheFile = Files.createTempFile(TEST_DIRECTORY, "", "");
+    final Path uploadPath = Files.createTempFile(TEST_DIRECTORY, "test", ".txt");
+    final LatencyStrategy strategy = new LatencyStrategy(500);
+    try (final UploaderCache cache = new UploaderCache(CONTEXT, cacheFile)) {
+      Files.setLastModifiedTime(uploadPath, FileTime.fromMillis(1000));
+      try (final UploaderService service = new UploaderService(CONTEXT, cache, new TestingRouter(), strategy)) {
+        for (int i = 0; i < 50; i++)
+          service.queueUpload(uploadPath);
+
+        Thread.sleep(200);
+        Files.setLastModifiedTime(uploadPath, FileTime.fromMillis(2000));
+        for (int i = 0; i < 50; i++)
+          service.queueUpload(uploadPath);
+
+        service.terminate();
+        service.awaitTermination();
+
+        Assert.assertEquals(100, service.getQueuedRequests());
+        Assert.assertEquals(98, service.getCoalescedRequests());
+      }
+
+      Assert.assertEquals(2, strategy.Count.get());
+      Assert.assertEquals(2000, cache.getFileInformation(uploadPath).TimeUploaded);
+    } finally {
+      Files.delete(cacheFile);
+      Files.delete(uploadPath);
+    }
+  }
+
   @Test
   public void testIgnoredFiles() throws IOException, InterruptedException {
     System.out.println("\tTest ignored files");